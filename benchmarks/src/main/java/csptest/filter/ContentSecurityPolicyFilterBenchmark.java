@@ -0,0 +1,112 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ContentSecurityPolicyFilter.doFilter against stub request, response and session objects.
+ * 
+ * coldSession starts every request with an empty session, so the header is rendered and a nonce generated;
+ * warmSession reuses one session per thread, so the cached header value is served.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ContentSecurityPolicyFilterBenchmark {
+    
+    @State(Scope.Benchmark)
+    public static class FilterState {
+        
+        @Param({"false", "true"})
+        public boolean sessionless;
+        
+        @Param({"0", "1024"})
+        public int nonceRingCapacity;
+        
+        ContentSecurityPolicyFilter filter;
+        
+        @Setup(Level.Trial)
+        public void setUp() throws ServletException {
+            
+            Map<String, String> initParameters = new HashMap<String, String>();
+            initParameters.put("policyLocation", "/WEB-INF/content_security_policy.xml");
+            initParameters.put("sessionless", Boolean.toString(sessionless));
+            initParameters.put(PreGeneratedNonceGenerator.NONCE_RING_CAPACITY, Integer.toString(nonceRingCapacity));
+            
+            filter = new ContentSecurityPolicyFilter();
+            filter.init(ServletStubs.filterConfig(initParameters));
+        }
+        
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            filter.destroy();
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class ClientState {
+        
+        ServletStubs.Client client;
+        
+        @Setup(Level.Trial)
+        public void setUp() {
+            
+            client = new ServletStubs.Client("/csp_test", "/csp_test/jsp/carousel.jsp");
+            client.setSessionAttributes(new HashMap<String, Object>());
+        }
+    }
+    
+    @Benchmark
+    public Map<String, String> coldSession(FilterState filterState, ClientState clientState) throws Exception {
+        
+        clientState.client.setSessionAttributes(null);
+        
+        filterState.filter.doFilter(clientState.client.getRequest(), clientState.client.getResponse(), ServletStubs.EMPTY_CHAIN);
+        
+        return clientState.client.getHeaders();
+    }
+    
+    @Benchmark
+    public Map<String, String> warmSession(FilterState filterState, ClientState clientState) throws Exception {
+        
+        filterState.filter.doFilter(clientState.client.getRequest(), clientState.client.getResponse(), ServletStubs.EMPTY_CHAIN);
+        
+        return clientState.client.getHeaders();
+    }
+    
+}
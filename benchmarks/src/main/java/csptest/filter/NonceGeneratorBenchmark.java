@@ -0,0 +1,90 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Nonce generation throughput, single threaded and with all cores contending.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class NonceGeneratorBenchmark {
+    
+    @Param({"0", "1024"})
+    public int nonceRingCapacity;
+    
+    private NonceGenerator nonceGenerator;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws ServletException {
+        
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put(PreGeneratedNonceGenerator.NONCE_RING_CAPACITY, Integer.toString(nonceRingCapacity));
+        
+        NonceGenerator nonceGenerator = new SecureRandomNonceGenerator();
+        
+        if (nonceRingCapacity > 0) {
+            
+            nonceGenerator = new PreGeneratedNonceGenerator(nonceGenerator);
+        }
+        
+        nonceGenerator.init(ServletStubs.filterConfig(initParameters));
+        
+        this.nonceGenerator = nonceGenerator;
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        nonceGenerator.destroy();
+    }
+    
+    @Benchmark
+    public String generateNonce() {
+        return nonceGenerator.generateNonce();
+    }
+    
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String generateNonceContended() {
+        return nonceGenerator.generateNonce();
+    }
+    
+}
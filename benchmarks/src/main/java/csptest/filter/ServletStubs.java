@@ -0,0 +1,224 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal map backed servlet API stubs for the benchmarks. Resources are served from the benchmark classpath,
+ * which carries WEB-INF/content_security_policy.xml and the JSPs of the web application.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class ServletStubs {
+    
+    public static final FilterChain EMPTY_CHAIN = new FilterChain() {
+        
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response) {
+        }
+    };
+    
+    private ServletStubs() {
+    }
+    
+    public static FilterConfig filterConfig(final Map<String, String> initParameters) {
+        
+        final Map<String, Object> contextAttributes = new HashMap<String, Object>();
+        
+        final ServletContext servletContext = proxy(ServletContext.class, new InvocationHandler() {
+            
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                
+                String name = method.getName();
+                
+                if ("getResourceAsStream".equals(name)) {
+                    
+                    return ServletStubs.class.getResourceAsStream((String)args[0]);
+                    
+                } else if ("getAttribute".equals(name)) {
+                    
+                    return contextAttributes.get(args[0]);
+                    
+                } else if ("setAttribute".equals(name)) {
+                    
+                    contextAttributes.put((String)args[0], args[1]);
+                }
+                
+                return null;
+            }
+        });
+        
+        return proxy(FilterConfig.class, new InvocationHandler() {
+            
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                
+                String name = method.getName();
+                
+                if ("getInitParameter".equals(name)) {
+                    
+                    return initParameters.get(args[0]);
+                    
+                } else if ("getServletContext".equals(name)) {
+                    
+                    return servletContext;
+                }
+                
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Request whose session is whatever {@link Client#setSessionAttributes(Map)} last installed.
+     */
+    public static final class Client {
+        
+        private Map<String, Object> sessionAttributes;
+        
+        private final Map<String, Object> requestAttributes = new HashMap<String, Object>();
+        
+        private final Map<String, String> headers = new HashMap<String, String>();
+        
+        private final HttpSession session;
+        
+        private final HttpServletRequest request;
+        
+        private final HttpServletResponse response;
+        
+        public Client(final String contextPath, final String requestURI) {
+            
+            session = proxy(HttpSession.class, new InvocationHandler() {
+                
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    
+                    String name = method.getName();
+                    
+                    if ("getAttribute".equals(name)) {
+                        
+                        return sessionAttributes.get(args[0]);
+                        
+                    } else if ("setAttribute".equals(name)) {
+                        
+                        sessionAttributes.put((String)args[0], args[1]);
+                    }
+                    
+                    return null;
+                }
+            });
+            
+            request = proxy(HttpServletRequest.class, new InvocationHandler() {
+                
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    
+                    String name = method.getName();
+                    
+                    if ("getSession".equals(name)) {
+                        
+                        if (sessionAttributes==null) {
+                            
+                            if ((args!=null)&&(Boolean.FALSE.equals(args[0]))) {
+                                
+                                return null;
+                            }
+                            
+                            sessionAttributes = new HashMap<String, Object>();
+                        }
+                        
+                        return session;
+                        
+                    } else if ("getAttribute".equals(name)) {
+                        
+                        return requestAttributes.get(args[0]);
+                        
+                    } else if ("setAttribute".equals(name)) {
+                        
+                        requestAttributes.put((String)args[0], args[1]);
+                        
+                    } else if ("getContextPath".equals(name)) {
+                        
+                        return contextPath;
+                        
+                    } else if ("getRequestURI".equals(name)) {
+                        
+                        return requestURI;
+                        
+                    } else if ("getServletPath".equals(name)) {
+                        
+                        return requestURI.substring(contextPath.length());
+                    }
+                    
+                    return null;
+                }
+            });
+            
+            response = proxy(HttpServletResponse.class, new InvocationHandler() {
+                
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    
+                    if ("setHeader".equals(method.getName())) {
+                        
+                        headers.put((String)args[0], (String)args[1]);
+                    }
+                    
+                    return null;
+                }
+            });
+        }
+        
+        /**
+         * @param sessionAttributes the attributes of the session, or null for a request without a session
+         */
+        public void setSessionAttributes(Map<String, Object> sessionAttributes) {
+            this.sessionAttributes = sessionAttributes;
+        }
+        
+        public HttpServletRequest getRequest() {
+            return request;
+        }
+        
+        public HttpServletResponse getResponse() {
+            return response;
+        }
+        
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler invocationHandler) {
+        return (T)Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class<?>[] {type}, invocationHandler);
+    }
+    
+}
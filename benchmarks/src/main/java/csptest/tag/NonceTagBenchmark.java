@@ -0,0 +1,145 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.tag;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * NonceTag.applyNonceToScript over the JSPs of the web application, plus a synthetic page made of all of
+ * them repeated up to 1 MB.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class NonceTagBenchmark {
+    
+    private static final String SYNTHETIC_PAGE = "synthetic-1mb";
+    
+    private static final int SYNTHETIC_PAGE_SIZE = 1024 * 1024;
+    
+    private static final String[] PAGES = new String[] {"carousel.jsp", "selectmenu.jsp", "autocomplete.jsp", 
+            "autocomplete_dom_xss.jsp", "checboxradio.jsp", "mouseclick.jsp"};
+    
+    private static final String NONCE = "nonce=\"zA9DjfxTHjoOd2yl2Eg_zr3lDFPeP3p3\"";
+    
+    @Param({"carousel.jsp", "selectmenu.jsp", "autocomplete.jsp", "autocomplete_dom_xss.jsp", "checboxradio.jsp", 
+            "mouseclick.jsp", SYNTHETIC_PAGE})
+    public String page;
+    
+    private final NonceTag nonceTag = new NonceTag();
+    
+    private final CharArrayWriter out = new CharArrayWriter();
+    
+    private String bodyContent;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        
+        if (SYNTHETIC_PAGE.equals(page)) {
+            
+            StringBuilder str = new StringBuilder(SYNTHETIC_PAGE_SIZE + 8192);
+            
+            while (str.length() < SYNTHETIC_PAGE_SIZE) {
+                
+                for (String page: PAGES) {
+                    
+                    str.append(readPage(page));
+                }
+            }
+            
+            str.setLength(SYNTHETIC_PAGE_SIZE);
+            
+            bodyContent = str.toString();
+            
+        } else {
+            
+            bodyContent = readPage(page);
+        }
+    }
+    
+    private static String readPage(String page) throws IOException {
+        
+        InputStream in = NonceTagBenchmark.class.getResourceAsStream("/jsp/" + page);
+        
+        if (in==null) {
+            
+            throw new IOException("Missing benchmark page " + page);
+        }
+        
+        StringBuilder str = new StringBuilder();
+        
+        try (Reader reader = new InputStreamReader(in, "UTF-8")) {
+            
+            char[] buffer = new char[8192];
+            
+            int read = reader.read(buffer, 0, buffer.length);
+            
+            while (read != -1) {
+                
+                str.append(buffer, 0, read);
+                
+                read = reader.read(buffer, 0, buffer.length);
+            }
+        }
+        
+        return str.toString();
+    }
+    
+    /**
+     * Body content in, String out, as the tag's test harness uses it.
+     */
+    @Benchmark
+    public String applyNonceToString() {
+        return nonceTag.applyNonceToScript(NONCE, bodyContent);
+    }
+    
+    /**
+     * The doAfterBody path: body content reader streamed into the enclosing writer.
+     */
+    @Benchmark
+    public int applyNonceStreaming() throws IOException {
+        
+        out.reset();
+        
+        nonceTag.applyNonceToScript(NONCE, new StringReader(bodyContent), out);
+        
+        return out.size();
+    }
+    
+}
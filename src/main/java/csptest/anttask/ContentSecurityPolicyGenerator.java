@@ -73,6 +73,8 @@ public class ContentSecurityPolicyGenerator extends Task {
     
     private String reportUri;
     
+    private String reportTo;
+    
     @Override
     public void execute() throws BuildException {
         
@@ -98,6 +100,13 @@ public class ContentSecurityPolicyGenerator extends Task {
             str.append("report-uri ");
             str.append(getReportUri());
             str.append("; ");
+            
+            if (isReportTo()) {
+                
+                str.append("report-to ");
+                str.append(getReportTo().trim());
+                str.append("; ");
+            }
         }
         
         str.append("default-src 'self'");
@@ -105,6 +114,31 @@ public class ContentSecurityPolicyGenerator extends Task {
         return str.toString();
     }
     
+    /**
+     * The Reporting-Endpoints header that maps the report-to group to the report uri, so browsers supporting the
+     * Reporting API send batched reports while older ones keep using report-uri.
+     */
+    private String buildReportingEndpoints() {
+        
+        if (isReportTo()) {
+            
+            StringBuilder str = new StringBuilder();
+            
+            str.append(getReportTo().trim());
+            str.append("=\"");
+            str.append(getReportUri().trim());
+            str.append("\"");
+            
+            return str.toString();
+        }
+        
+        return null;
+    }
+    
+    private boolean isReportTo() {
+        return (getReportTo()!=null)&&(!getReportTo().trim().equals(""))&&(getReportUri()!=null)&&(!getReportUri().trim().equals(""));
+    }
+    
     private ContentSecurityPolicy buildContentSecurityPolicy(Map<ResourceType, Set<String>> resourceTypePolicyMap) {
         
         if ((resourceTypePolicyMap!=null)&&(!resourceTypePolicyMap.isEmpty())) {
@@ -138,6 +172,8 @@ public class ContentSecurityPolicyGenerator extends Task {
                         
                         policyHeader.setPrefix(buildPrefix());
                         
+                        policyHeader.setReportingEndpoints(buildReportingEndpoints());
+                        
                         if (Boolean.TRUE.toString().equalsIgnoreCase(getNonce())) {
                             
                             policyHeader.setNonce(Boolean.TRUE.toString());
@@ -248,6 +284,13 @@ public class ContentSecurityPolicyGenerator extends Task {
                     nonce.appendChild( doc.createTextNode(contentSecurityPolicy.getPolicyHeader().getNonce()) );
                     header.appendChild(nonce);
                     
+                    if (contentSecurityPolicy.getPolicyHeader().getReportingEndpoints()!=null) {
+                        
+                        Element reportingEndpoints = doc.createElementNS(null, "reportingEndpoints");
+                        reportingEndpoints.appendChild( doc.createCDATASection(contentSecurityPolicy.getPolicyHeader().getReportingEndpoints()));
+                        header.appendChild(reportingEndpoints);
+                    }
+                    
                     root.appendChild( header );
                 }
                 
@@ -505,6 +548,20 @@ public class ContentSecurityPolicyGenerator extends Task {
         this.reportUri = reportUri;
     }
 
+    /**
+     * @return the reportTo
+     */
+    private String getReportTo() {
+        return reportTo;
+    }
+
+    /**
+     * @param reportTo the report-to group name, e.g. csp-endpoint; requires reportUri
+     */
+    public void setReportTo(String reportTo) {
+        this.reportTo = reportTo;
+    }
+
     public static void main(String[] argc ) {
         
         String resourceListLocation = "C:/eclipse/workspaces/csp-test/csp_external_resource_list.xml";
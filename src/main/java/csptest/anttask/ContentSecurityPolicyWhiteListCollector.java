@@ -13,20 +13,28 @@
  */
 package csptest.anttask;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -45,9 +53,7 @@ import org.apache.tools.ant.types.Resource;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
-import csptest.common.ContentSecurityPolicyFactory;
 import csptest.common.ResourceParser;
-import csptest.common.ResourceType;
 import csptest.common.ResourceTypeDetail;
 
 import org.apache.tools.ant.DirectoryScanner;
@@ -61,46 +67,29 @@ import org.apache.tools.ant.Project;
  * 2. Inconsistent html tag usage makes parsing difficult
  *    E.g. single quote versus double quote used to define resource.
  * 
+ * Files are read and parsed on the number of threads given by the threads attribute (default 1). Each file
+ * is parsed into its own result, collected in a concurrent map sorted by file name, so the generated list
+ * is in file name order and identical from one run to the next whatever the thread count.
+ * 
+ * The parser attribute selects how resources are found: "pattern" (default) matches the {@link csptest.common.ResourceType}
+ * patterns in a single pass, "tokenizer" reads the attributes of start tags with an HTML/JSP tokenizer, which copes
+ * with the quoting and embedded tag library issues above.
+ * 
+ * With a cacheFile, what was collected from each file is kept between runs in a {@link ResourceTypeDetailCache}:
+ * files whose size and modification time are unchanged are not read, files whose content hash is unchanged are
+ * not parsed, and deleted files drop out, so a run after a small change only parses the changed files.
+ * 
+ * Files are read in bulk and decoded with their byte order mark or declared charset, UTF-8 otherwise, by
+ * {@link ResourceContentReader}.
+ * 
  * @author thealmostrealmccoy
  *
  */
 public class ContentSecurityPolicyWhiteListCollector extends MatchingTask {
     
-    private static final String SCRIPT_TAG_SRC_DOUBLEQUOTE_VALUE_PREFIX = "src=\"";
-    private static final String SCRIPT_TAG_SRC_DOUBLEQUOTE_VALUE_SUFFIX = "\"";
-    private static final String SCRIPT_TAG_SRC_SINGLEQUOTE_VALUE_PREFIX = "src='";
-    private static final String SCRIPT_TAG_SRC_SINGLEQUOTE_VALUE_SUFFIX = "'";    
-
-    private static final String IMAGE_TAG_SRC_DOUBLEQUOTE_VALUE_PREFIX = "src=\"";
-    private static final String IMAGE_TAG_SRC_DOUBLEQUOTE_VALUE_SUFFIX = "\"";
-    private static final String IMAGE_TAG_SRC_SINGLEQUOTE_VALUE_PREFIX = "src='";
-    private static final String IMAGE_TAG_SRC_SINGLEQUOTE_VALUE_SUFFIX = "'";    
-
-    private static final String ANCHOR_TAG_HREF_DOUBLEQUOTE_VALUE_PREFIX = "href=\"";
-    private static final String ANCHOR_TAG_HREF_DOUBLEQUOTE_VALUE_SUFFIX = "\"";
-    private static final String ANCHOR_TAG_HREF_SINGLEQUOTE_VALUE_PREFIX = "href='";
-    private static final String ANCHOR_TAG_HREF_SINGLEQUOTE_VALUE_SUFFIX = "'";    
-    
-    private static final String FRAME_TAG_SRC_DOUBLEQUOTE_VALUE_PREFIX = "src=\"";
-    private static final String FRAME_TAG_SRC_DOUBLEQUOTE_VALUE_SUFFIX = "\"";
-    private static final String FRAME_TAG_SRC_SINGLEQUOTE_VALUE_PREFIX = "src='";
-    private static final String FRAME_TAG_SRC_SINGLEQUOTE_VALUE_SUFFIX = "'";
-
-    private static final String LINK_TAG_HREF_DOUBLEQUOTE_VALUE_PREFIX = "href=\"";
-    private static final String LINK_TAG_HREF_DOUBLEQUOTE_VALUE_SUFFIX = "\"";
-    private static final String LINK_TAG_HREF_SINGLEQUOTE_VALUE_PREFIX = "href='";
-    private static final String LINK_TAG_HREF_SINGLEQUOTE_VALUE_SUFFIX = "'";
-    private static final String LINK_TAG_MANIFEST_DOUBLEQUOTE_VALUE = "rel=\"manifest\"";
-    private static final String LINK_TAG_MANIFEST_SINGLEQUOTE_VALUE = "rel='manifest'";
+    private static final String PATTERN_PARSER = "pattern";
     
-    private static final String STYLE_TAG_HREF_DOUBLEQUOTE_VALUE_PREFIX = LINK_TAG_HREF_DOUBLEQUOTE_VALUE_PREFIX;
-    private static final String STYLE_TAG_HREF_DOUBLEQUOTE_VALUE_SUFFIX = LINK_TAG_HREF_DOUBLEQUOTE_VALUE_SUFFIX;
-    private static final String STYLE_TAG_HREF_SINGLEQUOTE_VALUE_PREFIX = LINK_TAG_HREF_SINGLEQUOTE_VALUE_PREFIX;
-    private static final String STYLE_TAG_HREF_SINGLEQUOTE_VALUE_SUFFIX = LINK_TAG_HREF_SINGLEQUOTE_VALUE_SUFFIX;
-    private static final String STYLE_TAG_STYLESHEET_DOUBLEQUOTE_VALUE = "rel=\"stylesheet\"";
-    private static final String STYLE_TAG_STYLESHEET_SINGLEQUOTE_VALUE = "rel='stylesheet'";    
-    
-    private static final String HTTP_MATCHER_REGEX = "^(http|https)://";
+    private static final String TOKENIZER_PARSER = "tokenizer";
     
     private String baseDirectory;
     
@@ -108,16 +97,33 @@ public class ContentSecurityPolicyWhiteListCollector extends MatchingTask {
     
     private List<ResourceParser> resourceParsers;
     
+    private int threads = 1;
+    
+    private String parser = PATTERN_PARSER;
+    
+    private String cacheFile;
+    
+    /**
+     * Resource type details and log of a single file.
+     */
+    private static final class FileResult {
+        
+        private final List<ResourceTypeDetail> resourceTypeDetails = new ArrayList<ResourceTypeDetail>();
+        
+        private final StringBuilder logger = new StringBuilder();
+        
+        private IOException exception;
+        
+        private ResourceTypeDetailCache.Entry entry;
+        
+        private boolean read;
+        
+        private boolean parsed;
+    }
+    
     public ContentSecurityPolicyWhiteListCollector() {
         
-        List<ResourceParser> resourceParsers = new ArrayList<ResourceParser>();
-        resourceParsers.add(getScriptTagResourceParser());
-        resourceParsers.add(getAnchorTagResourceParser());
-        resourceParsers.add(getImageTagResourceParser());
-        resourceParsers.add(getFrameTagResourceParser());
-        resourceParsers.add(getLinkTagResourceParser());
-        resourceParsers.add(getStyleTagResourceParser());
-        setResourceParsers(resourceParsers);
+        setParser(PATTERN_PARSER);
     }
     
     public void execute() throws BuildException {
@@ -126,6 +132,9 @@ public class ContentSecurityPolicyWhiteListCollector extends MatchingTask {
         
         assert getIncludes()!=null;
         
+        // files modified after this are re-read on the next run
+        long time = System.currentTimeMillis();
+        
         DirectoryScanner directoryScanner = new DirectoryScanner();
         
         if (getIncludes()!=null) {
@@ -144,347 +153,343 @@ public class ContentSecurityPolicyWhiteListCollector extends MatchingTask {
             
             str.append(System.getProperty("line.separator"));
             str.append(System.getProperty("line.separator"));
-            str.append("******************* FILES: *******");
+            str.append("******************* FILES (" + getParser() + " parser): *******");
             str.append(System.getProperty("line.separator"));
             
-            for (int i = 0; i < files.length; i++) {
+            // scan order depends on the file system, sorting keeps the report stable across runs
+            Arrays.sort(files);
+            
+            ResourceTypeDetailCache resourceTypeDetailCache = readCache();
+            
+            Map<String, FileResult> fileResults = parseFiles(directoryScanner, files, resourceTypeDetailCache);
+            
+            Map<String, ResourceTypeDetailCache.Entry> entries = new HashMap<String, ResourceTypeDetailCache.Entry>();
+            
+            int readCount = 0;
+            
+            int parsedCount = 0;
+            
+            for (Map.Entry<String, FileResult> entry: fileResults.entrySet()) {
                 
-                Resource resource = directoryScanner.getResource(files[i]);
+                FileResult fileResult = entry.getValue();
                 
-                assert resource!=null;
+                if (fileResult.exception!=null) {
+                    
+                    log(fileResult.exception, Project.MSG_ERR);
+                }
                 
-                if (resource!=null && !resource.isDirectory()) {
+                if (fileResult.entry!=null) {
                     
-                    try {
-                        
-                        InputStream resourceInputStream = resource.getInputStream();
-                        
-                        String fileContent = getInputStreamContentAsString(resourceInputStream);
-                        
-                        for (ResourceParser resourceParser: resourceParsers) {
-
-                            assert resourceParser!=null;
-                            
-                            List<ResourceTypeDetail> parsedResourceTypeDetails = resourceParser.parseResource(fileContent, resource, getBaseDirectory(), str);
-                            
-                            if ((parsedResourceTypeDetails!=null)&&(!parsedResourceTypeDetails.isEmpty())) {
-                                
-                                if (resourceTypeDetails==null) {
-                                    
-                                    resourceTypeDetails = new ArrayList<ResourceTypeDetail>();
-                                }
-                                
-                                resourceTypeDetails.addAll(parsedResourceTypeDetails);
-                            }
-
-                        }
-                                               
-                    } catch (IOException e) {
+                    entries.put(entry.getKey(), fileResult.entry);
+                }
+                
+                readCount += (fileResult.read) ? 1 : 0;
+                
+                parsedCount += (fileResult.parsed) ? 1 : 0;
+                
+                str.append(fileResult.logger);
+                
+                if (!fileResult.resourceTypeDetails.isEmpty()) {
+                    
+                    if (resourceTypeDetails==null) {
                         
-                        log(e, Project.MSG_ERR);
+                        resourceTypeDetails = new ArrayList<ResourceTypeDetail>();
                     }
+                    
+                    resourceTypeDetails.addAll(fileResult.resourceTypeDetails);
                 }
-                
             }
             
             generateXMLReport(resourceTypeDetails);
             
+            writeCache(new ResourceTypeDetailCache(getParser(), getBaseDirectory(), time, entries));
+            
+            log(fileResults.size() + " files, " + readCount + " read, " + parsedCount + " parsed", Project.MSG_VERBOSE);
+            
             log(str.toString(), Project.MSG_DEBUG);
         }
         
     }
     
-    private void generateXMLReport(List<ResourceTypeDetail> resourceTypeDetails) {
+    /**
+     * @return the cache of the previous run with the same parser and base directory, or null
+     */
+    private ResourceTypeDetailCache readCache() {
         
-        if ((resourceTypeDetails!=null)&&(!resourceTypeDetails.isEmpty())) {
+        if ((getCacheFile()==null)||(getCacheFile().trim().equals(""))) {
             
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-            DocumentBuilder db;
+            return null;
+        }
+        
+        File file = new File(getCacheFile().trim());
+        
+        if (!file.isFile()) {
             
-            try {
-                
-                db = dbf.newDocumentBuilder();
-                Document doc = db.newDocument();
-                Element root = doc.createElementNS(null, "resourceType");
-                
-                for (ResourceTypeDetail resourceTypeDetail: resourceTypeDetails) {
-                    
-                    Element item = doc.createElementNS(null, "resourceTypeDetail");
-                    
-                    Element name = doc.createElementNS(null, "name");
-                    name.appendChild( doc.createTextNode(resourceTypeDetail.getName()) );
-                    item.appendChild(name);
-                    
-                    Element pattern = doc.createElementNS(null, "pattern");
-                    pattern.appendChild( doc.createCDATASection(resourceTypeDetail.getPattern()) );
-                    item.appendChild(pattern);
-
-                    Element fileDetail = doc.createElementNS(null, "fileDetail");
-                    fileDetail.appendChild( doc.createCDATASection(resourceTypeDetail.getFileDetail()) );
-                    item.appendChild(fileDetail);
-
-                    Element value = doc.createElementNS(null, "value");
-                    value.appendChild( doc.createCDATASection(resourceTypeDetail.getValue()) );
-                    item.appendChild(value);
-                    
-                    root.appendChild( item );
-                }
-                
-                doc.appendChild( root );
-                
-                
-                OutputStream os = Files.newOutputStream(Paths.get(getBaseDirectory() + "/csp_external_resource_list.xml"), StandardOpenOption.CREATE);
-                Result result = new StreamResult(new OutputStreamWriter(os, "utf-8"));
-                DOMSource source = new DOMSource(doc);
-                TransformerFactory factory = TransformerFactory.newInstance();
-                Transformer xformer = factory.newTransformer();
-                xformer.setOutputProperty(OutputKeys.INDENT, "yes");
-                xformer.transform(source, result);
-                
+            return null;
+        }
+        
+        try {
+            
+            ResourceTypeDetailCache resourceTypeDetailCache = ResourceTypeDetailCache.read(file);
+            
+            if (resourceTypeDetailCache.isCompatible(getParser(), getBaseDirectory())) {
                 
-            } catch (ParserConfigurationException|ClassCastException|IOException|TransformerException e) {
-                log(e, Project.MSG_ERR);
+                return resourceTypeDetailCache;
             }
             
+            log("Ignoring cache written for another parser or base directory - " + file, Project.MSG_VERBOSE);
+            
+        } catch (IOException e) {
+            
+            log("Ignoring unreadable cache - " + file + ": " + e.getMessage(), Project.MSG_WARN);
         }
         
+        return null;
     }
     
-    private ResourceParser getScriptTagResourceParser() {
+    private void writeCache(ResourceTypeDetailCache resourceTypeDetailCache) {
         
-        return new ResourceParser() {
-
-            @Override
-            public List<ResourceTypeDetail> parseResource(String fileContent, Resource resource, String baseDirectory, StringBuilder logger) {
-                
-               return parseResourceToResourceTypeDetail(fileContent, resource, baseDirectory, logger, ResourceType.SCRIPT, SCRIPT_TAG_SRC_DOUBLEQUOTE_VALUE_PREFIX, SCRIPT_TAG_SRC_DOUBLEQUOTE_VALUE_SUFFIX, SCRIPT_TAG_SRC_SINGLEQUOTE_VALUE_PREFIX, SCRIPT_TAG_SRC_SINGLEQUOTE_VALUE_SUFFIX);
-            }
+        if ((getCacheFile()==null)||(getCacheFile().trim().equals(""))) {
+            
+            return;
+        }
+        
+        File file = new File(getCacheFile().trim());
+        
+        try {
             
-        };
+            resourceTypeDetailCache.write(file);
+            
+        } catch (IOException e) {
+            
+            log("Unable to write cache - " + file + ": " + e.getMessage(), Project.MSG_WARN);
+        }
     }
     
-    private ResourceParser getAnchorTagResourceParser() {
+    /**
+     * Parses the files, concurrently when more than one thread is configured.
+     * 
+     * @return the result of every file, keyed and ordered by file name
+     */
+    private Map<String, FileResult> parseFiles(DirectoryScanner directoryScanner, String[] files, final ResourceTypeDetailCache resourceTypeDetailCache) throws BuildException {
         
-        return new ResourceParser() {
-
-            @Override
-            public List<ResourceTypeDetail> parseResource(String fileContent, Resource resource, String baseDirectory, StringBuilder logger) {
+        final Map<String, FileResult> fileResults = new ConcurrentSkipListMap<String, FileResult>();
+        
+        int threads = Math.min(getThreads(), files.length);
+        
+        if (threads <= 1) {
+            
+            for (int i = 0; i < files.length; i++) {
+                
+                Resource resource = directoryScanner.getResource(files[i]);
                 
-                return parseResourceToResourceTypeDetail(fileContent, resource, baseDirectory, logger, ResourceType.ANCHOR, ANCHOR_TAG_HREF_DOUBLEQUOTE_VALUE_PREFIX, ANCHOR_TAG_HREF_DOUBLEQUOTE_VALUE_SUFFIX, ANCHOR_TAG_HREF_SINGLEQUOTE_VALUE_PREFIX, ANCHOR_TAG_HREF_SINGLEQUOTE_VALUE_SUFFIX);
+                if (resource!=null && !resource.isDirectory()) {
+                    
+                    fileResults.put(files[i], parseFile(files[i], resource, resourceTypeDetailCache));
+                }
             }
             
-        };
-    }
-    
-    private ResourceParser getImageTagResourceParser() {
+            return fileResults;
+        }
         
-        return new ResourceParser() {
-
+        final AtomicInteger threadCount = new AtomicInteger();
+        
+        ExecutorService executorService = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            
             @Override
-            public List<ResourceTypeDetail> parseResource(String fileContent, Resource resource, String baseDirectory, StringBuilder logger) {
+            public Thread newThread(Runnable runnable) {
                 
-                return parseResourceToResourceTypeDetail(fileContent, resource, baseDirectory, logger, ResourceType.IMAGE, IMAGE_TAG_SRC_DOUBLEQUOTE_VALUE_PREFIX, IMAGE_TAG_SRC_DOUBLEQUOTE_VALUE_SUFFIX, IMAGE_TAG_SRC_SINGLEQUOTE_VALUE_PREFIX, IMAGE_TAG_SRC_SINGLEQUOTE_VALUE_SUFFIX);
+                Thread thread = new Thread(runnable, "csp-collector-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
             }
-            
-        };
-    }
-    
-    private ResourceParser getFrameTagResourceParser() {
+        });
         
-        return new ResourceParser() {
-
-            @Override
-            public List<ResourceTypeDetail> parseResource(String fileContent, Resource resource, String baseDirectory, StringBuilder logger) {
+        try {
+            
+            List<Future<?>> futures = new ArrayList<Future<?>>(files.length);
             
-                return parseResourceToResourceTypeDetail(fileContent, resource, baseDirectory, logger, ResourceType.FRAME, FRAME_TAG_SRC_DOUBLEQUOTE_VALUE_PREFIX, FRAME_TAG_SRC_DOUBLEQUOTE_VALUE_SUFFIX, FRAME_TAG_SRC_SINGLEQUOTE_VALUE_PREFIX, FRAME_TAG_SRC_SINGLEQUOTE_VALUE_SUFFIX);
+            for (int i = 0; i < files.length; i++) {
+                
+                final String file = files[i];
+                
+                final Resource resource = directoryScanner.getResource(file);
+                
+                if (resource!=null && !resource.isDirectory()) {
+                    
+                    futures.add(executorService.submit(new Callable<Void>() {
+                        
+                        @Override
+                        public Void call() {
+                            
+                            fileResults.put(file, parseFile(file, resource, resourceTypeDetailCache));
+                            
+                            return null;
+                        }
+                    }));
+                }
             }
             
-        };
-    }
-    
-    private boolean doesStringContainsHttpProtocol(String srcValue) {
-        
-        if ((srcValue!=null)&&(!srcValue.trim().equals(""))) {
+            for (Future<?> future: futures) {
+                
+                future.get();
+            }
             
-            Pattern pattern = Pattern.compile(HTTP_MATCHER_REGEX);
+        } catch (InterruptedException e) {
             
-            Matcher matcher = pattern.matcher(srcValue);
+            Thread.currentThread().interrupt();
             
-            if (matcher.find()) {
-                return true;
-            }
+            throw new BuildException("Interrupted while collecting resources", e);
+            
+        } catch (ExecutionException e) {
+            
+            throw new BuildException("Unable to collect resources", e.getCause());
+            
+        } finally {
+            
+            executorService.shutdownNow();
         }
         
-        return false;
+        return fileResults;
     }
     
-    private List<ResourceTypeDetail> parseResourceToResourceTypeDetail(String fileContent, Resource resource, String baseDirectory, StringBuilder logger, ResourceType resourceType, String doubleQuoteValuePrefix, String doubleQuoteValueSuffix, String singleQuoteValuePrefix, String singleQuoteValueSuffix, String typeAttributeDoubleQuoteValue, String typeAttributeSingleQuoteValue) {
+    /**
+     * Reads a file and runs every resource parser on it, unless the cache shows it is unchanged. Safe to call
+     * from several threads, each file logs into its own result.
+     */
+    private FileResult parseFile(String file, Resource resource, ResourceTypeDetailCache resourceTypeDetailCache) {
         
-        assert fileContent!=null;
+        FileResult fileResult = new FileResult();
         
-        assert resource!=null;
+        long size = resource.getSize();
         
-        assert baseDirectory!=null;
-        
-        assert logger!=null;
-        
-        assert resourceType!=null;
-        
-        assert doubleQuoteValuePrefix!=null;
-
-        assert doubleQuoteValueSuffix!=null;
-
-        assert singleQuoteValuePrefix!=null;
-
-        assert singleQuoteValueSuffix!=null;
+        long lastModified = resource.getLastModified();
         
-        List<ResourceTypeDetail> resourceTypeDetails = null;
+        ResourceTypeDetailCache.Entry cachedEntry = (resourceTypeDetailCache!=null) ? resourceTypeDetailCache.getUnchanged(file, size, lastModified) : null;
         
-        Pattern pattern = Pattern.compile(resourceType.getPattern(), Pattern.DOTALL);
-
-        Matcher matcher = pattern.matcher(fileContent);
+        if (cachedEntry!=null) {
+            
+            addCachedResourceTypeDetails(fileResult, cachedEntry);
+            
+            fileResult.entry = cachedEntry;
+            
+            return fileResult;
+        }
         
-        while (matcher.find()) {
+        try {
+            
+            ByteBuffer bytes = ResourceContentReader.readBytes(resource);
+            
+            fileResult.read = true;
             
-            String group = matcher.group();
+            byte[] hash = ResourceTypeDetailCache.hash(bytes);
             
-            if ((group != null)&&(((typeAttributeDoubleQuoteValue == null) || ((typeAttributeDoubleQuoteValue != null) && (group.contains(typeAttributeDoubleQuoteValue)))) || ((typeAttributeSingleQuoteValue == null) || ((typeAttributeSingleQuoteValue != null) && (group.contains(typeAttributeSingleQuoteValue)))))) {
+            cachedEntry = (resourceTypeDetailCache!=null) ? resourceTypeDetailCache.get(file) : null;
+            
+            if ((cachedEntry!=null)&&(cachedEntry.hasHash(hash))) {
                 
-                String tagSrcValue = null;
+                // touched but not changed
+                addCachedResourceTypeDetails(fileResult, cachedEntry);
                 
-                String tagPrefixPattern = null;
+            } else if (bytes.hasRemaining()) {
                 
-                String tagSuffixPattern = null;
+                CharBuffer fileContent = ResourceContentReader.decode(bytes);
                 
-                int tagSrcValuePrefixIndex = group.indexOf(doubleQuoteValuePrefix);
+                fileResult.parsed = true;
                 
-                if (tagSrcValuePrefixIndex!=-1) {
-                    
-                    tagPrefixPattern = doubleQuoteValuePrefix;
+                for (ResourceParser resourceParser: getResourceParsers()) {
                     
-                    tagSuffixPattern = doubleQuoteValueSuffix;
+                    assert resourceParser!=null;
                     
-                } else {
+                    List<ResourceTypeDetail> parsedResourceTypeDetails = resourceParser.parseResource(fileContent, resource, getBaseDirectory(), fileResult.logger);
                     
-                    tagSrcValuePrefixIndex = group.indexOf(singleQuoteValuePrefix);
-                    
-                    if (tagSrcValuePrefixIndex!=-1) {
-                        
-                        tagPrefixPattern = singleQuoteValuePrefix;
-                        
-                        tagSuffixPattern = singleQuoteValueSuffix;
-                    }
-                }
-                
-                if (tagSrcValuePrefixIndex!=-1) {
-                    
-                    String groupSubString = group.substring(tagSrcValuePrefixIndex + tagPrefixPattern.length());
-                    
-                    if (groupSubString!=null) {
+                    if ((parsedResourceTypeDetails!=null)&&(!parsedResourceTypeDetails.isEmpty())) {
                         
-                        int tagSrcValueSuffixIndex = groupSubString.indexOf(tagSuffixPattern);
-                        
-                        if (tagSrcValueSuffixIndex!=-1) {
-                            
-                            tagSrcValue = groupSubString.substring(0, tagSrcValueSuffixIndex);
-                            
-                        }
-                        
-                    }
-                    
-                }
-                
-                if ((tagSrcValue!=null)&&(doesStringContainsHttpProtocol(tagSrcValue))) {
-                    
-                    if (resourceTypeDetails==null) {
-                        resourceTypeDetails = new ArrayList<ResourceTypeDetail>();
+                        fileResult.resourceTypeDetails.addAll(parsedResourceTypeDetails);
                     }
-                    
-                    ResourceTypeDetail resourceTypeDetail = ContentSecurityPolicyFactory.INSTANCE.getResourceTypeDetailInstance();
-                    resourceTypeDetail.setFileDetail(getFullyQualifiedPath(baseDirectory, resource));
-                    resourceTypeDetail.setName(resourceType.getName());
-                    resourceTypeDetail.setPattern(resourceType.getPattern());
-                    resourceTypeDetail.setValue(tagSrcValue);
-                    
-                    resourceTypeDetails.add(resourceTypeDetail);
-                    
-                    logger.append("File: " + resourceTypeDetail.getFileDetail() + " has " + resourceTypeDetail.getName() + " with value " + resourceTypeDetail.getValue());
-                    logger.append(System.getProperty("line.separator"));
-                    
                 }
-                
             }
-
+            
+            fileResult.entry = new ResourceTypeDetailCache.Entry(size, lastModified, hash, fileResult.resourceTypeDetails);
+            
+        } catch (IOException e) {
+            
+            fileResult.exception = e;
         }
         
-        return resourceTypeDetails;
+        return fileResult;
     }
     
-    
-    private List<ResourceTypeDetail> parseResourceToResourceTypeDetail(String fileContent, Resource resource, String baseDirectory, StringBuilder logger, ResourceType resourceType, String doubleQuoteValuePrefix, String doubleQuoteValueSuffix, String singleQuoteValuePrefix, String singleQuoteValueSuffix) {
+    private void addCachedResourceTypeDetails(FileResult fileResult, ResourceTypeDetailCache.Entry cachedEntry) {
         
-        return parseResourceToResourceTypeDetail(fileContent, resource, baseDirectory, logger, resourceType, doubleQuoteValuePrefix, doubleQuoteValueSuffix, singleQuoteValuePrefix, singleQuoteValueSuffix, null, null);
+        for (ResourceTypeDetail resourceTypeDetail: cachedEntry.getResourceTypeDetails()) {
+            
+            fileResult.resourceTypeDetails.add(resourceTypeDetail);
+            
+            fileResult.logger.append("File: " + resourceTypeDetail.getFileDetail() + " has " + resourceTypeDetail.getName() + " with value " + resourceTypeDetail.getValue());
+            fileResult.logger.append(System.getProperty("line.separator"));
+        }
     }
     
-    private ResourceParser getLinkTagResourceParser() {
+    private void generateXMLReport(List<ResourceTypeDetail> resourceTypeDetails) {
         
-        return new ResourceParser() {
-
-            @Override
-            public List<ResourceTypeDetail> parseResource(String fileContent, Resource resource, String baseDirectory, StringBuilder logger) {
-                
-                return parseResourceToResourceTypeDetail(fileContent, resource, baseDirectory, logger, ResourceType.LINK, LINK_TAG_HREF_DOUBLEQUOTE_VALUE_PREFIX, LINK_TAG_HREF_DOUBLEQUOTE_VALUE_SUFFIX, LINK_TAG_HREF_SINGLEQUOTE_VALUE_PREFIX, LINK_TAG_HREF_SINGLEQUOTE_VALUE_SUFFIX, LINK_TAG_MANIFEST_DOUBLEQUOTE_VALUE, LINK_TAG_MANIFEST_SINGLEQUOTE_VALUE);
-            }
+        if ((resourceTypeDetails!=null)&&(!resourceTypeDetails.isEmpty())) {
             
-        };
-    }    
-    
-    private ResourceParser getStyleTagResourceParser() {
-        
-        return new ResourceParser() {
-
-            @Override
-            public List<ResourceTypeDetail> parseResource(String fileContent, Resource resource, String baseDirectory, StringBuilder logger) {
-                
-                return parseResourceToResourceTypeDetail(fileContent, resource, baseDirectory, logger, ResourceType.STYLE, STYLE_TAG_HREF_DOUBLEQUOTE_VALUE_PREFIX, STYLE_TAG_HREF_DOUBLEQUOTE_VALUE_SUFFIX, STYLE_TAG_HREF_SINGLEQUOTE_VALUE_PREFIX, STYLE_TAG_HREF_SINGLEQUOTE_VALUE_SUFFIX, STYLE_TAG_STYLESHEET_DOUBLEQUOTE_VALUE, STYLE_TAG_STYLESHEET_SINGLEQUOTE_VALUE);
-            }
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            DocumentBuilder db;
             
-        };
-    }    
-    
-    private String getInputStreamContentAsString(InputStream inputStream) {
-        
-        assert inputStream!=null;
-        
-        StringBuilder rawContent = null;
-
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream))) {
+            try {
+                
+                db = dbf.newDocumentBuilder();
+                Document doc = db.newDocument();
+                Element root = doc.createElementNS(null, "resourceType");
+                
+                for (ResourceTypeDetail resourceTypeDetail: resourceTypeDetails) {
+                    
+                    Element item = doc.createElementNS(null, "resourceTypeDetail");
+                    
+                    Element name = doc.createElementNS(null, "name");
+                    name.appendChild( doc.createTextNode(resourceTypeDetail.getName()) );
+                    item.appendChild(name);
+                    
+                    Element pattern = doc.createElementNS(null, "pattern");
+                    pattern.appendChild( doc.createCDATASection(resourceTypeDetail.getPattern()) );
+                    item.appendChild(pattern);
 
-            int c = bufferedReader.read();
-            while (c != -1) {
+                    Element fileDetail = doc.createElementNS(null, "fileDetail");
+                    fileDetail.appendChild( doc.createCDATASection(resourceTypeDetail.getFileDetail()) );
+                    item.appendChild(fileDetail);
 
-                if (rawContent == null) {
-                    rawContent = new StringBuilder();
+                    Element value = doc.createElementNS(null, "value");
+                    value.appendChild( doc.createCDATASection(resourceTypeDetail.getValue()) );
+                    item.appendChild(value);
+                    
+                    root.appendChild( item );
                 }
-                rawContent.append((char) c);
-
-                c = bufferedReader.read();
+                
+                doc.appendChild( root );
+                
+                
+                // truncated, so a shorter list never leaves the tail of the previous one behind
+                try (OutputStream os = Files.newOutputStream(Paths.get(getBaseDirectory() + "/csp_external_resource_list.xml"), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                        OutputStreamWriter writer = new OutputStreamWriter(os, "utf-8")) {
+                    
+                    Result result = new StreamResult(writer);
+                    DOMSource source = new DOMSource(doc);
+                    TransformerFactory factory = TransformerFactory.newInstance();
+                    Transformer xformer = factory.newTransformer();
+                    xformer.setOutputProperty(OutputKeys.INDENT, "yes");
+                    xformer.transform(source, result);
+                }
+                
+                
+            } catch (ParserConfigurationException|ClassCastException|IOException|TransformerException e) {
+                log(e, Project.MSG_ERR);
             }
             
-        } catch (IOException e) {
-            
-            log(e, Project.MSG_ERR);
-
-        }
-        
-        if (rawContent!=null) {
-
-            return rawContent.toString();
-            
         }
         
-        return null;
     }
     
 /*    private void scriptTest() {
@@ -531,17 +536,6 @@ public class ContentSecurityPolicyWhiteListCollector extends MatchingTask {
         
     }*/
     
-    private String getFullyQualifiedPath(String baseDirectory, Resource resource) {
-        
-        if ((baseDirectory!=null)&&(resource!=null)&&(resource.getName()!=null)) {
-            
-            return baseDirectory + "/" + resource.getName().replaceAll(Matcher.quoteReplacement("\\"), "/");
-            
-        }
-        
-        return null;
-    }
-    
     private String[] splitAndTrim() {
         
         if ((getIncludes()!=null)) {
@@ -582,6 +576,51 @@ public class ContentSecurityPolicyWhiteListCollector extends MatchingTask {
         this.includes = includes;
     }
     
+    private int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
+    private String getParser() {
+        return parser;
+    }
+
+    /**
+     * @param parser "pattern" or "tokenizer"
+     */
+    public void setParser(String parser) throws BuildException {
+        
+        List<ResourceParser> resourceParsers = new ArrayList<ResourceParser>();
+        
+        if ((parser==null)||(parser.trim().equals(""))||(PATTERN_PARSER.equals(parser.trim()))) {
+            
+            resourceParsers.add(new MultiTagResourceParser());
+            this.parser = PATTERN_PARSER;
+            
+        } else if (TOKENIZER_PARSER.equals(parser.trim())) {
+            
+            resourceParsers.add(new HtmlTokenizerResourceParser());
+            this.parser = TOKENIZER_PARSER;
+            
+        } else {
+            
+            throw new BuildException("Unknown parser " + parser + ", expected " + PATTERN_PARSER + " or " + TOKENIZER_PARSER);
+        }
+        
+        setResourceParsers(resourceParsers);
+    }
+    
+    private String getCacheFile() {
+        return cacheFile;
+    }
+
+    public void setCacheFile(String cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+    
     private List<ResourceParser> getResourceParsers() {
         return resourceParsers;
     }
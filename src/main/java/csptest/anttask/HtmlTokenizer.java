@@ -0,0 +1,573 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.anttask;
+
+import java.util.Locale;
+
+/**
+ * Single pass tokenizer for HTML and JSP sources, reporting start tags and their attributes.
+ * 
+ * The content is walked once from start to end with a small state machine and never backtracks. Comments,
+ * JSP comments, CDATA sections, doctype/processing instructions, end tags and &lt;% ... %&gt; scriptlets,
+ * expressions and directives are skipped. The bodies of script, style, textarea and title elements are raw
+ * text up to their end tag. Within a script body only the string literals are tokenized, as markup a script
+ * may write into the page, e.g. document.write('&lt;script src="..."&gt;&lt;\/script&gt;').
+ * 
+ * Attribute values may be double quoted, single quoted or unquoted. JSP embedded in a start tag is skipped
+ * as a unit, wherever it appears: &lt;% ... %&gt; blocks, ${...} and #{...} EL expressions and custom tags
+ * such as &lt;c:url value="..."/&gt;, even when they use the same quote as the enclosing attribute value.
+ * Custom tags in the page itself, e.g. &lt;c:if&gt;, are reported like any other tag.
+ * 
+ * Tag and attribute names are reported in lower case; attribute values are reported as written.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public abstract class HtmlTokenizer {
+    
+    private static final String SCRIPT_TAG_NAME = "script";
+    
+    private static final String[] RAW_TEXT_TAG_NAMES = new String[] {"script", "style", "textarea", "title"};
+    
+    /**
+     * JSP nested inside a start tag deeper than this is taken as text.
+     */
+    private static final int MAX_NESTING = 8;
+    
+    /**
+     * Called for every start tag, before its attributes.
+     */
+    protected abstract void startTag(String tagName);
+    
+    /**
+     * Called for every attribute of the current start tag; the value is null for an attribute without one.
+     */
+    protected abstract void attribute(String attributeName, String attributeValue);
+    
+    /**
+     * Called once the current start tag is complete. Not called for a start tag cut off by the end of the content.
+     */
+    protected abstract void endStartTag();
+    
+    /**
+     * Tokenizes the content, in time linear in its length.
+     */
+    public final void tokenize(CharSequence content) {
+        
+        int length = content.length();
+        
+        int i = 0;
+        
+        while (i < length) {
+            
+            if (content.charAt(i)=='<') {
+                
+                i = markup(content, i, length);
+                
+            } else {
+                
+                i++;
+            }
+        }
+    }
+    
+    /**
+     * @return the position after the markup starting with the '&lt;' at start
+     */
+    private int markup(CharSequence content, int start, int length) {
+        
+        if (startsWith(content, start, length, "<!--")) {
+            
+            return skipPast(content, start + 4, length, "-->");
+        }
+        
+        if (startsWith(content, start, length, "<%--")) {
+            
+            return skipPast(content, start + 4, length, "--%>");
+        }
+        
+        if (startsWith(content, start, length, "<%")) {
+            
+            return skipPast(content, start + 2, length, "%>");
+        }
+        
+        if (startsWith(content, start, length, "<![CDATA[")) {
+            
+            return skipPast(content, start + 9, length, "]]>");
+        }
+        
+        int next = start + 1;
+        
+        if (next==length) {
+            
+            return length;
+        }
+        
+        char c = content.charAt(next);
+        
+        if ((c=='!')||(c=='?')) {
+            
+            return skipPast(content, next, length, ">");
+        }
+        
+        if (c=='/') {
+            
+            return ((next + 1 < length)&&(isLetter(content.charAt(next + 1)))) ? skipPast(content, next + 1, length, ">") : next;
+        }
+        
+        if (!isLetter(c)) {
+            
+            return next;
+        }
+        
+        return tag(content, start, length, 0);
+    }
+    
+    /**
+     * Reads the start tag at start. Tags nested inside another start tag (depth &gt; 0) are skipped without being reported.
+     * 
+     * @return the position after the tag, or after the raw text body of a script, style, textarea or title element
+     */
+    private int tag(CharSequence content, int start, int length, int depth) {
+        
+        int nameEnd = start + 1;
+        
+        while ((nameEnd < length)&&(isNameChar(content.charAt(nameEnd)))) {
+            
+            nameEnd++;
+        }
+        
+        String tagName = content.subSequence(start + 1, nameEnd).toString().toLowerCase(Locale.ENGLISH);
+        
+        boolean report = (depth==0);
+        
+        if (report) {
+            
+            startTag(tagName);
+        }
+        
+        boolean selfClosing = false;
+        
+        int i = nameEnd;
+        
+        while (i < length) {
+            
+            char c = content.charAt(i);
+            
+            if (c=='>') {
+                
+                i++;
+                
+                if (report) {
+                    
+                    endStartTag();
+                    
+                    if ((!selfClosing)&&(SCRIPT_TAG_NAME.equals(tagName))) {
+                        
+                        return scriptBody(content, i, length);
+                    }
+                    
+                    if ((!selfClosing)&&(isRawTextTagName(tagName))) {
+                        
+                        return skipRawText(content, i, length, tagName);
+                    }
+                }
+                
+                return i;
+            }
+            
+            if (c=='/') {
+                
+                selfClosing = true;
+                i++;
+                continue;
+            }
+            
+            selfClosing = false;
+            
+            if (isWhitespace(c)) {
+                
+                i++;
+                
+            } else if (c=='<') {
+                
+                i = nested(content, i, length, depth);
+                
+            } else {
+                
+                i = attribute(content, i, length, depth, report);
+            }
+        }
+        
+        return length;
+    }
+    
+    /**
+     * Reads the attribute whose name starts at start.
+     * 
+     * @return the position after the attribute
+     */
+    private int attribute(CharSequence content, int start, int length, int depth, boolean report) {
+        
+        int i = start;
+        
+        while (i < length) {
+            
+            char c = content.charAt(i);
+            
+            if ((isWhitespace(c))||(c=='=')||(c=='>')||(c=='/')||(c=='<')) {
+                
+                break;
+            }
+            
+            i++;
+        }
+        
+        int nameEnd = i;
+        
+        while ((i < length)&&(isWhitespace(content.charAt(i)))) {
+            
+            i++;
+        }
+        
+        String attributeValue = null;
+        
+        if ((i < length)&&(content.charAt(i)=='=')) {
+            
+            i++;
+            
+            while ((i < length)&&(isWhitespace(content.charAt(i)))) {
+                
+                i++;
+            }
+            
+            int valueStart = i;
+            
+            int valueEnd;
+            
+            if ((i < length)&&((content.charAt(i)=='"')||(content.charAt(i)=='\''))) {
+                
+                char quote = content.charAt(i);
+                
+                valueStart = ++i;
+                
+                while ((i < length)&&(content.charAt(i)!=quote)) {
+                    
+                    i = valueChar(content, i, length, depth);
+                }
+                
+                valueEnd = Math.min(i, length);
+                
+                i = Math.min(i + 1, length);
+                
+            } else {
+                
+                while ((i < length)&&(!isWhitespace(content.charAt(i)))&&(content.charAt(i)!='>')) {
+                    
+                    i = valueChar(content, i, length, depth);
+                }
+                
+                valueEnd = Math.min(i, length);
+            }
+            
+            if (report) {
+                
+                attributeValue = content.subSequence(valueStart, valueEnd).toString();
+            }
+            
+        } else {
+            
+            // no value, continue from the end of the name so the next attribute or '>' is not lost
+            i = nameEnd;
+        }
+        
+        if ((report)&&(nameEnd > start)) {
+            
+            attribute(content.subSequence(start, nameEnd).toString().toLowerCase(Locale.ENGLISH), attributeValue);
+        }
+        
+        return (i > start) ? i : start + 1;
+    }
+    
+    /**
+     * Steps over one character of an attribute value, or over the whole of a JSP construct starting there.
+     * 
+     * @return the position after it
+     */
+    private int valueChar(CharSequence content, int i, int length, int depth) {
+        
+        char c = content.charAt(i);
+        
+        if (c=='<') {
+            
+            return nested(content, i, length, depth);
+        }
+        
+        if (((c=='$')||(c=='#'))&&(i + 1 < length)&&(content.charAt(i + 1)=='{')) {
+            
+            return skipExpression(content, i + 2, length);
+        }
+        
+        return i + 1;
+    }
+    
+    /**
+     * Skips a JSP block or custom tag starting with the '&lt;' at start inside a start tag; any other '&lt;' is text.
+     * 
+     * @return the position after it
+     */
+    private int nested(CharSequence content, int start, int length, int depth) {
+        
+        if (startsWith(content, start, length, "<%")) {
+            
+            return skipPast(content, start + 2, length, "%>");
+        }
+        
+        if (depth < MAX_NESTING) {
+            
+            if ((start + 1 < length)&&(content.charAt(start + 1)=='/')) {
+                
+                if (isCustomTagName(content, start + 2, length)) {
+                    
+                    return skipPast(content, start + 2, length, ">");
+                }
+                
+            } else if (isCustomTagName(content, start + 1, length)) {
+                
+                return tag(content, start, length, depth + 1);
+            }
+        }
+        
+        return start + 1;
+    }
+    
+    /**
+     * Walks a script body starting at start, tokenizing the string literals that contain markup. Comments are
+     * skipped; regular expression literals are not recognised.
+     * 
+     * @return the position of the end tag closing the body, or the end of the content
+     */
+    private int scriptBody(CharSequence content, int start, int length) {
+        
+        int end = skipRawText(content, start, length, SCRIPT_TAG_NAME);
+        
+        int i = start;
+        
+        while (i < end) {
+            
+            char c = content.charAt(i++);
+            
+            if ((c=='/')&&(i < end)&&(content.charAt(i)=='/')) {
+                
+                while ((i < end)&&(content.charAt(i)!='\n')) {
+                    
+                    i++;
+                }
+                
+            } else if ((c=='/')&&(i < end)&&(content.charAt(i)=='*')) {
+                
+                i = Math.min(skipPast(content, i + 1, end, "*/"), end);
+                
+            } else if ((c=='"')||(c=='\'')||(c=='`')) {
+                
+                StringBuilder literal = null;
+                
+                while ((i < end)&&(content.charAt(i)!=c)&&((c=='`')||(content.charAt(i)!='\n'))) {
+                    
+                    char d = content.charAt(i++);
+                    
+                    if ((d=='\\')&&(i < end)) {
+                        
+                        d = content.charAt(i++);
+                    }
+                    
+                    if ((literal==null)&&(d=='<')) {
+                        
+                        literal = new StringBuilder();
+                    }
+                    
+                    if (literal!=null) {
+                        
+                        literal.append(d);
+                    }
+                }
+                
+                i++;
+                
+                if (literal!=null) {
+                    
+                    tokenize(literal);
+                }
+            }
+        }
+        
+        return end;
+    }
+    
+    /**
+     * Skips an EL expression whose body starts at start, honouring quoted strings inside it.
+     * 
+     * @return the position after its closing '}'
+     */
+    private static int skipExpression(CharSequence content, int start, int length) {
+        
+        int i = start;
+        
+        while (i < length) {
+            
+            char c = content.charAt(i++);
+            
+            if (c=='}') {
+                
+                return i;
+            }
+            
+            if ((c=='"')||(c=='\'')) {
+                
+                while ((i < length)&&(content.charAt(i)!=c)) {
+                    
+                    i += (content.charAt(i)=='\\') ? 2 : 1;
+                }
+                
+                i++;
+            }
+        }
+        
+        return length;
+    }
+    
+    /**
+     * @return the position of the end tag closing the raw text body starting at start, or the end of the content
+     */
+    private static int skipRawText(CharSequence content, int start, int length, String tagName) {
+        
+        for (int i = start; i < length; i++) {
+            
+            if ((content.charAt(i)=='<')&&(i + 1 < length)&&(content.charAt(i + 1)=='/')&&(startsWithIgnoreCase(content, i + 2, length, tagName))) {
+                
+                int end = i + 2 + tagName.length();
+                
+                if ((end==length)||(!isNameChar(content.charAt(end)))) {
+                    
+                    return i;
+                }
+            }
+        }
+        
+        return length;
+    }
+    
+    /**
+     * @return the position after the first occurrence of str at or after start, or the end of the content
+     */
+    private static int skipPast(CharSequence content, int start, int length, String str) {
+        
+        char first = str.charAt(0);
+        
+        for (int i = start; i < length; i++) {
+            
+            if ((content.charAt(i)==first)&&(startsWith(content, i, length, str))) {
+                
+                return i + str.length();
+            }
+        }
+        
+        return length;
+    }
+    
+    /**
+     * @return true when the name at start is a prefixed JSP custom tag name, e.g. c:url
+     */
+    private static boolean isCustomTagName(CharSequence content, int start, int length) {
+        
+        if ((start >= length)||(!isLetter(content.charAt(start)))) {
+            
+            return false;
+        }
+        
+        for (int i = start + 1; (i < length)&&(isNameChar(content.charAt(i))); i++) {
+            
+            if (content.charAt(i)==':') {
+                
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static boolean isRawTextTagName(String tagName) {
+        
+        for (String rawTextTagName: RAW_TEXT_TAG_NAMES) {
+            
+            if (rawTextTagName.equals(tagName)) {
+                
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static boolean startsWith(CharSequence content, int start, int length, String str) {
+        
+        if (start + str.length() > length) {
+            
+            return false;
+        }
+        
+        for (int i = 0; i < str.length(); i++) {
+            
+            if (content.charAt(start + i)!=str.charAt(i)) {
+                
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static boolean startsWithIgnoreCase(CharSequence content, int start, int length, String lowerCaseStr) {
+        
+        if (start + lowerCaseStr.length() > length) {
+            
+            return false;
+        }
+        
+        for (int i = 0; i < lowerCaseStr.length(); i++) {
+            
+            char c = content.charAt(start + i);
+            
+            if ((((c >= 'A')&&(c <= 'Z')) ? (char)(c + ('a' - 'A')) : c)!=lowerCaseStr.charAt(i)) {
+                
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static boolean isLetter(char c) {
+        return ((c >= 'a')&&(c <= 'z'))||((c >= 'A')&&(c <= 'Z'));
+    }
+    
+    private static boolean isNameChar(char c) {
+        return (isLetter(c))||((c >= '0')&&(c <= '9'))||(c==':')||(c=='-')||(c=='_')||(c=='.');
+    }
+    
+    private static boolean isWhitespace(char c) {
+        return (c==' ')||(c=='\t')||(c=='\n')||(c=='\r')||(c=='\f');
+    }
+    
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.anttask;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.tools.ant.types.Resource;
+
+import csptest.common.ResourceParser;
+import csptest.common.ResourceType;
+import csptest.common.ResourceTypeDetail;
+
+/**
+ * {@link ResourceParser} built on {@link HtmlTokenizer}: resources are taken from the attributes of the start
+ * tags the tokenizer reports rather than from text matched by the {@link ResourceType} patterns.
+ * 
+ * Unlike {@link MultiTagResourceParser}, tag and attribute names are matched case insensitively and exactly
+ * (&lt;abbr&gt; is not an anchor), unquoted values are found, markup inside comments and scriptlets is ignored,
+ * script bodies are only searched in their string literals, and a link is a manifest or stylesheet when its rel
+ * attribute lists that keyword.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class HtmlTokenizerResourceParser implements ResourceParser {
+    
+    private static final String SRC_ATTRIBUTE = "src";
+    private static final String HREF_ATTRIBUTE = "href";
+    private static final String REL_ATTRIBUTE = "rel";
+    
+    private static final String MANIFEST_REL = "manifest";
+    private static final String STYLESHEET_REL = "stylesheet";
+    
+    @Override
+    public List<ResourceTypeDetail> parseResource(CharSequence fileContent, Resource resource, String baseDirectory, StringBuilder logger) {
+        
+        assert fileContent!=null;
+        
+        assert resource!=null;
+        
+        assert baseDirectory!=null;
+        
+        assert logger!=null;
+        
+        final ResourceTypeDetailBuffer resourceTypeDetailBuffer = new ResourceTypeDetailBuffer(resource, baseDirectory, logger);
+        
+        HtmlTokenizer htmlTokenizer = new HtmlTokenizer() {
+            
+            private String tagName;
+            
+            private String src;
+            
+            private String href;
+            
+            private String rel;
+            
+            @Override
+            protected void startTag(String tagName) {
+                
+                this.tagName = tagName;
+                this.src = null;
+                this.href = null;
+                this.rel = null;
+            }
+            
+            @Override
+            protected void attribute(String attributeName, String attributeValue) {
+                
+                // the first of repeated attributes wins, as in browsers
+                if ((SRC_ATTRIBUTE.equals(attributeName))&&(src==null)) {
+                    
+                    src = attributeValue;
+                    
+                } else if ((HREF_ATTRIBUTE.equals(attributeName))&&(href==null)) {
+                    
+                    href = attributeValue;
+                    
+                } else if ((REL_ATTRIBUTE.equals(attributeName))&&(rel==null)) {
+                    
+                    rel = attributeValue;
+                }
+            }
+            
+            @Override
+            protected void endStartTag() {
+                
+                if ("script".equals(tagName)) {
+                    
+                    resourceTypeDetailBuffer.add(ResourceType.SCRIPT, trim(src));
+                    
+                } else if ("a".equals(tagName)) {
+                    
+                    resourceTypeDetailBuffer.add(ResourceType.ANCHOR, trim(href));
+                    
+                } else if ("img".equals(tagName)) {
+                    
+                    resourceTypeDetailBuffer.add(ResourceType.IMAGE, trim(src));
+                    
+                } else if ("iframe".equals(tagName)) {
+                    
+                    resourceTypeDetailBuffer.add(ResourceType.FRAME, trim(src));
+                    
+                } else if ("link".equals(tagName)) {
+                    
+                    if (hasRelKeyword(rel, MANIFEST_REL)) {
+                        
+                        resourceTypeDetailBuffer.add(ResourceType.LINK, trim(href));
+                    }
+                    
+                    if (hasRelKeyword(rel, STYLESHEET_REL)) {
+                        
+                        resourceTypeDetailBuffer.add(ResourceType.STYLE, trim(href));
+                    }
+                }
+            }
+        };
+        
+        htmlTokenizer.tokenize(fileContent);
+        
+        return resourceTypeDetailBuffer.getResourceTypeDetails();
+    }
+    
+    private static String trim(String value) {
+        
+        return (value!=null) ? value.trim() : null;
+    }
+    
+    /**
+     * @return true when the space separated rel value lists the keyword, ignoring case
+     */
+    private static boolean hasRelKeyword(String rel, String keyword) {
+        
+        if ((rel!=null)&&(!rel.trim().equals(""))) {
+            
+            for (String relKeyword: rel.trim().toLowerCase(Locale.ENGLISH).split("\\s+")) {
+                
+                if (keyword.equals(relKeyword)) {
+                    
+                    return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+}
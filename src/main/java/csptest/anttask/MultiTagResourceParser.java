@@ -0,0 +1,283 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.anttask;
+
+import java.util.List;
+
+import org.apache.tools.ant.types.Resource;
+
+import csptest.common.ResourceParser;
+import csptest.common.ResourceType;
+import csptest.common.ResourceTypeDetail;
+
+/**
+ * {@link ResourceParser} that extracts the external resources of every {@link ResourceType} in a single pass
+ * over the file, instead of one regular expression scan per type.
+ * 
+ * The file is walked from '&lt;' to '&lt;' and dispatched on the character that follows. Each tag keeps the
+ * semantics of its {@link ResourceType#getPattern()}, e.g. &lt;script.*?&lt;/script&gt;: a match runs from
+ * the tag start to the first terminator after it and the next match of the same tag starts after that
+ * terminator. Matches are never copied out of the file; the attribute value is searched for within the match.
+ * LINK and STYLE share their pattern, so each link tag is found once and checked for both.
+ * 
+ * Results are returned grouped by resource type, in {@link ResourceType} order, then in file order, as the
+ * per-type parsers did.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class MultiTagResourceParser implements ResourceParser {
+    
+    private static final String DOUBLEQUOTE_SUFFIX = "\"";
+    private static final String SINGLEQUOTE_SUFFIX = "'";
+    
+    private static final String SRC_DOUBLEQUOTE_PREFIX = "src=\"";
+    private static final String SRC_SINGLEQUOTE_PREFIX = "src='";
+    private static final String HREF_DOUBLEQUOTE_PREFIX = "href=\"";
+    private static final String HREF_SINGLEQUOTE_PREFIX = "href='";
+    
+    private static final String LINK_TAG_MANIFEST_DOUBLEQUOTE_VALUE = "rel=\"manifest\"";
+    private static final String LINK_TAG_MANIFEST_SINGLEQUOTE_VALUE = "rel='manifest'";
+    private static final String STYLE_TAG_STYLESHEET_DOUBLEQUOTE_VALUE = "rel=\"stylesheet\"";
+    private static final String STYLE_TAG_STYLESHEET_SINGLEQUOTE_VALUE = "rel='stylesheet'";
+    
+    /**
+     * How the resource value of one {@link ResourceType} is taken from a tag.
+     */
+    private static final class TagRule {
+        
+        private final ResourceType resourceType;
+        
+        private final String doubleQuoteValuePrefix;
+        
+        private final String singleQuoteValuePrefix;
+        
+        private final String typeAttributeDoubleQuoteValue;
+        
+        private final String typeAttributeSingleQuoteValue;
+        
+        private TagRule(ResourceType resourceType, String doubleQuoteValuePrefix, String singleQuoteValuePrefix, String typeAttributeDoubleQuoteValue, String typeAttributeSingleQuoteValue) {
+            this.resourceType = resourceType;
+            this.doubleQuoteValuePrefix = doubleQuoteValuePrefix;
+            this.singleQuoteValuePrefix = singleQuoteValuePrefix;
+            this.typeAttributeDoubleQuoteValue = typeAttributeDoubleQuoteValue;
+            this.typeAttributeSingleQuoteValue = typeAttributeSingleQuoteValue;
+        }
+    }
+    
+    /**
+     * A tag start, the terminator that ends its match and the rules applied to the match.
+     */
+    private static final class TagPattern {
+        
+        private final String start;
+        
+        private final String end;
+        
+        private final TagRule[] tagRules;
+        
+        private TagPattern(String start, String end, TagRule... tagRules) {
+            this.start = start;
+            this.end = end;
+            this.tagRules = tagRules;
+        }
+    }
+    
+    private static final TagPattern SCRIPT = new TagPattern("<script", "</script>", 
+            new TagRule(ResourceType.SCRIPT, SRC_DOUBLEQUOTE_PREFIX, SRC_SINGLEQUOTE_PREFIX, null, null));
+    
+    private static final TagPattern ANCHOR = new TagPattern("<a", "</a>", 
+            new TagRule(ResourceType.ANCHOR, HREF_DOUBLEQUOTE_PREFIX, HREF_SINGLEQUOTE_PREFIX, null, null));
+    
+    private static final TagPattern IMAGE = new TagPattern("<img", ">", 
+            new TagRule(ResourceType.IMAGE, SRC_DOUBLEQUOTE_PREFIX, SRC_SINGLEQUOTE_PREFIX, null, null));
+    
+    private static final TagPattern FRAME = new TagPattern("<iframe", "</iframe>", 
+            new TagRule(ResourceType.FRAME, SRC_DOUBLEQUOTE_PREFIX, SRC_SINGLEQUOTE_PREFIX, null, null));
+    
+    private static final TagPattern LINK = new TagPattern("<link", ">", 
+            new TagRule(ResourceType.LINK, HREF_DOUBLEQUOTE_PREFIX, HREF_SINGLEQUOTE_PREFIX, LINK_TAG_MANIFEST_DOUBLEQUOTE_VALUE, LINK_TAG_MANIFEST_SINGLEQUOTE_VALUE), 
+            new TagRule(ResourceType.STYLE, HREF_DOUBLEQUOTE_PREFIX, HREF_SINGLEQUOTE_PREFIX, STYLE_TAG_STYLESHEET_DOUBLEQUOTE_VALUE, STYLE_TAG_STYLESHEET_SINGLEQUOTE_VALUE));
+    
+    private static final TagPattern[] TAG_PATTERNS = new TagPattern[] {SCRIPT, ANCHOR, IMAGE, FRAME, LINK};
+    
+    @Override
+    public List<ResourceTypeDetail> parseResource(CharSequence fileContent, Resource resource, String baseDirectory, StringBuilder logger) {
+        
+        assert fileContent!=null;
+        
+        assert resource!=null;
+        
+        assert baseDirectory!=null;
+        
+        assert logger!=null;
+        
+        ResourceTypeDetailBuffer resourceTypeDetailBuffer = new ResourceTypeDetailBuffer(resource, baseDirectory, logger);
+        
+        // where the next match of each tag may start, the end of its previous match
+        int[] nextStart = new int[TAG_PATTERNS.length];
+        
+        int length = fileContent.length();
+        
+        for (int i = indexOf(fileContent, '<', 0, length); (i >= 0)&&(i + 1 < length); i = indexOf(fileContent, '<', i + 1, length)) {
+            
+            switch (fileContent.charAt(i + 1)) {
+            
+            case 's':
+                match(fileContent, i, 0, nextStart, resourceTypeDetailBuffer);
+                break;
+                
+            case 'a':
+                match(fileContent, i, 1, nextStart, resourceTypeDetailBuffer);
+                break;
+                
+            case 'i':
+                match(fileContent, i, 2, nextStart, resourceTypeDetailBuffer);
+                match(fileContent, i, 3, nextStart, resourceTypeDetailBuffer);
+                break;
+                
+            case 'l':
+                match(fileContent, i, 4, nextStart, resourceTypeDetailBuffer);
+                break;
+                
+            default:
+                break;
+            }
+        }
+        
+        return resourceTypeDetailBuffer.getResourceTypeDetails();
+    }
+    
+    private void match(CharSequence fileContent, int start, int tagPatternIndex, int[] nextStart, ResourceTypeDetailBuffer resourceTypeDetailBuffer) {
+        
+        TagPattern tagPattern = TAG_PATTERNS[tagPatternIndex];
+        
+        int length = fileContent.length();
+        
+        if ((start < nextStart[tagPatternIndex])||(!startsWith(fileContent, tagPattern.start, start, length))) {
+            
+            return;
+        }
+        
+        int terminator = indexOf(fileContent, tagPattern.end, start + tagPattern.start.length(), length);
+        
+        if (terminator < 0) {
+            
+            // no terminator further on, so the tag cannot match anywhere after this either
+            nextStart[tagPatternIndex] = Integer.MAX_VALUE;
+            return;
+        }
+        
+        int end = terminator + tagPattern.end.length();
+        
+        nextStart[tagPatternIndex] = end;
+        
+        for (TagRule tagRule: tagPattern.tagRules) {
+            
+            resourceTypeDetailBuffer.add(tagRule.resourceType, getResourceValue(fileContent, start, end, tagRule));
+        }
+    }
+    
+    /**
+     * @return the quoted attribute value within [start, end), or null
+     */
+    private String getResourceValue(CharSequence fileContent, int start, int end, TagRule tagRule) {
+        
+        if ((tagRule.typeAttributeDoubleQuoteValue!=null)&&(tagRule.typeAttributeSingleQuoteValue!=null)
+                &&(indexOf(fileContent, tagRule.typeAttributeDoubleQuoteValue, start, end) < 0)&&(indexOf(fileContent, tagRule.typeAttributeSingleQuoteValue, start, end) < 0)) {
+            
+            return null;
+        }
+        
+        String suffix = DOUBLEQUOTE_SUFFIX;
+        
+        int prefixIndex = indexOf(fileContent, tagRule.doubleQuoteValuePrefix, start, end);
+        
+        int valueStart = prefixIndex + tagRule.doubleQuoteValuePrefix.length();
+        
+        if (prefixIndex < 0) {
+            
+            suffix = SINGLEQUOTE_SUFFIX;
+            
+            prefixIndex = indexOf(fileContent, tagRule.singleQuoteValuePrefix, start, end);
+            
+            valueStart = prefixIndex + tagRule.singleQuoteValuePrefix.length();
+        }
+        
+        if (prefixIndex < 0) {
+            
+            return null;
+        }
+        
+        int suffixIndex = indexOf(fileContent, suffix, valueStart, end);
+        
+        return (suffixIndex >= 0) ? fileContent.subSequence(valueStart, suffixIndex).toString() : null;
+    }
+    
+    /**
+     * @return the first index of str lying entirely within [from, end), or -1. The search stops at end, so
+     *         looking for an attribute a tag does not have costs the length of the tag, not of the file.
+     */
+    private static int indexOf(CharSequence fileContent, String str, int from, int end) {
+        
+        char first = str.charAt(0);
+        
+        int last = end - str.length();
+        
+        for (int i = from; i <= last; i++) {
+            
+            if ((fileContent.charAt(i)==first)&&(startsWith(fileContent, str, i, end))) {
+                
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * @return the first index of c within [from, end), or -1
+     */
+    private static int indexOf(CharSequence fileContent, char c, int from, int end) {
+        
+        for (int i = from; i < end; i++) {
+            
+            if (fileContent.charAt(i)==c) {
+                
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    private static boolean startsWith(CharSequence fileContent, String str, int start, int end) {
+        
+        if (start + str.length() > end) {
+            
+            return false;
+        }
+        
+        for (int i = 0; i < str.length(); i++) {
+            
+            if (fileContent.charAt(start + i)!=str.charAt(i)) {
+                
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+}
@@ -0,0 +1,228 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.anttask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.FileProvider;
+
+/**
+ * Reads the files scanned by the collector in bulk and decodes them with an explicitly detected charset.
+ * 
+ * Files are read with a single {@link FileChannel} read, or memory mapped from {@link #MAPPED_THRESHOLD} bytes
+ * on, and decoded straight into a {@link CharBuffer} the resource parsers scan without a copy to a String.
+ * 
+ * The charset is, in order of precedence: the byte order mark, the JSP page directive pageEncoding, the charset of
+ * the page directive contentType, the encoding of an XML declaration, the charset of a meta tag, then UTF-8.
+ * Declarations are only looked for in the first {@link #DECLARATION_SCAN_LENGTH} bytes. Malformed input is
+ * replaced rather than failing the file.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class ResourceContentReader {
+    
+    public static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+    
+    public static final int MAPPED_THRESHOLD = 1024 * 1024;
+    
+    public static final int DECLARATION_SCAN_LENGTH = 8192;
+    
+    private static final Pattern PAGE_ENCODING = Pattern.compile("(?:<%@\\s*page|<jsp:directive\\.page)\\s[^>]*?\\bpageEncoding\\s*=\\s*[\"']\\s*([^\"'\\s]+)");
+    
+    private static final Pattern PAGE_CONTENT_TYPE_CHARSET = Pattern.compile("(?:<%@\\s*page|<jsp:directive\\.page)\\s[^>]*?\\bcontentType\\s*=\\s*[\"'][^\"']*?charset\\s*=\\s*([^\"';\\s]+)");
+    
+    private static final Pattern XML_ENCODING = Pattern.compile("^\\s*<\\?xml\\s[^>]*?\\bencoding\\s*=\\s*[\"']\\s*([^\"'\\s]+)");
+    
+    private static final Pattern META_CHARSET = Pattern.compile("<meta\\s[^>]*?\\bcharset\\s*=\\s*[\"']?\\s*([^\"'\\s/>;]+)", Pattern.CASE_INSENSITIVE);
+    
+    private static final Pattern[] DECLARATIONS = new Pattern[] {PAGE_ENCODING, PAGE_CONTENT_TYPE_CHARSET, XML_ENCODING, META_CHARSET};
+    
+    private ResourceContentReader() {
+    }
+    
+    /**
+     * @return the bytes of the resource, from position 0 to its limit
+     */
+    public static ByteBuffer readBytes(Resource resource) throws IOException {
+        
+        FileProvider fileProvider = resource.as(FileProvider.class);
+        
+        if (fileProvider!=null) {
+            
+            return readBytes(fileProvider.getFile());
+        }
+        
+        try (InputStream in = resource.getInputStream()) {
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+            
+            byte[] buffer = new byte[8192];
+            
+            int read = in.read(buffer);
+            
+            while (read != -1) {
+                
+                bytes.write(buffer, 0, read);
+                
+                read = in.read(buffer);
+            }
+            
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+    }
+    
+    /**
+     * @return the bytes of the file, from position 0 to its limit; mapped when the file is large
+     */
+    public static ByteBuffer readBytes(File file) throws IOException {
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            
+            long size = channel.size();
+            
+            if (size > Integer.MAX_VALUE) {
+                
+                throw new IOException("File too large - " + file);
+            }
+            
+            if (size >= MAPPED_THRESHOLD) {
+                
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            
+            ByteBuffer buffer = ByteBuffer.allocate((int)size);
+            
+            // stops early if the file shrinks while being read
+            while ((buffer.hasRemaining())&&(channel.read(buffer) != -1)) {
+                
+                continue;
+            }
+            
+            buffer.flip();
+            
+            return buffer;
+        }
+    }
+    
+    /**
+     * Decodes the bytes with their detected charset, skipping a byte order mark. The bytes' position is not changed.
+     */
+    public static CharBuffer decode(ByteBuffer bytes) throws IOException {
+        
+        ByteBuffer source = bytes.duplicate();
+        
+        Charset charset = detectByteOrderMark(source);
+        
+        if (charset==null) {
+            
+            charset = detectDeclaredCharset(source);
+        }
+        
+        return charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE).decode(source);
+    }
+    
+    /**
+     * @return the charset of the byte order mark at the position of the bytes, moving past it, or null
+     */
+    static Charset detectByteOrderMark(ByteBuffer bytes) {
+        
+        int position = bytes.position();
+        
+        int remaining = bytes.remaining();
+        
+        if ((remaining >= 3)&&(bytes.get(position)==(byte)0xEF)&&(bytes.get(position + 1)==(byte)0xBB)&&(bytes.get(position + 2)==(byte)0xBF)) {
+            
+            bytes.position(position + 3);
+            return StandardCharsets.UTF_8;
+        }
+        
+        if ((remaining >= 2)&&(bytes.get(position)==(byte)0xFE)&&(bytes.get(position + 1)==(byte)0xFF)) {
+            
+            bytes.position(position + 2);
+            return StandardCharsets.UTF_16BE;
+        }
+        
+        if ((remaining >= 2)&&(bytes.get(position)==(byte)0xFF)&&(bytes.get(position + 1)==(byte)0xFE)) {
+            
+            bytes.position(position + 2);
+            return StandardCharsets.UTF_16LE;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * @return the charset declared near the start of the bytes, or {@link #DEFAULT_CHARSET}
+     */
+    static Charset detectDeclaredCharset(ByteBuffer bytes) {
+        
+        int length = Math.min(bytes.remaining(), DECLARATION_SCAN_LENGTH);
+        
+        char[] prefix = new char[length];
+        
+        // declarations are ASCII, which reads the same in every charset they can name here
+        for (int i = 0; i < length; i++) {
+            
+            prefix[i] = (char)(bytes.get(bytes.position() + i) & 0xff);
+        }
+        
+        CharBuffer prefixBuffer = CharBuffer.wrap(prefix);
+        
+        for (Pattern declaration: DECLARATIONS) {
+            
+            Matcher matcher = declaration.matcher(prefixBuffer);
+            
+            if (matcher.find()) {
+                
+                Charset charset = forName(matcher.group(1));
+                
+                if (charset!=null) {
+                    
+                    return charset;
+                }
+            }
+        }
+        
+        return DEFAULT_CHARSET;
+    }
+    
+    private static Charset forName(String charsetName) {
+        
+        try {
+            
+            return Charset.forName(charsetName);
+            
+        } catch (IllegalCharsetNameException|UnsupportedCharsetException e) {
+            
+            return null;
+        }
+    }
+    
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.anttask;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.types.Resource;
+
+import csptest.common.ContentSecurityPolicyFactory;
+import csptest.common.ResourceType;
+import csptest.common.ResourceTypeDetail;
+
+/**
+ * External resources found in one file by a {@link csptest.common.ResourceParser}, kept per
+ * {@link ResourceType} so they are returned grouped by type, in {@link ResourceType} order, then in file order.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+final class ResourceTypeDetailBuffer {
+    
+    private static final Pattern HTTP_MATCHER = Pattern.compile("^(http|https)://");
+    
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    
+    private final Map<ResourceType, List<ResourceTypeDetail>> resourceTypeDetailsByType = new EnumMap<ResourceType, List<ResourceTypeDetail>>(ResourceType.class);
+    
+    private final String fileDetail;
+    
+    private final StringBuilder logger;
+    
+    ResourceTypeDetailBuffer(Resource resource, String baseDirectory, StringBuilder logger) {
+        
+        this.fileDetail = getFullyQualifiedPath(baseDirectory, resource);
+        this.logger = logger;
+    }
+    
+    /**
+     * Adds the value when it is an http(s) URL, logging it.
+     */
+    void add(ResourceType resourceType, String value) {
+        
+        if (!isExternalResource(value)) {
+            
+            return;
+        }
+        
+        List<ResourceTypeDetail> typeResourceTypeDetails = resourceTypeDetailsByType.get(resourceType);
+        
+        if (typeResourceTypeDetails==null) {
+            
+            typeResourceTypeDetails = new ArrayList<ResourceTypeDetail>();
+            resourceTypeDetailsByType.put(resourceType, typeResourceTypeDetails);
+        }
+        
+        ResourceTypeDetail resourceTypeDetail = ContentSecurityPolicyFactory.INSTANCE.getResourceTypeDetailInstance();
+        resourceTypeDetail.setFileDetail(fileDetail);
+        resourceTypeDetail.setName(resourceType.getName());
+        resourceTypeDetail.setPattern(resourceType.getPattern());
+        resourceTypeDetail.setValue(value);
+        
+        typeResourceTypeDetails.add(resourceTypeDetail);
+        
+        logger.append("File: " + resourceTypeDetail.getFileDetail() + " has " + resourceTypeDetail.getName() + " with value " + resourceTypeDetail.getValue());
+        logger.append(LINE_SEPARATOR);
+    }
+    
+    /**
+     * @return the resource type details grouped by type, or null when none were found
+     */
+    List<ResourceTypeDetail> getResourceTypeDetails() {
+        
+        List<ResourceTypeDetail> resourceTypeDetails = null;
+        
+        for (List<ResourceTypeDetail> typeResourceTypeDetails: resourceTypeDetailsByType.values()) {
+            
+            if (resourceTypeDetails==null) {
+                
+                resourceTypeDetails = new ArrayList<ResourceTypeDetail>();
+            }
+            
+            resourceTypeDetails.addAll(typeResourceTypeDetails);
+        }
+        
+        return resourceTypeDetails;
+    }
+    
+    /**
+     * @return true when the value is an http(s) URL, the only values kept as external resources
+     */
+    static boolean isExternalResource(String value) {
+        return (value!=null)&&(HTTP_MATCHER.matcher(value).find());
+    }
+    
+    private static String getFullyQualifiedPath(String baseDirectory, Resource resource) {
+        
+        if ((baseDirectory!=null)&&(resource!=null)&&(resource.getName()!=null)) {
+            
+            return baseDirectory + "/" + resource.getName().replace('\\', '/');
+            
+        }
+        
+        return null;
+    }
+    
+}
@@ -0,0 +1,393 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.anttask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import csptest.common.ContentSecurityPolicyFactory;
+import csptest.common.ResourceTypeDetail;
+
+/**
+ * On disk cache of the resource type details last collected from each file, so a collector run only reads
+ * files whose size or modification time changed and only parses those whose content hash changed.
+ * 
+ * A file whose modification time falls within {@link #RACY_INTERVAL} of the previous run is always re-read,
+ * since it may have changed again within the file system's timestamp granularity. A cache written for another
+ * parser or base directory, or of another version, is ignored.
+ * 
+ * A file whose name or details do not fit a modified UTF-8 string (64KB) is left out of the written cache and a
+ * cached file with a detail value that is not an http(s) URL is dropped when read, so either is parsed again.
+ * 
+ * File format, big endian: int magic CSPC, int version, modified UTF-8 parser and base directory, long run
+ * time, int file count, then per file: modified UTF-8 file name, long size, long modification time, SHA-256
+ * hash of the file's bytes and int detail count followed by the modified UTF-8 name, pattern, file detail and value of
+ * each detail.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ResourceTypeDetailCache {
+    
+    private static final int CACHE_MAGIC = 0x43535043;
+    
+    private static final int CACHE_VERSION = 2;
+    
+    private static final int HASH_LENGTH = 32;
+    
+    /**
+     * Longest modified UTF-8 encoding {@link DataOutput#writeUTF(String)} accepts.
+     */
+    private static final int MAX_UTF_LENGTH = 65535;
+    
+    /**
+     * Coarsest modification time granularity of common file systems (FAT).
+     */
+    public static final long RACY_INTERVAL = 2000;
+    
+    /**
+     * What was collected from one file.
+     */
+    public static final class Entry {
+        
+        private final long size;
+        
+        private final long lastModified;
+        
+        private final byte[] hash;
+        
+        private final List<ResourceTypeDetail> resourceTypeDetails;
+        
+        public Entry(long size, long lastModified, byte[] hash, List<ResourceTypeDetail> resourceTypeDetails) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.resourceTypeDetails = Collections.unmodifiableList(new ArrayList<ResourceTypeDetail>(resourceTypeDetails));
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public long getLastModified() {
+            return lastModified;
+        }
+        
+        public List<ResourceTypeDetail> getResourceTypeDetails() {
+            return resourceTypeDetails;
+        }
+        
+        /**
+         * @return true when the hash is the hash of this entry's content
+         */
+        public boolean hasHash(byte[] hash) {
+            return Arrays.equals(this.hash, hash);
+        }
+    }
+    
+    private final String parser;
+    
+    private final String baseDirectory;
+    
+    private final long time;
+    
+    private final Map<String, Entry> entries;
+    
+    /**
+     * @param time when the run producing the entries started listing files
+     */
+    public ResourceTypeDetailCache(String parser, String baseDirectory, long time, Map<String, Entry> entries) {
+        this.parser = parser;
+        this.baseDirectory = baseDirectory;
+        this.time = time;
+        this.entries = entries;
+    }
+    
+    /**
+     * @return the entry of the file when its size and modification time show it has not changed since, or null
+     */
+    public Entry getUnchanged(String fileName, long size, long lastModified) {
+        
+        Entry entry = entries.get(fileName);
+        
+        if ((entry!=null)&&(entry.size==size)&&(entry.lastModified==lastModified)&&(lastModified < time - RACY_INTERVAL)) {
+            
+            return entry;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * @return the entry of the file, changed or not, or null
+     */
+    public Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+    
+    /**
+     * @return true when the cache was written by a run with the same parser and base directory
+     */
+    public boolean isCompatible(String parser, String baseDirectory) {
+        return this.parser.equals(parser)&&(this.baseDirectory.equals(baseDirectory));
+    }
+    
+    /**
+     * @return the SHA-256 hash of the remaining bytes; the bytes' position is not changed
+     */
+    public static byte[] hash(ByteBuffer bytes) {
+        
+        try {
+            
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            
+            messageDigest.update(bytes.duplicate());
+            
+            return messageDigest.digest();
+            
+        } catch (NoSuchAlgorithmException e) {
+            
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public void writeTo(DataOutput out) throws IOException {
+        
+        out.writeInt(CACHE_MAGIC);
+        out.writeInt(CACHE_VERSION);
+        out.writeUTF(parser);
+        out.writeUTF(baseDirectory);
+        out.writeLong(time);
+        
+        List<Map.Entry<String, Entry>> writableEntries = new ArrayList<Map.Entry<String, Entry>>();
+        
+        for (Map.Entry<String, Entry> mapEntry: entries.entrySet()) {
+            
+            if (isWritable(mapEntry.getKey(), mapEntry.getValue())) {
+                
+                writableEntries.add(mapEntry);
+            }
+        }
+        
+        out.writeInt(writableEntries.size());
+        
+        for (Map.Entry<String, Entry> mapEntry: writableEntries) {
+            
+            Entry entry = mapEntry.getValue();
+            
+            out.writeUTF(mapEntry.getKey());
+            out.writeLong(entry.size);
+            out.writeLong(entry.lastModified);
+            out.write(entry.hash);
+            out.writeInt(entry.resourceTypeDetails.size());
+            
+            for (ResourceTypeDetail resourceTypeDetail: entry.resourceTypeDetails) {
+                
+                out.writeUTF(resourceTypeDetail.getName());
+                out.writeUTF(resourceTypeDetail.getPattern());
+                out.writeUTF(resourceTypeDetail.getFileDetail());
+                out.writeUTF(resourceTypeDetail.getValue());
+            }
+        }
+    }
+    
+    public static ResourceTypeDetailCache readFrom(DataInput in) throws IOException {
+        
+        if (in.readInt()!=CACHE_MAGIC) {
+            
+            throw new IOException("Not a resource type detail cache");
+        }
+        
+        int version = in.readInt();
+        
+        if (version!=CACHE_VERSION) {
+            
+            throw new IOException("Unsupported resource type detail cache version - " + version);
+        }
+        
+        String parser = in.readUTF();
+        String baseDirectory = in.readUTF();
+        long time = in.readLong();
+        
+        int entryCount = in.readInt();
+        
+        if (entryCount < 0) {
+            
+            throw new IOException("Invalid file count - " + entryCount);
+        }
+        
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        
+        for (int i = 0; i < entryCount; i++) {
+            
+            String fileName = in.readUTF();
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            
+            byte[] hash = new byte[HASH_LENGTH];
+            in.readFully(hash);
+            
+            int detailCount = in.readInt();
+            
+            if (detailCount < 0) {
+                
+                throw new IOException("Invalid detail count - " + detailCount);
+            }
+            
+            List<ResourceTypeDetail> resourceTypeDetails = new ArrayList<ResourceTypeDetail>();
+            
+            boolean valid = true;
+            
+            for (int j = 0; j < detailCount; j++) {
+                
+                ResourceTypeDetail resourceTypeDetail = ContentSecurityPolicyFactory.INSTANCE.getResourceTypeDetailInstance();
+                resourceTypeDetail.setName(in.readUTF());
+                resourceTypeDetail.setPattern(in.readUTF());
+                resourceTypeDetail.setFileDetail(in.readUTF());
+                resourceTypeDetail.setValue(in.readUTF());
+                
+                if (!ResourceTypeDetailBuffer.isExternalResource(resourceTypeDetail.getValue())) {
+                    
+                    valid = false;
+                }
+                
+                resourceTypeDetails.add(resourceTypeDetail);
+            }
+            
+            if (valid) {
+                
+                entries.put(fileName, new Entry(size, lastModified, hash, resourceTypeDetails));
+            }
+        }
+        
+        return new ResourceTypeDetailCache(parser, baseDirectory, time, entries);
+    }
+    
+    /**
+     * @return true when the file name and every string of the entry can be written with {@link DataOutput#writeUTF(String)}
+     */
+    private static boolean isWritable(String fileName, Entry entry) {
+        
+        if (!isWritable(fileName)) {
+            
+            return false;
+        }
+        
+        for (ResourceTypeDetail resourceTypeDetail: entry.resourceTypeDetails) {
+            
+            if ((!isWritable(resourceTypeDetail.getName()))||(!isWritable(resourceTypeDetail.getPattern()))
+                    ||(!isWritable(resourceTypeDetail.getFileDetail()))||(!isWritable(resourceTypeDetail.getValue()))) {
+                
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static boolean isWritable(String value) {
+        
+        if (value==null) {
+            
+            return false;
+        }
+        
+        long utfLength = 0;
+        
+        for (int i = 0; i < value.length(); i++) {
+            
+            char c = value.charAt(i);
+            
+            if ((c >= 0x0001)&&(c <= 0x007F)) {
+                
+                utfLength++;
+                
+            } else if (c > 0x07FF) {
+                
+                utfLength += 3;
+                
+            } else {
+                
+                utfLength += 2;
+            }
+        }
+        
+        return utfLength <= MAX_UTF_LENGTH;
+    }
+    
+    public static ResourceTypeDetailCache read(File file) throws IOException {
+        
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            
+            return readFrom(new DataInputStream(new BufferedInputStream(in)));
+        }
+    }
+    
+    /**
+     * Writes the cache to a new, uniquely named temporary file beside the target, renamed over the target, so an
+     * interrupted run never leaves a partial cache and no existing file or link is ever written through.
+     */
+    public void write(File file) throws IOException {
+        
+        File directory = file.getAbsoluteFile().getParentFile();
+        
+        if ((directory!=null)&&(!directory.isDirectory())&&(!directory.mkdirs())) {
+            
+            throw new IOException("Unable to create directory - " + directory);
+        }
+        
+        Path temporaryFile = Files.createTempFile((directory!=null) ? directory.toPath() : Paths.get("."), file.getName(), ".tmp");
+        
+        try {
+            
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporaryFile))) {
+                
+                DataOutputStream dataOutputStream = new DataOutputStream(out);
+                
+                writeTo(dataOutputStream);
+                
+                dataOutputStream.flush();
+            }
+            
+            Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+        } finally {
+            
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+    
+}
@@ -25,6 +25,8 @@ public class ContentSecurityPolicy {
     private PolicyHeader policyHeader;
     
     private List<PolicyDetail> policyDetailList;
+    
+    private List<PathPolicy> pathPolicyList;
 
     /**
      * @return the policyHeader
@@ -54,6 +56,20 @@ public class ContentSecurityPolicy {
         this.policyDetailList = policyDetailList;
     }
     
+    /**
+     * @return the pathPolicyList
+     */
+    public List<PathPolicy> getPathPolicyList() {
+        return pathPolicyList;
+    }
+
+    /**
+     * @param pathPolicyList the pathPolicyList to set
+     */
+    public void setPathPolicyList(List<PathPolicy> pathPolicyList) {
+        this.pathPolicyList = pathPolicyList;
+    }
+    
     public void addPolicyDetail(PolicyDetail policyDetail) {
         
         if (policyDetail!=null) {
@@ -67,5 +83,18 @@ public class ContentSecurityPolicy {
         
     }
     
+    public void addPathPolicy(PathPolicy pathPolicy) {
+        
+        if (pathPolicy!=null) {
+            
+            if (pathPolicyList==null) {
+                pathPolicyList = new ArrayList<PathPolicy>();
+            }
+            
+            pathPolicyList.add(pathPolicy);
+        }
+        
+    }
+    
 
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Set of policy details bound to path patterns. Patterns follow servlet url-pattern syntax:
+ * exact paths (/jsp/carousel.jsp), path prefixes (/servlet/*) and extensions (*.jsp).
+ * 
+ * <pre>
+ * &lt;pathPolicy&gt;
+ *   &lt;pathPattern&gt;/servlet/*&lt;/pathPattern&gt;
+ *   &lt;policyDetail&gt;...&lt;/policyDetail&gt;
+ * &lt;/pathPolicy&gt;
+ * </pre>
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class PathPolicy {
+    
+    private List<String> pathPatternList;
+    
+    private List<PolicyDetail> policyDetailList;
+
+    /**
+     * @return the pathPatternList
+     */
+    public List<String> getPathPatternList() {
+        return pathPatternList;
+    }
+
+    /**
+     * @param pathPatternList the pathPatternList to set
+     */
+    public void setPathPatternList(List<String> pathPatternList) {
+        this.pathPatternList = pathPatternList;
+    }
+
+    /**
+     * @return the policyDetailList
+     */
+    public List<PolicyDetail> getPolicyDetailList() {
+        return policyDetailList;
+    }
+
+    /**
+     * @param policyDetailList the policyDetailList to set
+     */
+    public void setPolicyDetailList(List<PolicyDetail> policyDetailList) {
+        this.policyDetailList = policyDetailList;
+    }
+    
+    public void addPathPattern(String pathPattern) {
+        
+        if ((pathPattern!=null)&&(!pathPattern.trim().equals(""))) {
+            
+            if (pathPatternList==null) {
+                pathPatternList = new ArrayList<String>();
+            }
+            
+            pathPatternList.add(pathPattern.trim());
+        }
+    }
+    
+    public void addPolicyDetail(PolicyDetail policyDetail) {
+        
+        if (policyDetail!=null) {
+            
+            if (policyDetailList==null) {
+                policyDetailList = new ArrayList<PolicyDetail>();
+            }
+            
+            policyDetailList.add(policyDetail);
+        }
+        
+    }
+
+}
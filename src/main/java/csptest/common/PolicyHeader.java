@@ -24,6 +24,8 @@ public class PolicyHeader {
     private String prefix;
     
     private String nonce;
+    
+    private String reportingEndpoints;
 
     /**
      * @return the prefix
@@ -53,6 +55,20 @@ public class PolicyHeader {
         this.nonce = nonce;
     }
 
+    /**
+     * @return the Reporting-Endpoints header value, e.g. csp-endpoint="/csp_test/ContentSecurityPolicyViolationReporter"
+     */
+    public String getReportingEndpoints() {
+        return reportingEndpoints;
+    }
+
+    /**
+     * @param reportingEndpoints the reportingEndpoints to set
+     */
+    public void setReportingEndpoints(String reportingEndpoints) {
+        this.reportingEndpoints = reportingEndpoints;
+    }
+
     /**
      * @return the key
      */
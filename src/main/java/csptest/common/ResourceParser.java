@@ -45,5 +45,5 @@ import org.apache.tools.ant.types.Resource;
  */
 public interface ResourceParser {
 
-    public List<ResourceTypeDetail> parseResource(String fileContent, Resource resource, String baseDirectory, StringBuilder logger);
+    public List<ResourceTypeDetail> parseResource(CharSequence fileContent, Resource resource, String baseDirectory, StringBuilder logger);
 }
\ No newline at end of file
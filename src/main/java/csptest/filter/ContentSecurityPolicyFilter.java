@@ -13,11 +13,17 @@
  */
 package csptest.filter;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -27,11 +33,15 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.apache.commons.digester.Digester;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.xml.sax.SAXException;
 
 import csptest.common.ContentSecurityPolicy;
+import csptest.common.PathPolicy;
 import csptest.common.PolicyDetail;
 import csptest.common.PolicyHeader;
 
@@ -43,64 +53,54 @@ public class ContentSecurityPolicyFilter implements Filter {
     
     private static final String POLICY_LOCATION = "policyLocation";
     
-    private static final String NONCE_CHARACTER_SET = "zxcvbnmasdfghjkqwertyuiop23456789ZXCVBNMASDFGHJKLQWERTYUP";
+    private static final String POLICY_RELOAD_INTERVAL = "policyReloadInterval";
     
-    private static final String NONCE_GENERATOR_ALGORITHM = "SHA1PRNG";
+    private static final String SESSIONLESS = "sessionless";
     
-    private static final String NONCE_GENERATOR_ALGORITHM_PROVIDER = "SUN";
+    private static final String INJECT_NONCE = "injectNonce";
     
-    private static final String CONTENT_SECURITY_POLICY_KEY = "contentSecurityPolicyKey123";
+    private static final String NONCE_GENERATOR = "nonceGenerator";
     
-    private static final String CONTENT_SECURITY_POLICY_VALUE = "contentSecurityPolicyValue123";
+    private static final String CONTENT_SECURITY_POLICY_VALUES = "contentSecurityPolicyValues123";
+    
+    private static final String REPORTING_ENDPOINTS = "Reporting-Endpoints";
     
     private static final String POLICY_HEADER_NONCE = "policyHeaderNonce";
     
     private static final String INLINE_NONCE = "inlineNonce";
     
-    private static final String[] NONCE_POLICY_TYPE = new String[] {"script-src", "style-src"};
+    private static final String NONCE = "nonce";
     
-    private ContentSecurityPolicy contentSecurityPolicy;
+    private static final Log log = LogFactory.getLog(ContentSecurityPolicyFilter.class);
     
-    private String generateNonce() throws NoSuchProviderException, NoSuchAlgorithmException {
-        
-        StringBuilder nonce = new StringBuilder();
-        
-        SecureRandom generator = SecureRandom.getInstance(NONCE_GENERATOR_ALGORITHM, NONCE_GENERATOR_ALGORITHM_PROVIDER);
-        
-        for(int count = 0; count < 32; count++)
-        {
-            int temp = generator.nextInt(NONCE_CHARACTER_SET.length());
-            nonce.append(NONCE_CHARACTER_SET.charAt(temp));
-        }
-
-        return nonce.toString();
-        
-    }
+    private volatile ContentSecurityPolicyRouter router;
     
-    private boolean isNoncePolicyType(String type) {
-        
-        if ((type!=null)&&(!type.trim().equals(""))) {
-            
-            for (String policyType:NONCE_POLICY_TYPE) {
-                
-                if (policyType.equals(type)) {
-                    
-                    return true;
-                }
-            }
-            
-        }
-        
-        return false;
-    }
+    // seeded with the start time so generations stay distinct from those stamped into sessions before a restart
+    private final AtomicLong policyGeneration = new AtomicLong(System.currentTimeMillis());
+    
+    private ScheduledExecutorService policyReloadExecutor;
+    
+    private boolean sessionless;
+    
+    private boolean injectNonce;
+    
+    private NonceGenerator nonceGenerator;
     
     /* (non-Javadoc)
      * @see javax.servlet.Filter#destroy()
      */
     @Override
     public void destroy() {
-        // TODO Auto-generated method stub
-
+        
+        if (policyReloadExecutor!=null) {
+            
+            policyReloadExecutor.shutdownNow();
+        }
+        
+        if (getNonceGenerator()!=null) {
+            
+            getNonceGenerator().destroy();
+        }
     }
 
     /* (non-Javadoc)
@@ -112,135 +112,218 @@ public class ContentSecurityPolicyFilter implements Filter {
         
         HttpServletRequest httpRequest = (HttpServletRequest)request;
         
-        if ((httpRequest.getSession().getAttribute(CONTENT_SECURITY_POLICY_KEY)!=null)&&(httpRequest.getSession().getAttribute(CONTENT_SECURITY_POLICY_VALUE)!=null)) {
-            
-            HttpServletResponse httpResponse = (HttpServletResponse)response;
-            
-            String contentSecurityPolicyKey = (String)httpRequest.getSession().getAttribute(CONTENT_SECURITY_POLICY_KEY);
-            
-            String contentSecurityPolicyValue = (String)httpRequest.getSession().getAttribute(CONTENT_SECURITY_POLICY_VALUE);
+        HttpServletResponse httpResponse = (HttpServletResponse)response;
+        
+        String nonce;
+        
+        if (isSessionless()) {
             
-            httpResponse.setHeader(contentSecurityPolicyKey, contentSecurityPolicyValue);
+            nonce = applyRequestScopedPolicy(httpRequest, httpResponse);
             
-        } else if ((getContentSecurityPolicy()!=null)&&(getContentSecurityPolicy().getPolicyHeader()!=null)&&(getContentSecurityPolicy().getPolicyHeader().getKey()!=null)&&(!getContentSecurityPolicy().getPolicyHeader().getKey().trim().equals(""))&&(getContentSecurityPolicy().getPolicyHeader().getPrefix()!=null)&&(!getContentSecurityPolicy().getPolicyHeader().getPrefix().trim().equals(""))) {
+        } else {
             
-                String contentSecurityPolicyKey = getContentSecurityPolicy().getPolicyHeader().getKey();
+            nonce = applySessionScopedPolicy(httpRequest, httpResponse);
+        }
+        
+        NonceContext.setNonce(nonce);
+        
+        try {
+        
+            if ((isInjectNonce())&&(nonce!=null)) {
                 
-                httpRequest.getSession().setAttribute(CONTENT_SECURITY_POLICY_KEY, contentSecurityPolicyKey);
+                NonceInjectionResponseWrapper responseWrapper = new NonceInjectionResponseWrapper(httpResponse, "nonce=\"" + nonce  + "\"");
                 
-                String contentSecurityPolicyValue = buildContentSecurityPolicyHeaderValue(getContentSecurityPolicy(), httpRequest);
+                chain.doFilter(request, responseWrapper);
                 
-                if ((contentSecurityPolicyValue!=null)&&(!contentSecurityPolicyValue.trim().equals(""))) {
-                    
-                    httpRequest.getSession().setAttribute(CONTENT_SECURITY_POLICY_VALUE, contentSecurityPolicyValue);
-                }
+                responseWrapper.finish();
                 
-                if ((httpRequest.getSession().getAttribute(CONTENT_SECURITY_POLICY_KEY)!=null)&&(httpRequest.getSession().getAttribute(CONTENT_SECURITY_POLICY_VALUE)!=null)) {
-                    
-                    HttpServletResponse httpResponse = (HttpServletResponse)response;
-                    httpResponse.setHeader((String)httpRequest.getSession().getAttribute(CONTENT_SECURITY_POLICY_KEY), (String)httpRequest.getSession().getAttribute(CONTENT_SECURITY_POLICY_VALUE));
-                }
+            } else {
+    
+                chain.doFilter(request, response);
+            }
+            
+        } finally {
+            
+            NonceContext.clear();
         }
-
-        chain.doFilter(request, response);
     }
     
-    private String buildContentSecurityPolicyHeaderValue(ContentSecurityPolicy contentSecurityPolicy, HttpServletRequest request) {
+    /**
+     * The header value rendered with the session's nonce is cached in the session per template stamp, so moving
+     * between pages with different routed policies only writes the session the first time each route is seen
+     * after a (re)load of the policy.
+     * 
+     * @return the nonce of the session, or null when nonces are not in use
+     */
+    private String applySessionScopedPolicy(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
         
-        if ((contentSecurityPolicy!=null)&&(contentSecurityPolicy.getPolicyHeader()!=null)&&(contentSecurityPolicy.getPolicyHeader().getPrefix()!=null)&&(!contentSecurityPolicy.getPolicyHeader().getPrefix().trim().equals(""))) {
+        HttpSession session = httpRequest.getSession();
+        
+        // one read of the published policy, so the whole request sees a consistent snapshot
+        ContentSecurityPolicyHeaderTemplate headerTemplate = getHeaderTemplate(httpRequest);
+        
+        if (headerTemplate==null) {
             
-            StringBuilder str = new StringBuilder();
-            str.append(contentSecurityPolicy.getPolicyHeader().getPrefix().trim());
+            return null;
+        }
+        
+        @SuppressWarnings("unchecked")
+        Map<String, String> contentSecurityPolicyValues = (Map<String, String>)session.getAttribute(CONTENT_SECURITY_POLICY_VALUES);
+        
+        String contentSecurityPolicyValue = (contentSecurityPolicyValues!=null) ? contentSecurityPolicyValues.get(headerTemplate.getStamp()) : null;
+        
+        if (contentSecurityPolicyValue==null) {
+            
+            contentSecurityPolicyValue = headerTemplate.render(getPolicyHeaderNonce(headerTemplate, session));
+            
+            // copied rather than changed in place, as other requests of the session may be reading it; values
+            // of templates from an earlier load of the policy are dropped
+            HashMap<String, String> newContentSecurityPolicyValues = new HashMap<String, String>();
             
-            if ((contentSecurityPolicy.getPolicyDetailList()!=null)&&(!contentSecurityPolicy.getPolicyDetailList().isEmpty())) {
+            if (contentSecurityPolicyValues!=null) {
                 
-                for (PolicyDetail policyDetail: contentSecurityPolicy.getPolicyDetailList()) {
+                for (Map.Entry<String, String> entry: contentSecurityPolicyValues.entrySet()) {
                     
-                    if ((policyDetail!=null)&&(isNoncePolicyType(policyDetail.getType()))) {
-                        
-                        String policyTypeHeaderValue = buildContentSecurityPolicyHeaderValueForScriptTypeAndNonce(policyDetail, Boolean.TRUE.toString().equals(contentSecurityPolicy.getPolicyHeader().getNonce()), request);
-                        
-                        if (policyTypeHeaderValue!=null) {
-                            
-                            str.append("; ");
-                            str.append(policyTypeHeaderValue);
-                        }
-                        
-                    } else if ((policyDetail!=null)&&(policyDetail.getType()!=null)&&(!policyDetail.getType().trim().equals(""))&&(policyDetail.getPolicy()!=null)&&(!policyDetail.getPolicy().trim().equals(""))) {
+                    if (headerTemplate.isSameGeneration(entry.getKey())) {
                         
-                        str.append("; ");
-                        str.append(policyDetail.getType());
-                        str.append(" ");
-                        str.append(policyDetail.getPolicy().trim());
+                        newContentSecurityPolicyValues.put(entry.getKey(), entry.getValue());
                     }
-                    
                 }
             }
             
-            return str.toString();
+            newContentSecurityPolicyValues.put(headerTemplate.getStamp(), contentSecurityPolicyValue);
+            
+            session.setAttribute(CONTENT_SECURITY_POLICY_VALUES, newContentSecurityPolicyValues);
+        }
+        
+        httpResponse.setHeader(headerTemplate.getKey(), contentSecurityPolicyValue);
+        
+        if (headerTemplate.getReportingEndpoints()!=null) {
+            
+            httpResponse.setHeader(REPORTING_ENDPOINTS, headerTemplate.getReportingEndpoints());
+        }
+        
+        if (headerTemplate.isNonceRequired()) {
+            
+            return (String)session.getAttribute(NONCE);
         }
         
         return null;
     }
     
-    private String buildContentSecurityPolicyHeaderValueForScriptTypeAndNonce(PolicyDetail policyDetail, boolean addNonce, HttpServletRequest request) {
+    /**
+     * Sessionless mode: the header value and nonces only live for the current request, so no session is ever created.
+     * 
+     * @return the nonce of the request, or null when nonces are not in use
+     */
+    private String applyRequestScopedPolicy(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        
+        ContentSecurityPolicyHeaderTemplate headerTemplate = getHeaderTemplate(httpRequest);
         
-        if ((policyDetail!=null)&&(policyDetail.getPolicy()!=null)&&(!policyDetail.getPolicy().trim().equals(""))) {
+        String nonce = null;
+        
+        if (headerTemplate!=null) {
+            
+            String policyHeaderNonce = null;
             
-            StringBuilder str = new StringBuilder();
-            str.append(policyDetail.getType());
-            str.append(" ");
-            str.append(policyDetail.getPolicy().trim());
-             
-            if ((addNonce)&&(request!=null)) {
+            if (headerTemplate.isNonceRequired()) {
                 
-                String policyHeaderNonce = null;
+                nonce = nextNonce();
                 
-                if ((request.getSession().getAttribute(POLICY_HEADER_NONCE)!=null)&&(request.getSession().getAttribute(INLINE_NONCE)!=null)) {
-                    
-                    policyHeaderNonce = (String)request.getSession().getAttribute(POLICY_HEADER_NONCE);
+                if (nonce!=null) {
                     
-                } else {
+                    policyHeaderNonce = "'nonce-" + nonce + "'";
                     
-                    try {
-                        
-                        String nonce = generateNonce();
-                        
-                        if ((nonce!=null)&&(!nonce.trim().equals(""))) {
-                            
-                            policyHeaderNonce = "'nonce-" + nonce.trim() + "'";
-                            
-                            request.getSession().setAttribute(POLICY_HEADER_NONCE, policyHeaderNonce);
-                            
-                            String inlineNonce = "nonce=\"" + nonce.trim()  + "\"";
-                            
-                            request.getSession().setAttribute(INLINE_NONCE, inlineNonce);
-                        }
-                        
-                        
-                    } catch (NoSuchProviderException | NoSuchAlgorithmException e) {
-                        
-                        //log here
-                    }
+                    httpRequest.setAttribute(POLICY_HEADER_NONCE, policyHeaderNonce);
                     
-                }
-                
-                if ((policyHeaderNonce!=null)&&(!policyHeaderNonce.trim().equals(""))) {
+                    httpRequest.setAttribute(INLINE_NONCE, "nonce=\"" + nonce  + "\"");
                     
-                    str.append(" ");
-                    str.append(policyHeaderNonce);
+                    httpRequest.setAttribute(NONCE, nonce);
                 }
+            }
+            
+            httpResponse.setHeader(headerTemplate.getKey(), headerTemplate.render(policyHeaderNonce));
+            
+            if (headerTemplate.getReportingEndpoints()!=null) {
                 
+                httpResponse.setHeader(REPORTING_ENDPOINTS, headerTemplate.getReportingEndpoints());
             }
+        }
+        
+        return nonce;
+    }
+    
+    /**
+     * Routes on the servlet path and path info, which the container has already decoded and normalised, so
+     * another spelling of the same resource, e.g. %6Asp or //jsp, cannot fall through to the default policy.
+     */
+    private ContentSecurityPolicyHeaderTemplate getHeaderTemplate(HttpServletRequest httpRequest) {
+        
+        ContentSecurityPolicyRouter router = getRouter();
+        
+        if (router==null) {
+            
+            return null;
+        }
+        
+        String servletPath = httpRequest.getServletPath();
+        
+        String pathInfo = httpRequest.getPathInfo();
+        
+        if (pathInfo==null) {
+            
+            return router.route(servletPath, 0);
+        }
+        
+        return router.route((servletPath!=null) ? servletPath + pathInfo : pathInfo, 0);
+    }
+    
+    private String getPolicyHeaderNonce(ContentSecurityPolicyHeaderTemplate headerTemplate, HttpSession session) {
+        
+        if (!headerTemplate.isNonceRequired()) {
+            
+            return null;
+        }
+        
+        String policyHeaderNonce = (String)session.getAttribute(POLICY_HEADER_NONCE);
+        
+        if ((policyHeaderNonce!=null)&&(session.getAttribute(INLINE_NONCE)!=null)&&(session.getAttribute(NONCE)!=null)) {
             
-            return str.toString();
+            return policyHeaderNonce;
+        }
+        
+        String nonce = nextNonce();
+        
+        if (nonce!=null) {
+            
+            policyHeaderNonce = "'nonce-" + nonce + "'";
+            
+            session.setAttribute(POLICY_HEADER_NONCE, policyHeaderNonce);
+            
+            String inlineNonce = "nonce=\"" + nonce  + "\"";
+            
+            session.setAttribute(INLINE_NONCE, inlineNonce);
+            
+            session.setAttribute(NONCE, nonce);
+            
+            return policyHeaderNonce;
+        }
+        
+        return null;
+    }
+    
+    private String nextNonce() {
+        
+        String nonce = getNonceGenerator().generateNonce();
+        
+        if ((nonce!=null)&&(!nonce.trim().equals(""))) {
+            
+            return nonce.trim();
         }
         
         return null;
     }
     
- 
-
     /* (non-Javadoc)
      * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
      */
@@ -252,13 +335,154 @@ public class ContentSecurityPolicyFilter implements Filter {
         if ((policyLocation!=null)&&(!policyLocation.trim().equals(""))) {
             
             //E.g. servletContext.getResourceAsStream("/WEB-INF/myfile");
-            InputStream policyStream = filterConfig.getServletContext().getResourceAsStream(policyLocation);
+            InputStream policyStream = filterConfig.getServletContext().getResourceAsStream(policyLocation.trim());
             
             ContentSecurityPolicy contentSecurityPolicy = getGeneratedContentSecurityPolicy(policyStream);
             
-            setContentSecurityPolicy(contentSecurityPolicy);
+            publishContentSecurityPolicy(contentSecurityPolicy);
+            
+            int policyReloadInterval = PreGeneratedNonceGenerator.getIntInitParameter(filterConfig, POLICY_RELOAD_INTERVAL, 0);
+            
+            if (policyReloadInterval > 0) {
+                
+                String policyPath = filterConfig.getServletContext().getRealPath(policyLocation.trim());
+                
+                if (policyPath!=null) {
+                    
+                    startPolicyReload(new File(policyPath), policyReloadInterval);
+                    
+                } else {
+                    
+                    log.warn("Policy reload disabled, " + policyLocation.trim() + " is not available as a file");
+                }
+            }
+        }
+        
+        String sessionless = filterConfig.getInitParameter(SESSIONLESS);
+        
+        if (sessionless!=null) {
+            
+            setSessionless(Boolean.TRUE.toString().equalsIgnoreCase(sessionless.trim()));
+        }
+        
+        String injectNonce = filterConfig.getInitParameter(INJECT_NONCE);
+        
+        if (injectNonce!=null) {
+            
+            setInjectNonce(Boolean.TRUE.toString().equalsIgnoreCase(injectNonce.trim()));
+        }
+        
+        NonceGenerator nonceGenerator = createNonceGenerator(filterConfig.getInitParameter(NONCE_GENERATOR));
+        
+        if (PreGeneratedNonceGenerator.getIntInitParameter(filterConfig, PreGeneratedNonceGenerator.NONCE_RING_CAPACITY, 0) > 0) {
+            
+            nonceGenerator = new PreGeneratedNonceGenerator(nonceGenerator);
+        }
+        
+        nonceGenerator.init(filterConfig);
+        
+        setNonceGenerator(nonceGenerator);
+        
+    }
+    
+    /**
+     * Compiles the policy under the next generation and publishes it with a single volatile write of the router.
+     * 
+     * @return false, leaving the current policy in place, when the policy has no header key or prefix
+     */
+    private boolean publishContentSecurityPolicy(ContentSecurityPolicy contentSecurityPolicy) {
+        
+        ContentSecurityPolicyRouter router = ContentSecurityPolicyRouter.compile(contentSecurityPolicy, policyGeneration.incrementAndGet());
+        
+        if (router==null) {
+            
+            return false;
+        }
+        
+        setRouter(router);
+        
+        return true;
+    }
+    
+    /**
+     * Polls the policy file on a daemon thread. A changed file is parsed and compiled off the request path
+     * and published with a single volatile write of the compiled router; a policy that fails to parse or
+     * compile leaves the current one in place.
+     */
+    private void startPolicyReload(final File policyFile, int policyReloadInterval) {
+        
+        policyReloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                
+                Thread thread = new Thread(runnable, "csp-policy-reload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        policyReloadExecutor.scheduleWithFixedDelay(new Runnable() {
+            
+            private long lastModified = policyFile.lastModified();
+            
+            private long length = policyFile.length();
+            
+            @Override
+            public void run() {
+                
+                long modified = policyFile.lastModified();
+                
+                long size = policyFile.length();
+                
+                if ((modified==0)||((modified==lastModified)&&(size==length))) {
+                    
+                    return;
+                }
+                
+                lastModified = modified;
+                
+                length = size;
+                
+                try (InputStream policyStream = new FileInputStream(policyFile)) {
+                    
+                    ContentSecurityPolicy contentSecurityPolicy = getGeneratedContentSecurityPolicy(policyStream);
+                    
+                    if (publishContentSecurityPolicy(contentSecurityPolicy)) {
+                        
+                        log.info("Reloaded content security policy - " + policyFile.getAbsolutePath());
+                        
+                    } else {
+                        
+                        log.warn("Ignoring content security policy without header key or prefix - " + policyFile.getAbsolutePath());
+                    }
+                    
+                } catch (IOException|RuntimeException e) {
+                    
+                    log.error("Unable to reload content security policy - " + policyFile.getAbsolutePath(), e);
+                }
+            }
+            
+        }, policyReloadInterval, policyReloadInterval, TimeUnit.SECONDS);
+    }
+    
+    private NonceGenerator createNonceGenerator(String nonceGeneratorClassName) throws ServletException {
+        
+        if ((nonceGeneratorClassName==null)||(nonceGeneratorClassName.trim().equals(""))) {
+            
+            return new SecureRandomNonceGenerator();
         }
         
+        try {
+            
+            Class<?> nonceGeneratorClass = Class.forName(nonceGeneratorClassName.trim(), true, Thread.currentThread().getContextClassLoader());
+            
+            return (NonceGenerator) nonceGeneratorClass.getDeclaredConstructor().newInstance();
+            
+        } catch (ReflectiveOperationException|ClassCastException e) {
+            
+            throw new ServletException("Unable to create nonce generator - " + nonceGeneratorClassName, e);
+        }
     }
     
     private ContentSecurityPolicy getGeneratedContentSecurityPolicy(InputStream policyStream) {
@@ -291,6 +515,8 @@ public class ContentSecurityPolicyFilter implements Filter {
         
         digester.addCallMethod( "contentSecurityPolicy/policyHeader/nonce", "setNonce", 0 );
         
+        digester.addCallMethod( "contentSecurityPolicy/policyHeader/reportingEndpoints", "setReportingEndpoints", 0 );
+        
         digester.addSetNext("contentSecurityPolicy/policyHeader", "setPolicyHeader");
 
         digester.addObjectCreate("contentSecurityPolicy/policyDetail", PolicyDetail.class);
@@ -301,6 +527,20 @@ public class ContentSecurityPolicyFilter implements Filter {
         
         digester.addSetNext("contentSecurityPolicy/policyDetail", "addPolicyDetail");
         
+        digester.addObjectCreate("contentSecurityPolicy/pathPolicy", PathPolicy.class);
+        
+        digester.addCallMethod( "contentSecurityPolicy/pathPolicy/pathPattern", "addPathPattern", 0 );
+        
+        digester.addObjectCreate("contentSecurityPolicy/pathPolicy/policyDetail", PolicyDetail.class);
+        
+        digester.addCallMethod( "contentSecurityPolicy/pathPolicy/policyDetail/type", "setType", 0 );
+        
+        digester.addCallMethod( "contentSecurityPolicy/pathPolicy/policyDetail/policy", "setPolicy", 0 );
+        
+        digester.addSetNext("contentSecurityPolicy/pathPolicy/policyDetail", "addPolicyDetail");
+        
+        digester.addSetNext("contentSecurityPolicy/pathPolicy", "addPathPolicy");
+        
         return digester;
     }
     
@@ -318,17 +558,59 @@ public class ContentSecurityPolicyFilter implements Filter {
     }
 
     /**
-     * @return the contentSecurityPolicy
+     * @return the router
+     */
+    private ContentSecurityPolicyRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * @param router the router to set
+     */
+    private void setRouter(ContentSecurityPolicyRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * @return the sessionless
+     */
+    private boolean isSessionless() {
+        return sessionless;
+    }
+
+    /**
+     * @param sessionless the sessionless to set
      */
-    private ContentSecurityPolicy getContentSecurityPolicy() {
-        return contentSecurityPolicy;
+    private void setSessionless(boolean sessionless) {
+        this.sessionless = sessionless;
     }
 
     /**
-     * @param contentSecurityPolicy the contentSecurityPolicy to set
+     * @return the injectNonce
      */
-    private void setContentSecurityPolicy(ContentSecurityPolicy contentSecurityPolicy) {
-        this.contentSecurityPolicy = contentSecurityPolicy;
+    private boolean isInjectNonce() {
+        return injectNonce;
+    }
+
+    /**
+     * @param injectNonce the injectNonce to set
+     */
+    private void setInjectNonce(boolean injectNonce) {
+        this.injectNonce = injectNonce;
+    }
+
+    /**
+     * @return the nonceGenerator
+     */
+    private NonceGenerator getNonceGenerator() {
+        return nonceGenerator;
+    }
+
+    /**
+     * @param nonceGenerator the nonceGenerator to set
+     */
+    private void setNonceGenerator(NonceGenerator nonceGenerator) {
+        this.nonceGenerator = nonceGenerator;
     }
     
     /* TEST CODE */    
@@ -342,13 +624,11 @@ public class ContentSecurityPolicyFilter implements Filter {
             
             ContentSecurityPolicy contentSecurityPolicy = getGeneratedContentSecurityPolicy(policyStream);
             
-            if ((contentSecurityPolicy!=null)&&(contentSecurityPolicy.getPolicyHeader()!=null)&&(contentSecurityPolicy.getPolicyHeader().getKey()!=null)&&(!contentSecurityPolicy.getPolicyHeader().getKey().trim().equals(""))) {
-                
-                String contentSecurityPolicykey = contentSecurityPolicy.getPolicyHeader().getKey().trim(); 
-                
-                String contentSecurityPolicyValue = buildContentSecurityPolicyHeaderValue(contentSecurityPolicy, null);
+            ContentSecurityPolicyHeaderTemplate headerTemplate = ContentSecurityPolicyHeaderTemplate.compile(contentSecurityPolicy, "0");
+            
+            if (headerTemplate!=null) {
                 
-                System.out.println(contentSecurityPolicykey + ":" + contentSecurityPolicyValue);
+                System.out.println(headerTemplate.getKey() + ":" + headerTemplate.render(null));
             }
             
         } catch (java.io.FileNotFoundException e) {
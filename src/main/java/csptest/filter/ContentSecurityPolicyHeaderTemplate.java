@@ -0,0 +1,282 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import csptest.common.ContentSecurityPolicy;
+import csptest.common.PolicyDetail;
+import csptest.common.PolicyHeader;
+
+/**
+ * Immutable, precompiled form of a {@link ContentSecurityPolicy} header value.
+ *
+ * The policy is rendered once into constant segments separated by nonce slots
+ * (one per script-src/style-src directive), so building the header for a request
+ * only copies the segments and splices in the policy header nonce.
+ *
+ * @author thealmostrealmccoy
+ *
+ */
+public final class ContentSecurityPolicyHeaderTemplate {
+
+    private static final String[] NONCE_POLICY_TYPE = new String[] {"script-src", "style-src"};
+
+    private static final ThreadLocal<char[]> RENDER_BUFFER = new ThreadLocal<char[]>() {
+
+        @Override
+        protected char[] initialValue() {
+            return new char[1024];
+        }
+    };
+
+    private final String key;
+
+    private final char[][] segments;
+
+    private final int segmentsLength;
+
+    private final String noncelessValue;
+    
+    private final String stamp;
+    
+    private final String reportingEndpoints;
+
+    private ContentSecurityPolicyHeaderTemplate(String key, List<String> segments, boolean nonce, String reportingEndpoints, String stamp) {
+
+        this.key = key;
+        
+        this.stamp = stamp;
+        
+        this.reportingEndpoints = reportingEndpoints;
+
+        StringBuilder str = new StringBuilder();
+
+        int length = 0;
+
+        if (nonce) {
+
+            this.segments = new char[segments.size()][];
+
+            for (int i = 0; i < segments.size(); i++) {
+
+                this.segments[i] = segments.get(i).toCharArray();
+
+                length += this.segments[i].length;
+
+                str.append(segments.get(i));
+            }
+
+        } else {
+
+            for (String segment: segments) {
+
+                str.append(segment);
+            }
+
+            this.segments = new char[][] {str.toString().toCharArray()};
+
+            length = this.segments[0].length;
+        }
+
+        this.segmentsLength = length;
+
+        this.noncelessValue = str.toString();
+    }
+
+    /**
+     * Compiles the policy into a template, or returns null when the policy has no usable header key or prefix.
+     * 
+     * @param stamp identifies this template among every template compiled, see {@link #getStamp()}
+     */
+    public static ContentSecurityPolicyHeaderTemplate compile(ContentSecurityPolicy contentSecurityPolicy, String stamp) {
+
+        if (contentSecurityPolicy==null) {
+
+            return null;
+        }
+
+        return compile(contentSecurityPolicy.getPolicyHeader(), contentSecurityPolicy.getPolicyDetailList(), stamp);
+    }
+
+    /**
+     * Compiles the header and policy details into a template, or returns null when the header has no usable key or prefix.
+     * 
+     * @param stamp identifies this template among every template compiled, see {@link #getStamp()}
+     */
+    public static ContentSecurityPolicyHeaderTemplate compile(PolicyHeader policyHeader, List<PolicyDetail> policyDetailList, String stamp) {
+
+        if (policyHeader==null) {
+
+            return null;
+        }
+
+        String key = policyHeader.getKey();
+
+        String prefix = policyHeader.getPrefix();
+
+        if ((key==null)||(key.trim().equals(""))||(prefix==null)||(prefix.trim().equals(""))) {
+
+            return null;
+        }
+
+        boolean nonce = Boolean.TRUE.toString().equals(policyHeader.getNonce());
+
+        List<String> segments = new ArrayList<String>();
+
+        StringBuilder str = new StringBuilder();
+        str.append(prefix.trim());
+
+        if (policyDetailList!=null) {
+
+            for (PolicyDetail policyDetail: policyDetailList) {
+
+                if ((policyDetail==null)||(policyDetail.getPolicy()==null)||(policyDetail.getPolicy().trim().equals(""))) {
+
+                    continue;
+                }
+
+                if (isNoncePolicyType(policyDetail.getType())) {
+
+                    str.append("; ");
+                    str.append(policyDetail.getType());
+                    str.append(" ");
+                    str.append(policyDetail.getPolicy().trim());
+
+                    if (nonce) {
+
+                        segments.add(str.toString());
+                        str.setLength(0);
+                    }
+
+                } else if ((policyDetail.getType()!=null)&&(!policyDetail.getType().trim().equals(""))) {
+
+                    str.append("; ");
+                    str.append(policyDetail.getType());
+                    str.append(" ");
+                    str.append(policyDetail.getPolicy().trim());
+                }
+            }
+        }
+
+        segments.add(str.toString());
+
+        String reportingEndpoints = policyHeader.getReportingEndpoints();
+        
+        if ((reportingEndpoints!=null)&&(reportingEndpoints.trim().equals(""))) {
+            
+            reportingEndpoints = null;
+        }
+
+        return new ContentSecurityPolicyHeaderTemplate(key.trim(), segments, nonce, (reportingEndpoints!=null) ? reportingEndpoints.trim() : null, stamp);
+    }
+
+    private static boolean isNoncePolicyType(String type) {
+
+        if ((type!=null)&&(!type.trim().equals(""))) {
+
+            for (String policyType:NONCE_POLICY_TYPE) {
+
+                if (policyType.equals(type)) {
+
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the header key, e.g. Content-Security-Policy
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the Reporting-Endpoints header value for report-to, or null
+     */
+    public String getReportingEndpoints() {
+        return reportingEndpoints;
+    }
+
+    /**
+     * Version stamp given at compile time: the policy generation and the template's place in it. Header values
+     * cached against a different stamp were built from another template or another load of the policy.
+     */
+    public String getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return true when the stamp belongs to a template compiled with this template's policy generation
+     */
+    public boolean isSameGeneration(String stamp) {
+
+        int generationLength = this.stamp.indexOf('-') + 1;
+
+        return (stamp!=null)&&(stamp.length() > generationLength)&&(stamp.regionMatches(0, this.stamp, 0, generationLength));
+    }
+
+    /**
+     * @return true when the header value carries a policy header nonce
+     */
+    public boolean isNonceRequired() {
+        return segments.length > 1;
+    }
+
+    /**
+     * Renders the header value with the given policy header nonce, e.g. 'nonce-abc'.
+     * A null or empty nonce renders the value without nonce sources.
+     */
+    public String render(String policyHeaderNonce) {
+
+        if ((!isNonceRequired())||(policyHeaderNonce==null)||(policyHeaderNonce.isEmpty())) {
+
+            return noncelessValue;
+        }
+
+        int slotLength = policyHeaderNonce.length() + 1;
+
+        int length = segmentsLength + (segments.length - 1) * slotLength;
+
+        char[] buffer = RENDER_BUFFER.get();
+
+        if (buffer.length < length) {
+
+            buffer = new char[Math.max(length, buffer.length << 1)];
+            RENDER_BUFFER.set(buffer);
+        }
+
+        int position = 0;
+
+        for (int i = 0; i < segments.length; i++) {
+
+            if (i > 0) {
+
+                buffer[position++] = ' ';
+                policyHeaderNonce.getChars(0, slotLength - 1, buffer, position);
+                position += slotLength - 1;
+            }
+
+            System.arraycopy(segments[i], 0, buffer, position, segments[i].length);
+            position += segments[i].length;
+        }
+
+        return new String(buffer, 0, length);
+    }
+
+}
@@ -0,0 +1,261 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import csptest.common.ContentSecurityPolicy;
+import csptest.common.PathPolicy;
+
+/**
+ * Immutable snapshot of a compiled {@link ContentSecurityPolicy}: the default header template plus
+ * one pre-rendered template per {@link PathPolicy}.
+ *
+ * Path patterns are compiled into a character trie, so selecting the template for a request walks the
+ * path once without allocating. Precedence follows servlet mapping rules: exact match, then longest
+ * path prefix, then extension, then the default template.
+ *
+ * @author thealmostrealmccoy
+ *
+ */
+public final class ContentSecurityPolicyRouter {
+
+    private static final String PREFIX_WILDCARD = "/*";
+
+    private static final String EXTENSION_WILDCARD = "*.";
+
+    private final ContentSecurityPolicyHeaderTemplate defaultTemplate;
+
+    private final Node root = new Node();
+
+    private final String[] extensions;
+
+    private final ContentSecurityPolicyHeaderTemplate[] extensionTemplates;
+
+    private final boolean routed;
+
+    private static final class Node {
+
+        private char[] keys = new char[0];
+
+        private Node[] children = new Node[0];
+
+        private ContentSecurityPolicyHeaderTemplate exactTemplate;
+
+        private ContentSecurityPolicyHeaderTemplate prefixTemplate;
+
+        private Node child(char c) {
+
+            for (int i = 0; i < keys.length; i++) {
+
+                if (keys[i]==c) {
+
+                    return children[i];
+                }
+            }
+
+            return null;
+        }
+
+        private Node addChild(char c) {
+
+            Node child = child(c);
+
+            if (child==null) {
+
+                child = new Node();
+
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = c;
+
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+
+            return child;
+        }
+    }
+
+    private ContentSecurityPolicyRouter(ContentSecurityPolicyHeaderTemplate defaultTemplate, List<PathPolicy> pathPolicyList, ContentSecurityPolicy contentSecurityPolicy, long generation) {
+
+        this.defaultTemplate = defaultTemplate;
+
+        List<String> extensions = new ArrayList<String>();
+
+        List<ContentSecurityPolicyHeaderTemplate> extensionTemplates = new ArrayList<ContentSecurityPolicyHeaderTemplate>();
+
+        boolean routed = false;
+
+        int templateIndex = 0;
+
+        if (pathPolicyList!=null) {
+
+            for (PathPolicy pathPolicy: pathPolicyList) {
+
+                if ((pathPolicy==null)||(pathPolicy.getPathPatternList()==null)) {
+
+                    continue;
+                }
+
+                ContentSecurityPolicyHeaderTemplate template = ContentSecurityPolicyHeaderTemplate.compile(contentSecurityPolicy.getPolicyHeader(), pathPolicy.getPolicyDetailList(), getStamp(generation, ++templateIndex));
+
+                for (String pathPattern: pathPolicy.getPathPatternList()) {
+
+                    if (pathPattern.startsWith(EXTENSION_WILDCARD)) {
+
+                        extensions.add(pathPattern.substring(1));
+                        extensionTemplates.add(template);
+
+                    } else if (pathPattern.endsWith(PREFIX_WILDCARD)) {
+
+                        insert(pathPattern.substring(0, pathPattern.length() - PREFIX_WILDCARD.length())).prefixTemplate = template;
+
+                    } else {
+
+                        insert(pathPattern).exactTemplate = template;
+                    }
+
+                    routed = true;
+                }
+            }
+        }
+
+        this.extensions = extensions.toArray(new String[extensions.size()]);
+
+        this.extensionTemplates = extensionTemplates.toArray(new ContentSecurityPolicyHeaderTemplate[extensionTemplates.size()]);
+
+        this.routed = routed;
+    }
+
+    /**
+     * Compiles the policy, or returns null when the policy header has no usable key or prefix.
+     *
+     * @param generation distinct for every load of the policy; stamped on each template with the template's index
+     */
+    public static ContentSecurityPolicyRouter compile(ContentSecurityPolicy contentSecurityPolicy, long generation) {
+
+        ContentSecurityPolicyHeaderTemplate defaultTemplate = ContentSecurityPolicyHeaderTemplate.compile(contentSecurityPolicy, getStamp(generation, 0));
+
+        if (defaultTemplate==null) {
+
+            return null;
+        }
+
+        return new ContentSecurityPolicyRouter(defaultTemplate, contentSecurityPolicy.getPathPolicyList(), contentSecurityPolicy, generation);
+    }
+
+    private static String getStamp(long generation, int templateIndex) {
+        return Long.toHexString(generation) + "-" + Integer.toHexString(templateIndex);
+    }
+
+    private Node insert(String path) {
+
+        Node node = root;
+
+        for (int i = 0; i < path.length(); i++) {
+
+            node = node.addChild(path.charAt(i));
+        }
+
+        return node;
+    }
+
+    /**
+     * @return the template used when no path pattern matches
+     */
+    public ContentSecurityPolicyHeaderTemplate getDefaultTemplate() {
+        return defaultTemplate;
+    }
+
+    /**
+     * Selects the template for the path starting at offset, e.g. a request's servlet path and path info.
+     * Path parameters (;jsessionid=...) and anything after them are ignored.
+     */
+    public ContentSecurityPolicyHeaderTemplate route(String path, int offset) {
+
+        if ((!routed)||(path==null)) {
+
+            return defaultTemplate;
+        }
+
+        int end = path.indexOf(';', offset);
+
+        if (end < 0) {
+
+            end = path.length();
+        }
+
+        ContentSecurityPolicyHeaderTemplate prefixTemplate = null;
+
+        Node node = root;
+
+        int position = offset;
+
+        while (node!=null) {
+
+            if ((node.prefixTemplate!=null)&&((position==end)||(path.charAt(position)=='/'))) {
+
+                prefixTemplate = node.prefixTemplate;
+            }
+
+            if (position==end) {
+
+                if (node.exactTemplate!=null) {
+
+                    return node.exactTemplate;
+                }
+
+                break;
+            }
+
+            node = node.child(path.charAt(position++));
+        }
+
+        if (prefixTemplate!=null) {
+
+            return prefixTemplate;
+        }
+
+        if (extensions.length > 0) {
+
+            for (int i = end - 1; i >= offset; i--) {
+
+                char c = path.charAt(i);
+
+                if (c=='/') {
+
+                    break;
+                }
+
+                if (c=='.') {
+
+                    for (int j = 0; j < extensions.length; j++) {
+
+                        if ((extensions[j].length()==end - i)&&(path.regionMatches(i, extensions[j], 0, end - i))) {
+
+                            return extensionTemplates[j];
+                        }
+                    }
+
+                    break;
+                }
+            }
+        }
+
+        return defaultTemplate;
+    }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+/**
+ * Holds the nonce of the request being processed on the current thread.
+ * 
+ * Set by {@link ContentSecurityPolicyFilter} for the duration of the filter chain and cleared afterwards,
+ * so EL functions and tags can reach the nonce without a request or page context.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class NonceContext {
+    
+    private static final ThreadLocal<String> NONCE = new ThreadLocal<String>();
+    
+    private NonceContext() {
+    }
+    
+    /**
+     * @return the raw nonce of the current request, or null when nonces are not in use
+     */
+    public static String getNonce() {
+        return NONCE.get();
+    }
+    
+    static void setNonce(String nonce) {
+        
+        if (nonce!=null) {
+            
+            NONCE.set(nonce);
+            
+        } else {
+            
+            NONCE.remove();
+        }
+    }
+    
+    static void clear() {
+        NONCE.remove();
+    }
+    
+}
@@ -0,0 +1,35 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Source of the nonce values used by {@link ContentSecurityPolicyFilter}.
+ * 
+ * Implementations are selected with the nonceGenerator filter init-param, need a public
+ * no-argument constructor and must be safe for concurrent use by request threads.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public interface NonceGenerator {
+
+    public void init(FilterConfig filterConfig) throws ServletException;
+    
+    public String generateNonce();
+    
+    public void destroy();
+}
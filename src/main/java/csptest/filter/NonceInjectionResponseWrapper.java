@@ -0,0 +1,426 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper that streams HTML output through a {@link NonceInjectionScanner}, so pages written
+ * by servlets through getWriter()/getOutputStream() get the inline nonce on script, style and link tags.
+ *
+ * Only responses whose content type is HTML when the writer or stream is obtained are rewritten; the
+ * byte stream is only rewritten for ASCII compatible character encodings. Content-Length set by the
+ * application is dropped for rewritten responses since the body grows.
+ *
+ * @author thealmostrealmccoy
+ *
+ */
+public class NonceInjectionResponseWrapper extends HttpServletResponseWrapper {
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    private static final String[] HTML_CONTENT_TYPES = new String[] {"text/html", "application/xhtml+xml"};
+
+    private static final String[] ASCII_COMPATIBLE_ENCODINGS = new String[] {"UTF-8", "ISO-8859-1", "US-ASCII", "windows-1252"};
+
+    private final String inlineNonce;
+
+    private NonceInjectionScanner scanner;
+
+    private PrintWriter writer;
+
+    private ServletOutputStream outputStream;
+
+    public NonceInjectionResponseWrapper(HttpServletResponse response, String inlineNonce) {
+        super(response);
+        this.inlineNonce = inlineNonce;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+
+        if (writer==null) {
+
+            if (isHtml()) {
+
+                writer = new PrintWriter(new NonceInjectionWriter(super.getWriter()));
+
+            } else {
+
+                writer = super.getWriter();
+            }
+        }
+
+        return writer;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+
+        if (outputStream==null) {
+
+            if ((isHtml())&&(isAsciiCompatible())) {
+
+                outputStream = new NonceInjectionOutputStream(super.getOutputStream());
+
+            } else {
+
+                outputStream = super.getOutputStream();
+            }
+        }
+
+        return outputStream;
+    }
+
+    /**
+     * Releases a start tag still held by the scanner. Called by the filter once the chain has returned.
+     */
+    public void finish() throws IOException {
+
+        if ((scanner!=null)&&(scanner.isScanning())) {
+
+            scanner.finish();
+
+            if (writer!=null) {
+
+                writer.flush();
+
+            } else if (outputStream!=null) {
+
+                outputStream.flush();
+            }
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+
+        if (writer!=null) {
+
+            writer.flush();
+
+        } else if (outputStream!=null) {
+
+            outputStream.flush();
+        }
+
+        super.flushBuffer();
+    }
+
+    @Override
+    public void reset() {
+
+        super.reset();
+
+        if (scanner!=null) {
+
+            scanner.reset();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+
+        super.resetBuffer();
+
+        if (scanner!=null) {
+
+            scanner.reset();
+        }
+    }
+
+    @Override
+    public void setContentLength(int len) {
+
+        if (!isHtml()) {
+
+            super.setContentLength(len);
+        }
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+
+        if (!isHtml()) {
+
+            super.setContentLengthLong(len);
+        }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+
+        if ((!CONTENT_LENGTH.equalsIgnoreCase(name))||(!isHtml())) {
+
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+
+        if ((!CONTENT_LENGTH.equalsIgnoreCase(name))||(!isHtml())) {
+
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+
+        if ((!CONTENT_LENGTH.equalsIgnoreCase(name))||(!isHtml())) {
+
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+
+        if ((!CONTENT_LENGTH.equalsIgnoreCase(name))||(!isHtml())) {
+
+            super.addIntHeader(name, value);
+        }
+    }
+
+    private boolean isHtml() {
+
+        String contentType = getContentType();
+
+        if (contentType!=null) {
+
+            for (String htmlContentType: HTML_CONTENT_TYPES) {
+
+                if (contentType.regionMatches(true, 0, htmlContentType, 0, htmlContentType.length())) {
+
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isAsciiCompatible() {
+
+        String characterEncoding = getCharacterEncoding();
+
+        if (characterEncoding!=null) {
+
+            for (String asciiCompatibleEncoding: ASCII_COMPATIBLE_ENCODINGS) {
+
+                if (asciiCompatibleEncoding.equalsIgnoreCase(characterEncoding)) {
+
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private class NonceInjectionWriter extends Writer {
+
+        private final Writer out;
+
+        private NonceInjectionWriter(final Writer out) {
+
+            this.out = out;
+
+            scanner = new NonceInjectionScanner(inlineNonce) {
+
+                @Override
+                protected void write(char[] buffer, int offset, int length) throws IOException {
+                    out.write(buffer, offset, length);
+                }
+            };
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+
+            if ((!scanner.isScanning())&&(c!='<')) {
+
+                out.write(c);
+
+            } else {
+
+                scanner.accept(c);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+
+            scanner.scan(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+
+            int end = off + len;
+
+            int runStart = off;
+
+            for (int i = off; i < end; i++) {
+
+                char c = str.charAt(i);
+
+                if ((!scanner.isScanning())&&(c!='<')) {
+
+                    continue;
+                }
+
+                if (i > runStart) {
+
+                    out.write(str, runStart, i - runStart);
+                }
+
+                scanner.accept(c);
+
+                runStart = i + 1;
+            }
+
+            if (end > runStart) {
+
+                out.write(str, runStart, end - runStart);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            scanner.finish();
+
+            out.close();
+        }
+    }
+
+    private class NonceInjectionOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+
+        private byte[] bytes = new byte[256];
+
+        private NonceInjectionOutputStream(final ServletOutputStream out) {
+
+            this.out = out;
+
+            scanner = new NonceInjectionScanner(inlineNonce) {
+
+                @Override
+                protected void write(char[] buffer, int offset, int length) throws IOException {
+
+                    if (bytes.length < length) {
+
+                        bytes = new byte[Math.max(length, bytes.length << 1)];
+                    }
+
+                    // only characters that arrived as single bytes are ever held, so this is lossless
+                    for (int i = 0; i < length; i++) {
+
+                        bytes[i] = (byte)buffer[offset + i];
+                    }
+
+                    out.write(bytes, 0, length);
+                }
+            };
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+
+            int c = b & 0xff;
+
+            if ((!scanner.isScanning())&&(c!='<')) {
+
+                out.write(c);
+
+            } else {
+
+                scanner.accept(c);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            int end = off + len;
+
+            int runStart = off;
+
+            for (int i = off; i < end; i++) {
+
+                byte c = b[i];
+
+                if ((!scanner.isScanning())&&(c!='<')) {
+
+                    continue;
+                }
+
+                if (i > runStart) {
+
+                    out.write(b, runStart, i - runStart);
+                }
+
+                scanner.accept(c & 0xff);
+
+                runStart = i + 1;
+            }
+
+            if (end > runStart) {
+
+                out.write(b, runStart, end - runStart);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            scanner.finish();
+
+            out.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            out.setWriteListener(writeListener);
+        }
+    }
+
+}
@@ -0,0 +1,472 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Incremental, single pass scanner that adds the inline nonce to script, style and link start tags.
+ *
+ * Callers pass plain text straight through while {@link #isScanning()} is false and hand every other
+ * character, including the '&lt;' that starts a tag, to {@link #accept(int)}. Only the start tag being
+ * examined is held back, at most {@link #MAX_TAG_LENGTH} characters, so the scanner works across buffer
+ * boundaries without buffering the body. Quoted '&gt;' inside attribute values is honoured and tags that
+ * already carry a nonce attribute are left untouched. The nonce is inserted right after the tag name.
+ *
+ * @author thealmostrealmccoy
+ *
+ */
+public abstract class NonceInjectionScanner {
+
+    public static final int MAX_TAG_LENGTH = 4096;
+
+    private static final String[] TAG_NAMES = new String[] {"script", "style", "link"};
+
+    private static final String NONCE_ATTRIBUTE_NAME = "nonce";
+
+    private static final int TEXT = 0;
+
+    private static final int TAG_NAME = 1;
+
+    private static final int BEFORE_ATTRIBUTE = 2;
+
+    private static final int ATTRIBUTE_NAME = 3;
+
+    private static final int AFTER_ATTRIBUTE_NAME = 4;
+
+    private static final int BEFORE_ATTRIBUTE_VALUE = 5;
+
+    private static final int DOUBLE_QUOTED_VALUE = 6;
+
+    private static final int SINGLE_QUOTED_VALUE = 7;
+
+    private static final int UNQUOTED_VALUE = 8;
+
+    private final char[] nonceAttribute;
+
+    private char[] pending = new char[256];
+
+    private int pendingLength;
+
+    private int state = TEXT;
+
+    private int tagNameCandidates;
+
+    private int tagNameLength;
+
+    private int attributeNameLength;
+
+    private boolean attributeNameMatches;
+
+    private boolean hasNonce;
+
+    private boolean overflowed;
+
+    /**
+     * @param inlineNonce the nonce attribute to insert, e.g. nonce="abc"
+     */
+    protected NonceInjectionScanner(String inlineNonce) {
+
+        this.nonceAttribute = (" " + inlineNonce.trim()).toCharArray();
+    }
+
+    /**
+     * Writes characters that have been released by the scanner.
+     */
+    protected abstract void write(char[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * @return true while a candidate start tag is being examined; callers may bypass {@link #accept(int)} otherwise, except for '&lt;'
+     */
+    public final boolean isScanning() {
+        return state != TEXT;
+    }
+
+    /**
+     * Scans a whole buffer, releasing plain text in runs.
+     */
+    public final void scan(char[] buffer, int offset, int length) throws IOException {
+
+        int end = offset + length;
+
+        int runStart = offset;
+
+        for (int i = offset; i < end; i++) {
+
+            char c = buffer[i];
+
+            if ((state==TEXT)&&(c!='<')) {
+
+                continue;
+            }
+
+            if (i > runStart) {
+
+                write(buffer, runStart, i - runStart);
+            }
+
+            accept(c);
+
+            runStart = i + 1;
+        }
+
+        if (end > runStart) {
+
+            write(buffer, runStart, end - runStart);
+        }
+    }
+
+    /**
+     * Consumes one character.
+     */
+    public final void accept(int c) throws IOException {
+
+        switch (state) {
+
+        case TEXT:
+
+            if (c=='<') {
+
+                startTag();
+
+            } else {
+
+                pendingLength = 0;
+                hold(c);
+                release();
+            }
+            return;
+
+        case TAG_NAME:
+
+            acceptTagName(c);
+            return;
+
+        default:
+
+            if (overflowed) {
+
+                pendingLength = 0;
+                hold(c);
+                release();
+
+            } else {
+
+                hold(c);
+            }
+
+            acceptAttribute(c);
+        }
+    }
+
+    /**
+     * Releases a start tag that is still being examined, e.g. at the end of the body.
+     */
+    public final void finish() throws IOException {
+
+        if (pendingLength > 0) {
+
+            release();
+        }
+
+        state = TEXT;
+    }
+
+    /**
+     * Drops any held characters, e.g. when the response buffer is reset.
+     */
+    public final void reset() {
+
+        pendingLength = 0;
+        state = TEXT;
+    }
+
+    private void startTag() {
+
+        pendingLength = 0;
+        hold('<');
+        state = TAG_NAME;
+        tagNameCandidates = (1 << TAG_NAMES.length) - 1;
+        tagNameLength = 0;
+        hasNonce = false;
+        overflowed = false;
+    }
+
+    private void acceptTagName(int c) throws IOException {
+
+        if (isNameTerminator(c)) {
+
+            if (isCompleteTagName()) {
+
+                state = BEFORE_ATTRIBUTE;
+                hold(c);
+                acceptAttribute(c);
+
+            } else {
+
+                hold(c);
+                release();
+                state = TEXT;
+            }
+            return;
+        }
+
+        int lowerCase = ((c >= 'A')&&(c <= 'Z')) ? c + ('a' - 'A') : c;
+
+        for (int i = 0; i < TAG_NAMES.length; i++) {
+
+            if (((tagNameCandidates & (1 << i))!=0)&&((tagNameLength >= TAG_NAMES[i].length())||(TAG_NAMES[i].charAt(tagNameLength)!=lowerCase))) {
+
+                tagNameCandidates &= ~(1 << i);
+            }
+        }
+
+        tagNameLength++;
+
+        if (tagNameCandidates==0) {
+
+            release();
+            state = TEXT;
+
+            if (c=='<') {
+
+                startTag();
+
+            } else {
+
+                pendingLength = 0;
+                hold(c);
+                release();
+            }
+            return;
+        }
+
+        hold(c);
+    }
+
+    private boolean isCompleteTagName() {
+
+        for (int i = 0; i < TAG_NAMES.length; i++) {
+
+            if (((tagNameCandidates & (1 << i))!=0)&&(TAG_NAMES[i].length()==tagNameLength)) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void acceptAttribute(int c) throws IOException {
+
+        switch (state) {
+
+        case BEFORE_ATTRIBUTE:
+
+            if (c=='>') {
+
+                endTag();
+
+            } else if ((!isWhitespace(c))&&(c!='/')) {
+
+                startAttributeName(c);
+            }
+            break;
+
+        case ATTRIBUTE_NAME:
+
+            if ((c=='=')||(c=='>')||(c=='/')||(isWhitespace(c))) {
+
+                if ((attributeNameMatches)&&(attributeNameLength==NONCE_ATTRIBUTE_NAME.length())) {
+
+                    hasNonce = true;
+                }
+
+                if (c=='=') {
+
+                    state = BEFORE_ATTRIBUTE_VALUE;
+
+                } else if (c=='>') {
+
+                    endTag();
+
+                } else {
+
+                    state = (c=='/') ? BEFORE_ATTRIBUTE : AFTER_ATTRIBUTE_NAME;
+                }
+
+            } else {
+
+                matchAttributeName(c);
+            }
+            break;
+
+        case AFTER_ATTRIBUTE_NAME:
+
+            if (c=='=') {
+
+                state = BEFORE_ATTRIBUTE_VALUE;
+
+            } else if (c=='>') {
+
+                endTag();
+
+            } else if (c=='/') {
+
+                state = BEFORE_ATTRIBUTE;
+
+            } else if (!isWhitespace(c)) {
+
+                startAttributeName(c);
+            }
+            break;
+
+        case BEFORE_ATTRIBUTE_VALUE:
+
+            if (c=='"') {
+
+                state = DOUBLE_QUOTED_VALUE;
+
+            } else if (c=='\'') {
+
+                state = SINGLE_QUOTED_VALUE;
+
+            } else if (c=='>') {
+
+                endTag();
+
+            } else if (!isWhitespace(c)) {
+
+                state = UNQUOTED_VALUE;
+            }
+            break;
+
+        case DOUBLE_QUOTED_VALUE:
+
+            if (c=='"') {
+
+                state = BEFORE_ATTRIBUTE;
+            }
+            break;
+
+        case SINGLE_QUOTED_VALUE:
+
+            if (c=='\'') {
+
+                state = BEFORE_ATTRIBUTE;
+            }
+            break;
+
+        case UNQUOTED_VALUE:
+
+            if (c=='>') {
+
+                endTag();
+
+            } else if (isWhitespace(c)) {
+
+                state = BEFORE_ATTRIBUTE;
+            }
+            break;
+
+        default:
+            break;
+        }
+
+        if ((state!=TEXT)&&(!overflowed)&&(pendingLength >= MAX_TAG_LENGTH)) {
+
+            // too long to hold back: inject without knowing whether the tag already has a nonce
+            releaseWithNonce();
+            overflowed = true;
+        }
+    }
+
+    private void startAttributeName(int c) {
+
+        state = ATTRIBUTE_NAME;
+        attributeNameLength = 0;
+        attributeNameMatches = true;
+        matchAttributeName(c);
+    }
+
+    private void matchAttributeName(int c) {
+
+        int lowerCase = ((c >= 'A')&&(c <= 'Z')) ? c + ('a' - 'A') : c;
+
+        if ((attributeNameLength >= NONCE_ATTRIBUTE_NAME.length())||(NONCE_ATTRIBUTE_NAME.charAt(attributeNameLength)!=lowerCase)) {
+
+            attributeNameMatches = false;
+        }
+
+        attributeNameLength++;
+    }
+
+    private void endTag() throws IOException {
+
+        if (overflowed) {
+
+            pendingLength = 0;
+
+        } else if (hasNonce) {
+
+            release();
+
+        } else {
+
+            releaseWithNonce();
+        }
+
+        state = TEXT;
+    }
+
+    private void releaseWithNonce() throws IOException {
+
+        int nameEnd = 1 + tagNameLength;
+
+        write(pending, 0, nameEnd);
+
+        write(nonceAttribute, 0, nonceAttribute.length);
+
+        write(pending, nameEnd, pendingLength - nameEnd);
+
+        pendingLength = 0;
+    }
+
+    private void hold(int c) {
+
+        if (pendingLength==pending.length) {
+
+            pending = Arrays.copyOf(pending, pending.length << 1);
+        }
+
+        pending[pendingLength++] = (char)c;
+    }
+
+    private void release() throws IOException {
+
+        write(pending, 0, pendingLength);
+
+        pendingLength = 0;
+    }
+
+    private static boolean isNameTerminator(int c) {
+        return (c=='>')||(c=='/')||(isWhitespace(c));
+    }
+
+    private static boolean isWhitespace(int c) {
+        return (c==' ')||(c=='\t')||(c=='\n')||(c=='\r')||(c=='\f');
+    }
+
+}
@@ -0,0 +1,274 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link NonceGenerator} decorator that serves nonces from a lock-free ring refilled by a background daemon thread.
+ * 
+ * Request threads claim a slot with a single compare-and-set and fall back to the wrapped generator
+ * when the ring is empty (an underrun). The refill thread tops the ring up to capacity and then sleeps
+ * until occupancy drops to the refill watermark.
+ * 
+ * Init-params: nonceRingCapacity (rounded up to a power of two) and nonceRingRefillWatermark (defaults to half the capacity).
+ * The instance is published as a servlet context attribute under its class name so the counters can be inspected.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class PreGeneratedNonceGenerator implements NonceGenerator {
+    
+    private static final Log log = LogFactory.getLog(PreGeneratedNonceGenerator.class);
+    
+    public static final String NONCE_RING_CAPACITY = "nonceRingCapacity";
+    
+    public static final String NONCE_RING_REFILL_WATERMARK = "nonceRingRefillWatermark";
+    
+    private final NonceGenerator delegate;
+    
+    private final AtomicLong head = new AtomicLong();
+    
+    private final AtomicLong underrunCount = new AtomicLong();
+    
+    private final AtomicLong hitCount = new AtomicLong();
+    
+    private volatile long tail;
+    
+    private volatile boolean running;
+    
+    private volatile boolean refillerParked;
+    
+    private AtomicReferenceArray<String> ring;
+    
+    private int capacity;
+    
+    private int mask;
+    
+    private int refillWatermark;
+    
+    private Thread refiller;
+    
+    public PreGeneratedNonceGenerator(NonceGenerator delegate) {
+        this.delegate = delegate;
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.filter.NonceGenerator#init(javax.servlet.FilterConfig)
+     */
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        
+        delegate.init(filterConfig);
+        
+        int requestedCapacity = getIntInitParameter(filterConfig, NONCE_RING_CAPACITY, 1024);
+        
+        capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        
+        mask = capacity - 1;
+        
+        refillWatermark = Math.min(capacity - 1, Math.max(0, getIntInitParameter(filterConfig, NONCE_RING_REFILL_WATERMARK, capacity / 2)));
+        
+        ring = new AtomicReferenceArray<String>(capacity);
+        
+        running = true;
+        
+        refiller = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                refill();
+            }
+            
+        }, "csp-nonce-refill");
+        
+        refiller.setDaemon(true);
+        refiller.start();
+        
+        if ((filterConfig!=null)&&(filterConfig.getServletContext()!=null)) {
+            
+            filterConfig.getServletContext().setAttribute(PreGeneratedNonceGenerator.class.getName(), this);
+        }
+    }
+    
+    static int getIntInitParameter(FilterConfig filterConfig, String name, int defaultValue) {
+        
+        String value = (filterConfig!=null) ? filterConfig.getInitParameter(name) : null;
+        
+        if ((value!=null)&&(!value.trim().equals(""))) {
+            
+            try {
+                
+                return Integer.parseInt(value.trim());
+                
+            } catch (NumberFormatException e) {
+                
+                log.warn("Ignoring invalid value for " + name + " - " + value);
+            }
+        }
+        
+        return defaultValue;
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.filter.NonceGenerator#generateNonce()
+     */
+    @Override
+    public String generateNonce() {
+        
+        for (;;) {
+            
+            long position = head.get();
+            
+            if (position >= tail) {
+                
+                underrunCount.incrementAndGet();
+                
+                wakeRefiller();
+                
+                return delegate.generateNonce();
+            }
+            
+            String nonce = ring.get((int)position & mask);
+            
+            if (head.compareAndSet(position, position + 1)) {
+                
+                hitCount.incrementAndGet();
+                
+                if ((refillerParked)&&(tail - (position + 1) <= refillWatermark)) {
+                    
+                    wakeRefiller();
+                }
+                
+                return nonce;
+            }
+        }
+    }
+    
+    private void wakeRefiller() {
+        
+        if (refillerParked) {
+            
+            LockSupport.unpark(refiller);
+        }
+    }
+    
+    /**
+     * Single producer: only this thread writes slots and advances the tail.
+     * A slot is only overwritten once its previous nonce has been claimed by a consumer.
+     */
+    private void refill() {
+        
+        while (running) {
+            
+            long position = tail;
+            
+            if (position - head.get() < capacity) {
+                
+                try {
+                    
+                    ring.set((int)position & mask, delegate.generateNonce());
+                    
+                    tail = position + 1;
+                    
+                } catch (RuntimeException e) {
+                    
+                    log.error("Unable to pre-generate nonce", e);
+                    
+                    LockSupport.parkNanos(this, 1000000000L);
+                }
+                
+                continue;
+            }
+            
+            refillerParked = true;
+            
+            while ((running)&&(tail - head.get() > refillWatermark)) {
+                
+                LockSupport.park(this);
+            }
+            
+            refillerParked = false;
+        }
+    }
+    
+    /**
+     * @return the number of nonces currently waiting in the ring
+     */
+    public int getOccupancy() {
+        return (int)Math.max(0, tail - head.get());
+    }
+    
+    /**
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the refillWatermark
+     */
+    public int getRefillWatermark() {
+        return refillWatermark;
+    }
+
+    /**
+     * @return the number of requests that found the ring empty and generated inline
+     */
+    public long getUnderrunCount() {
+        return underrunCount.get();
+    }
+
+    /**
+     * @return the number of requests served from the ring
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.filter.NonceGenerator#destroy()
+     */
+    @Override
+    public void destroy() {
+        
+        running = false;
+        
+        if (refiller!=null) {
+            
+            LockSupport.unpark(refiller);
+            
+            try {
+                
+                refiller.join(1000);
+                
+            } catch (InterruptedException e) {
+                
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        delegate.destroy();
+    }
+
+}
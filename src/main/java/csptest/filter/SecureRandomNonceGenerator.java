@@ -0,0 +1,155 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.filter;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Default {@link NonceGenerator}.
+ * 
+ * Keeps a striped set of {@link SecureRandom} instances that are created and seeded in init(),
+ * draws one block of random bytes per nonce and base64url encodes it through a lookup table.
+ * 24 random bytes give a 32 character nonce without padding.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class SecureRandomNonceGenerator implements NonceGenerator {
+    
+    private static final String NONCE_ALGORITHM = "nonceAlgorithm";
+    
+    private static final String NONCE_ALGORITHM_PROVIDER = "nonceAlgorithmProvider";
+    
+    private static final String DEFAULT_NONCE_ALGORITHM = "SHA1PRNG";
+    
+    private static final String DEFAULT_NONCE_ALGORITHM_PROVIDER = "SUN";
+    
+    private static final int NONCE_BYTE_LENGTH = 24;
+    
+    private static final int NONCE_CHAR_LENGTH = NONCE_BYTE_LENGTH / 3 * 4;
+    
+    private static final char[] BASE64URL_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    
+    private Stripe[] stripes;
+    
+    private int stripeMask;
+    
+    private static final class Stripe {
+        
+        private final SecureRandom generator;
+        
+        private final byte[] bytes = new byte[NONCE_BYTE_LENGTH];
+        
+        private final char[] chars = new char[NONCE_CHAR_LENGTH];
+        
+        private Stripe(SecureRandom generator) {
+            this.generator = generator;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.filter.NonceGenerator#init(javax.servlet.FilterConfig)
+     */
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        
+        String algorithm = getInitParameter(filterConfig, NONCE_ALGORITHM, DEFAULT_NONCE_ALGORITHM);
+        
+        String provider = getInitParameter(filterConfig, NONCE_ALGORITHM_PROVIDER, DEFAULT_NONCE_ALGORITHM_PROVIDER);
+        
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        
+        Stripe[] stripes = new Stripe[stripeCount];
+        
+        try {
+            
+            for (int i = 0; i < stripeCount; i++) {
+                
+                SecureRandom generator = ((provider!=null)&&(!provider.equals(""))) ? SecureRandom.getInstance(algorithm, provider) : SecureRandom.getInstance(algorithm);
+                
+                // force seeding now rather than on the first request
+                generator.nextBytes(new byte[1]);
+                
+                stripes[i] = new Stripe(generator);
+            }
+            
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            
+            throw new ServletException(e);
+        }
+        
+        this.stripes = stripes;
+        this.stripeMask = stripeCount - 1;
+    }
+    
+    private String getInitParameter(FilterConfig filterConfig, String name, String defaultValue) {
+        
+        String value = (filterConfig!=null) ? filterConfig.getInitParameter(name) : null;
+        
+        if ((value!=null)&&(!value.trim().equals(""))) {
+            
+            return value.trim();
+        }
+        
+        return defaultValue;
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.filter.NonceGenerator#generateNonce()
+     */
+    @Override
+    public String generateNonce() {
+        
+        Stripe stripe = stripes[(int)Thread.currentThread().getId() & stripeMask];
+        
+        synchronized (stripe) {
+            
+            stripe.generator.nextBytes(stripe.bytes);
+            
+            encode(stripe.bytes, stripe.chars);
+            
+            return new String(stripe.chars);
+        }
+    }
+    
+    private static void encode(byte[] bytes, char[] chars) {
+        
+        int c = 0;
+        
+        for (int b = 0; b < bytes.length; b += 3) {
+            
+            int bits = ((bytes[b] & 0xff) << 16) | ((bytes[b + 1] & 0xff) << 8) | (bytes[b + 2] & 0xff);
+            
+            chars[c++] = BASE64URL_ALPHABET[(bits >>> 18) & 0x3f];
+            chars[c++] = BASE64URL_ALPHABET[(bits >>> 12) & 0x3f];
+            chars[c++] = BASE64URL_ALPHABET[(bits >>> 6) & 0x3f];
+            chars[c++] = BASE64URL_ALPHABET[bits & 0x3f];
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.filter.NonceGenerator#destroy()
+     */
+    @Override
+    public void destroy() {
+        
+        // SecureRandom instances hold no resources that need releasing
+    }
+
+}
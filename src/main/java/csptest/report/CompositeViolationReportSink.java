@@ -0,0 +1,92 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.util.List;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hands every batch to several sinks in turn, e.g. the aggregator and the store. Used when the
+ * violationReportSink init-param lists more than one class, separated by commas.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class CompositeViolationReportSink implements ViolationReportSink {
+    
+    private static final Log log = LogFactory.getLog(CompositeViolationReportSink.class);
+    
+    private final List<ViolationReportSink> violationReportSinkList;
+    
+    public CompositeViolationReportSink(List<ViolationReportSink> violationReportSinkList) {
+        this.violationReportSinkList = violationReportSinkList;
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#init(javax.servlet.ServletConfig)
+     */
+    @Override
+    public void init(ServletConfig servletConfig) throws ServletException {
+        
+        for (ViolationReportSink violationReportSink: violationReportSinkList) {
+            
+            violationReportSink.init(servletConfig);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#write(java.util.List)
+     */
+    @Override
+    public void write(List<ViolationReport> violationReportList) {
+        
+        for (ViolationReportSink violationReportSink: violationReportSinkList) {
+            
+            try {
+                
+                violationReportSink.write(violationReportList);
+                
+            } catch (RuntimeException e) {
+                
+                // one failing sink must not starve the others
+                log.warn("Violation report sink failed - " + violationReportSink.getClass().getName(), e);
+            }
+        }
+    }
+    
+    /**
+     * @return the sinks, in delivery order
+     */
+    public List<ViolationReportSink> getViolationReportSinkList() {
+        return violationReportSinkList;
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#destroy()
+     */
+    @Override
+    public void destroy() {
+        
+        for (ViolationReportSink violationReportSink: violationReportSinkList) {
+            
+            violationReportSink.destroy();
+        }
+    }
+    
+}
@@ -0,0 +1,275 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Answers violation queries as JSON from the {@link ViolationRollupBuckets} kept by {@link ViolationAggregator}:
+ * 
+ * query=top-blocked-uris (optionally directive=script-src), query=document-uris and query=rate (step=seconds, default 60),
+ * each over the last window seconds (default 3600), with limit results (default 10).
+ * 
+ * Windows end on the next minute boundary and results are cached per query and window until the next rollup
+ * arrives, so dashboards polling every few seconds are answered from the cache.
+ * 
+ * Init-param: queryCacheSize (default 256 entries).
+ * 
+ * The answers carry the URIs reported by every visitor, so the mapping must be protected: web.xml limits it to the
+ * csp-admin role with a security-constraint and BASIC authentication.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ContentSecurityPolicyViolationQuery extends HttpServlet {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private static final String QUERY_CACHE_SIZE = "queryCacheSize";
+    
+    private static final String TOP_BLOCKED_URIS = "top-blocked-uris";
+    
+    private static final String DOCUMENT_URIS = "document-uris";
+    
+    private static final String RATE = "rate";
+    
+    private static final int MAX_LIMIT = 1000;
+    
+    private static final long MAX_WINDOW = 366L * 24L * 3600L;
+    
+    private final ConcurrentHashMap<String, CachedResponse> responseCache = new ConcurrentHashMap<String, CachedResponse>();
+    
+    private int queryCacheSize;
+    
+    private static final class CachedResponse {
+        
+        private final long version;
+        
+        private final String body;
+        
+        private CachedResponse(long version, String body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+    
+    @Override
+    public void init() throws ServletException {
+        
+        setQueryCacheSize(Math.max(1, ContentSecurityPolicyViolationReporter.getIntInitParameter(getServletConfig(), QUERY_CACHE_SIZE, 256)));
+    }
+    
+    @Override
+    public void doGet(HttpServletRequest request,
+                      HttpServletResponse response)
+        throws IOException, ServletException
+    {
+        
+        ViolationRollupBuckets rollupBuckets = (ViolationRollupBuckets)getServletContext().getAttribute(ViolationRollupBuckets.class.getName());
+        
+        if (rollupBuckets==null) {
+            
+            // no ViolationAggregator configured, or the reporter has not been initialised yet
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        
+        String query = request.getParameter("query");
+        
+        String directive = request.getParameter("directive");
+        
+        if ((directive!=null)&&(directive.trim().equals(""))) {
+            
+            directive = null;
+        }
+        
+        long window = getLongParameter(request, "window", 3600);
+        
+        long step = getLongParameter(request, "step", 60);
+        
+        long limit = getLongParameter(request, "limit", 10);
+        
+        if ((query==null)||((!TOP_BLOCKED_URIS.equals(query))&&(!DOCUMENT_URIS.equals(query))&&(!RATE.equals(query)))
+                ||(window <= 0)||(window > MAX_WINDOW)||(step <= 0)||(step > window)||(limit <= 0)||(limit > MAX_LIMIT)) {
+            
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        
+        long to = now - now % ViolationRollupBuckets.MINUTE + ViolationRollupBuckets.MINUTE;
+        
+        long from = to - window * 1000L;
+        
+        String cacheKey = query + '|' + directive + '|' + from + '|' + to + '|' + step + '|' + limit;
+        
+        // read the version first, a rollup arriving during the query only makes the entry stale early
+        long version = rollupBuckets.getVersion();
+        
+        CachedResponse cachedResponse = responseCache.get(cacheKey);
+        
+        if ((cachedResponse==null)||(cachedResponse.version!=version)) {
+            
+            StringBuilder str = new StringBuilder(1024);
+            
+            str.append("{\"query\":");
+            appendJsonString(str, query);
+            str.append(",\"from\":").append(from);
+            str.append(",\"to\":").append(to);
+            
+            if (RATE.equals(query)) {
+                
+                long[] rate = rollupBuckets.getRate(from, to, step * 1000L);
+                
+                str.append(",\"step\":").append(Math.max(ViolationRollupBuckets.MINUTE, step * 1000L));
+                str.append(",\"counts\":[");
+                
+                for (int i = 0; i < rate.length; i++) {
+                    
+                    if (i > 0) {
+                        
+                        str.append(',');
+                    }
+                    
+                    str.append(rate[i]);
+                }
+                
+                str.append(']');
+                
+            } else {
+                
+                List<ViolationCount> violationCountList;
+                
+                if (TOP_BLOCKED_URIS.equals(query)) {
+                    
+                    str.append(",\"directive\":");
+                    appendJsonString(str, directive);
+                    
+                    violationCountList = rollupBuckets.getTopBlockedUris(directive, from, to, (int)limit);
+                    
+                } else {
+                    
+                    violationCountList = rollupBuckets.getTopDocumentUris(from, to, (int)limit);
+                }
+                
+                str.append(",\"results\":[");
+                
+                for (int i = 0; i < violationCountList.size(); i++) {
+                    
+                    if (i > 0) {
+                        
+                        str.append(',');
+                    }
+                    
+                    str.append("{\"value\":");
+                    appendJsonString(str, violationCountList.get(i).getValue());
+                    str.append(",\"count\":").append(violationCountList.get(i).getCount());
+                    str.append('}');
+                }
+                
+                str.append(']');
+            }
+            
+            str.append('}');
+            
+            cachedResponse = new CachedResponse(version, str.toString());
+            
+            if (responseCache.size() >= getQueryCacheSize()) {
+                
+                // entries of past windows are never asked for again
+                responseCache.clear();
+            }
+            
+            responseCache.put(cacheKey, cachedResponse);
+        }
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(cachedResponse.body);
+    }
+    
+    private static long getLongParameter(HttpServletRequest request, String name, long defaultValue) {
+        
+        String value = request.getParameter(name);
+        
+        if ((value!=null)&&(!value.trim().equals(""))) {
+            
+            try {
+                
+                return Long.parseLong(value.trim());
+                
+            } catch (NumberFormatException e) {
+                
+                return -1;
+            }
+        }
+        
+        return defaultValue;
+    }
+    
+    private static void appendJsonString(StringBuilder str, String value) {
+        
+        if (value==null) {
+            
+            str.append("null");
+            return;
+        }
+        
+        str.append('"');
+        
+        for (int i = 0; i < value.length(); i++) {
+            
+            char c = value.charAt(i);
+            
+            if ((c=='"')||(c=='\\')) {
+                
+                str.append('\\').append(c);
+                
+            } else if ((c < 0x20)||(c=='<')||(c=='>')||(c=='&')||(c==0x2028)||(c==0x2029)) {
+                
+                str.append(String.format("\\u%04x", (int)c));
+                
+            } else {
+                
+                str.append(c);
+            }
+        }
+        
+        str.append('"');
+    }
+
+    /**
+     * @return the queryCacheSize
+     */
+    private int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    /**
+     * @param queryCacheSize the queryCacheSize to set
+     */
+    private void setQueryCacheSize(int queryCacheSize) {
+        this.queryCacheSize = queryCacheSize;
+    }
+    
+}
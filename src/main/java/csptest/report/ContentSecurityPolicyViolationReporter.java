@@ -13,11 +13,13 @@
  */
 package csptest.report;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -27,6 +29,23 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
+ * Receives violation reports, either one legacy application/csp-report per request or a Reporting API
+ * application/reports+json batch, and hands them to a bounded {@link ViolationReportQueue}, answering 204
+ * straight away; a single consumer thread delivers them in batches to the configured {@link ViolationReportSink}.
+ * 
+ * Init-params: violationReportSink (class name, or several separated by commas, defaults to {@link LogViolationReportSink}), reportQueueCapacity,
+ * reportBatchSize, reportOverflowPolicy (drop-newest, drop-oldest or sample), reportOverflowSampleRate and
+ * maxReportSize (bytes, larger bodies are refused with 413).
+ * 
+ * Per-client rate limiting, applied before the body is read and answered with 429: reportRateLimit (reports
+ * per second, 0 disables), reportRateBurst, reportRateLimitHeader (e.g. X-Forwarded-For behind a proxy, the
+ * last address of the list is used), reportRateLimitClients and reportRateLimitIdleTimeout (seconds).
+ * 
+ * Noise filtering, applied while the body is parsed so matching reports are never queued: reportNoiseFilter
+ * (comma or whitespace separated {@link ViolationNoiseFilter} rules, e.g. chrome-extension or *.example.com).
+ * 
+ * The queue, the limiter and the noise filter are published as servlet context attributes under their class names so the counters can be inspected.
+ * 
  * @author thealmostrealmccoy
  *
  */
@@ -34,16 +53,206 @@ public class ContentSecurityPolicyViolationReporter extends HttpServlet {
     
     private static final Log log = LogFactory.getLog(ContentSecurityPolicyViolationReporter.class);
     
+    private static final String VIOLATION_REPORT_SINK = "violationReportSink";
+    
+    private static final String REPORT_QUEUE_CAPACITY = "reportQueueCapacity";
+    
+    private static final String REPORT_BATCH_SIZE = "reportBatchSize";
+    
+    private static final String REPORT_OVERFLOW_POLICY = "reportOverflowPolicy";
+    
+    private static final String REPORT_OVERFLOW_SAMPLE_RATE = "reportOverflowSampleRate";
+    
+    private static final String MAX_REPORT_SIZE = "maxReportSize";
+    
+    private static final String REPORT_RATE_LIMIT = "reportRateLimit";
+    
+    private static final String REPORT_RATE_BURST = "reportRateBurst";
+    
+    private static final String REPORT_RATE_LIMIT_HEADER = "reportRateLimitHeader";
+    
+    private static final String REPORT_RATE_LIMIT_CLIENTS = "reportRateLimitClients";
+    
+    private static final String REPORT_RATE_LIMIT_IDLE_TIMEOUT = "reportRateLimitIdleTimeout";
+    
+    private static final String REPORT_NOISE_FILTER = "reportNoiseFilter";
+    
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    
+    private static final String REPORTS_CONTENT_TYPE = "application/reports+json";
+    
+    private static final int INITIAL_REPORT_BUFFER_SIZE = 4096;
+    
+    private final ThreadLocal<byte[]> reportBuffer = new ThreadLocal<byte[]>() {
+        
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_REPORT_BUFFER_SIZE];
+        }
+    };
+    
+    private int maxReportSize;
+    
+    private ReportRateLimiter reportRateLimiter;
+    
+    private String reportRateLimitHeader;
+    
+    private ViolationNoiseFilter violationNoiseFilter;
+    
+    private ViolationReportSink violationReportSink;
+    
+    private ViolationReportQueue violationReportQueue;
+    
+    @Override
+    public void init() throws ServletException {
+        
+        ServletConfig servletConfig = getServletConfig();
+        
+        OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+        
+        String overflowPolicyName = servletConfig.getInitParameter(REPORT_OVERFLOW_POLICY);
+        
+        if ((overflowPolicyName!=null)&&(!overflowPolicyName.trim().equals(""))) {
+            
+            try {
+                
+                overflowPolicy = OverflowPolicy.parse(overflowPolicyName);
+                
+            } catch (IllegalArgumentException e) {
+                
+                throw new ServletException("Unknown report overflow policy - " + overflowPolicyName, e);
+            }
+        }
+        
+        setMaxReportSize(Math.max(1, getIntInitParameter(servletConfig, MAX_REPORT_SIZE, 65536)));
+        
+        int reportRateLimit = getIntInitParameter(servletConfig, REPORT_RATE_LIMIT, 0);
+        
+        if (reportRateLimit > 0) {
+            
+            ReportRateLimiter reportRateLimiter = new ReportRateLimiter(reportRateLimit, 
+                    getIntInitParameter(servletConfig, REPORT_RATE_BURST, 2 * reportRateLimit), 
+                    getIntInitParameter(servletConfig, REPORT_RATE_LIMIT_CLIENTS, 10000), 
+                    getIntInitParameter(servletConfig, REPORT_RATE_LIMIT_IDLE_TIMEOUT, 300));
+            
+            setReportRateLimiter(reportRateLimiter);
+            
+            getServletContext().setAttribute(ReportRateLimiter.class.getName(), reportRateLimiter);
+            
+            String reportRateLimitHeader = servletConfig.getInitParameter(REPORT_RATE_LIMIT_HEADER);
+            
+            if ((reportRateLimitHeader!=null)&&(!reportRateLimitHeader.trim().equals(""))) {
+                
+                setReportRateLimitHeader(reportRateLimitHeader.trim());
+            }
+        }
+        
+        ViolationNoiseFilter violationNoiseFilter = ViolationNoiseFilter.compile(servletConfig.getInitParameter(REPORT_NOISE_FILTER));
+        
+        if (violationNoiseFilter!=null) {
+            
+            setViolationNoiseFilter(violationNoiseFilter);
+            
+            getServletContext().setAttribute(ViolationNoiseFilter.class.getName(), violationNoiseFilter);
+        }
+        
+        ViolationReportSink violationReportSink = createViolationReportSink(servletConfig.getInitParameter(VIOLATION_REPORT_SINK));
+        
+        violationReportSink.init(servletConfig);
+        
+        setViolationReportSink(violationReportSink);
+        
+        ViolationReportQueue violationReportQueue = new ViolationReportQueue(violationReportSink, 
+                getIntInitParameter(servletConfig, REPORT_QUEUE_CAPACITY, 10000), 
+                getIntInitParameter(servletConfig, REPORT_BATCH_SIZE, 256), 
+                overflowPolicy, 
+                getIntInitParameter(servletConfig, REPORT_OVERFLOW_SAMPLE_RATE, 10));
+        
+        violationReportQueue.start();
+        
+        setViolationReportQueue(violationReportQueue);
+        
+        getServletContext().setAttribute(ViolationReportQueue.class.getName(), violationReportQueue);
+    }
+    
+    @Override
+    public void destroy() {
+        
+        if (getViolationReportQueue()!=null) {
+            
+            getViolationReportQueue().stop();
+        }
+        
+        if (getViolationReportSink()!=null) {
+            
+            getViolationReportSink().destroy();
+        }
+    }
+    
     @Override
     public void doGet(HttpServletRequest request,
                       HttpServletResponse response)
         throws IOException, ServletException
     {
         
-        String cspReport = getInputStreamContentAsString(request.getInputStream());
+        String clientAddress = getClientAddress(request);
+        
+        if ((getReportRateLimiter()!=null)&&(!getReportRateLimiter().tryAcquire(clientAddress))) {
+            
+            response.setStatus(SC_TOO_MANY_REQUESTS);
+            return;
+        }
+        
+        long contentLength = request.getContentLengthLong();
+        
+        if (contentLength > getMaxReportSize()) {
+            
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        
+        int length = readReportBody(request.getInputStream(), contentLength);
+        
+        if (length < 0) {
+            
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
         
-        log.debug(cspReport);
+        long receivedTime = System.currentTimeMillis();
         
+        if (isReportsContentType(request.getContentType())) {
+            
+            List<ViolationReport> violationReportList = new ArrayList<ViolationReport>();
+            
+            if (ViolationReportParser.parseReports(reportBuffer.get(), 0, length, receivedTime, clientAddress, violationReportList, getViolationNoiseFilter()) < 0) {
+                
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            
+            for (ViolationReport violationReport: violationReportList) {
+                
+                getViolationReportQueue().offer(violationReport);
+            }
+            
+        } else {
+            
+            ViolationReport violationReport = ViolationReportParser.parseCspReport(reportBuffer.get(), 0, length, receivedTime, clientAddress, getViolationNoiseFilter());
+            
+            if (violationReport==null) {
+                
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            
+            if (violationReport!=ViolationReportParser.DROPPED) {
+                
+                getViolationReportQueue().offer(violationReport);
+            }
+        }
+        
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
     }
     
     @Override
@@ -54,34 +263,210 @@ public class ContentSecurityPolicyViolationReporter extends HttpServlet {
         doGet(request, response);
     }
     
-    private String getInputStreamContentAsString(InputStream inputStream) throws IOException {
+    private ViolationReportSink createViolationReportSink(String violationReportSinkClassName) throws ServletException {
         
-        assert inputStream!=null;
+        if ((violationReportSinkClassName==null)||(violationReportSinkClassName.trim().equals(""))) {
+            
+            return new LogViolationReportSink();
+        }
         
-        StringBuilder rawContent = null;
-
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream))) {
-
-            int c = bufferedReader.read();
-            while (c != -1) {
-
-                if (rawContent == null) {
-                    rawContent = new StringBuilder();
+        if (violationReportSinkClassName.indexOf(',') >= 0) {
+            
+            List<ViolationReportSink> violationReportSinkList = new ArrayList<ViolationReportSink>();
+            
+            for (String className: violationReportSinkClassName.split(",")) {
+                
+                if (!className.trim().equals("")) {
+                    
+                    violationReportSinkList.add(createViolationReportSink(className));
                 }
-                rawContent.append((char) c);
-
-                c = bufferedReader.read();
             }
             
+            return new CompositeViolationReportSink(violationReportSinkList);
         }
         
-        if (rawContent!=null) {
-
-            return rawContent.toString();
+        try {
+            
+            Class<?> violationReportSinkClass = Class.forName(violationReportSinkClassName.trim(), true, Thread.currentThread().getContextClassLoader());
+            
+            return (ViolationReportSink) violationReportSinkClass.getDeclaredConstructor().newInstance();
+            
+        } catch (ReflectiveOperationException|ClassCastException e) {
+            
+            throw new ServletException("Unable to create violation report sink - " + violationReportSinkClassName, e);
+        }
+    }
+    
+    static int getIntInitParameter(ServletConfig servletConfig, String name, int defaultValue) {
+        
+        String value = (servletConfig!=null) ? servletConfig.getInitParameter(name) : null;
+        
+        if ((value!=null)&&(!value.trim().equals(""))) {
+            
+            try {
+                
+                return Integer.parseInt(value.trim());
+                
+            } catch (NumberFormatException e) {
+                
+                log.warn("Ignoring invalid value for " + name + " - " + value);
+            }
+        }
+        
+        return defaultValue;
+    }
+    
+    private static boolean isReportsContentType(String contentType) {
+        return (contentType!=null)&&(contentType.regionMatches(true, 0, REPORTS_CONTENT_TYPE, 0, REPORTS_CONTENT_TYPE.length()));
+    }
+    
+    /**
+     * @return the remote address, or the last address of the configured header when running behind a proxy
+     */
+    private String getClientAddress(HttpServletRequest request) {
+        
+        if (getReportRateLimitHeader()!=null) {
+            
+            String header = request.getHeader(getReportRateLimitHeader());
+            
+            if ((header!=null)&&(!header.trim().equals(""))) {
+                
+                // the last entry was added by the proxy, earlier ones come from the client and can be forged
+                return header.substring(header.lastIndexOf(',') + 1).trim();
+            }
+        }
+        
+        return request.getRemoteAddr();
+    }
+    
+    /**
+     * Bulk reads the body into the thread's report buffer, which grows on demand up to maxReportSize.
+     * 
+     * @return the body length, or -1 when the body is larger than maxReportSize
+     */
+    private int readReportBody(InputStream inputStream, long contentLength) throws IOException {
+        
+        int maxReportSize = getMaxReportSize();
+        
+        byte[] buffer = reportBuffer.get();
+        
+        if (contentLength >= buffer.length) {
+            
+            buffer = new byte[(int)Math.min(contentLength + 1, maxReportSize + 1L)];
+            reportBuffer.set(buffer);
+        }
+        
+        int length = 0;
+        
+        for (;;) {
+            
+            if (length==buffer.length) {
+                
+                if (length > maxReportSize) {
+                    
+                    return -1;
+                }
+                
+                // one byte beyond the limit is enough to detect an oversized body
+                buffer = Arrays.copyOf(buffer, (int)Math.min((long)buffer.length << 1, maxReportSize + 1L));
+                reportBuffer.set(buffer);
+            }
+            
+            int read = inputStream.read(buffer, length, buffer.length - length);
+            
+            if (read == -1) {
+                
+                break;
+            }
             
+            length += read;
         }
         
-        return null;
-    }    
+        return (length > maxReportSize) ? -1 : length;
+    }
+    
+    /**
+     * @return the maxReportSize
+     */
+    private int getMaxReportSize() {
+        return maxReportSize;
+    }
+
+    /**
+     * @param maxReportSize the maxReportSize to set
+     */
+    private void setMaxReportSize(int maxReportSize) {
+        this.maxReportSize = maxReportSize;
+    }
+
+    /**
+     * @return the reportRateLimiter
+     */
+    private ReportRateLimiter getReportRateLimiter() {
+        return reportRateLimiter;
+    }
+
+    /**
+     * @param reportRateLimiter the reportRateLimiter to set
+     */
+    private void setReportRateLimiter(ReportRateLimiter reportRateLimiter) {
+        this.reportRateLimiter = reportRateLimiter;
+    }
+
+    /**
+     * @return the reportRateLimitHeader
+     */
+    private String getReportRateLimitHeader() {
+        return reportRateLimitHeader;
+    }
+
+    /**
+     * @param reportRateLimitHeader the reportRateLimitHeader to set
+     */
+    private void setReportRateLimitHeader(String reportRateLimitHeader) {
+        this.reportRateLimitHeader = reportRateLimitHeader;
+    }
+
+    /**
+     * @return the violationNoiseFilter
+     */
+    private ViolationNoiseFilter getViolationNoiseFilter() {
+        return violationNoiseFilter;
+    }
+
+    /**
+     * @param violationNoiseFilter the violationNoiseFilter to set
+     */
+    private void setViolationNoiseFilter(ViolationNoiseFilter violationNoiseFilter) {
+        this.violationNoiseFilter = violationNoiseFilter;
+    }
+
+    /**
+     * @return the violationReportSink
+     */
+    private ViolationReportSink getViolationReportSink() {
+        return violationReportSink;
+    }
+
+    /**
+     * @param violationReportSink the violationReportSink to set
+     */
+    private void setViolationReportSink(ViolationReportSink violationReportSink) {
+        this.violationReportSink = violationReportSink;
+    }
+
+    /**
+     * @return the violationReportQueue
+     */
+    private ViolationReportQueue getViolationReportQueue() {
+        return violationReportQueue;
+    }
+
+    /**
+     * @param violationReportQueue the violationReportQueue to set
+     */
+    private void setViolationReportQueue(ViolationReportQueue violationReportQueue) {
+        this.violationReportQueue = violationReportQueue;
+    }
     
-}
+}
\ No newline at end of file
@@ -0,0 +1,177 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * HyperLogLog estimator of the number of distinct values, e.g. document uris, in 2^precision bytes.
+ * 
+ * The standard error is about 1.04 / sqrt(2^precision), 1.6% at the default precision of 12 (4 KB). Two
+ * estimators of the same precision merge losslessly by taking the larger register, so estimators built on
+ * separate nodes combine into the estimate of the union. Small cardinalities use linear counting.
+ * 
+ * Not thread safe.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class HyperLogLog {
+    
+    public static final int MIN_PRECISION = 4;
+    
+    public static final int MAX_PRECISION = 16;
+    
+    private final int precision;
+    
+    private final byte[] registers;
+    
+    public HyperLogLog(int precision) {
+        
+        if ((precision < MIN_PRECISION)||(precision > MAX_PRECISION)) {
+            
+            throw new IllegalArgumentException("Precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION + " - " + precision);
+        }
+        
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+    
+    public void add(String value) {
+        
+        if (value!=null) {
+            
+            addHash(hash(value));
+        }
+    }
+    
+    public void addHash(long hash) {
+        
+        int index = (int)(hash >>> (64 - precision));
+        
+        // the guard bit bounds the rank when the remaining bits are all zero
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        
+        if (rank > registers[index]) {
+            
+            registers[index] = (byte)rank;
+        }
+    }
+    
+    /**
+     * Folds another estimator of the same precision into this one.
+     */
+    public void merge(HyperLogLog other) {
+        
+        if (other.precision!=precision) {
+            
+            throw new IllegalArgumentException("Cannot merge precision " + other.precision + " into " + precision);
+        }
+        
+        for (int i = 0; i < registers.length; i++) {
+            
+            if (other.registers[i] > registers[i]) {
+                
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+    
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public long estimate() {
+        
+        int m = registers.length;
+        
+        double sum = 0;
+        
+        int zeros = 0;
+        
+        for (int i = 0; i < m; i++) {
+            
+            sum += 1.0 / (1L << registers[i]);
+            
+            if (registers[i]==0) {
+                
+                zeros++;
+            }
+        }
+        
+        double alpha = (m==16) ? 0.673 : (m==32) ? 0.697 : (m==64) ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        
+        double estimate = alpha * m * m / sum;
+        
+        if ((estimate <= 2.5 * m)&&(zeros > 0)) {
+            
+            estimate = m * Math.log((double)m / zeros);
+        }
+        
+        return Math.round(estimate);
+    }
+    
+    /**
+     * @return the precision
+     */
+    public int getPrecision() {
+        return precision;
+    }
+    
+    public void writeTo(DataOutput out) throws IOException {
+        
+        out.writeByte(precision);
+        out.write(registers);
+    }
+    
+    public static HyperLogLog readFrom(DataInput in) throws IOException {
+        
+        int precision = in.readUnsignedByte();
+        
+        if ((precision < MIN_PRECISION)||(precision > MAX_PRECISION)) {
+            
+            throw new IOException("Invalid HyperLogLog precision - " + precision);
+        }
+        
+        HyperLogLog hyperLogLog = new HyperLogLog(precision);
+        
+        in.readFully(hyperLogLog.registers);
+        
+        return hyperLogLog;
+    }
+    
+    /**
+     * 64 bit FNV-1a over the characters, followed by the MurmurHash3 finalizer to spread the bits.
+     */
+    static long hash(String value) {
+        
+        long hash = 0xcbf29ce484222325L;
+        
+        for (int i = 0; i < value.length(); i++) {
+            
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        
+        return hash;
+    }
+    
+}
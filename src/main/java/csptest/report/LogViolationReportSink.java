@@ -0,0 +1,63 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.util.List;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Default {@link ViolationReportSink}, logs every report at debug level.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class LogViolationReportSink implements ViolationReportSink {
+    
+    private static final Log log = LogFactory.getLog(LogViolationReportSink.class);
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#init(javax.servlet.ServletConfig)
+     */
+    @Override
+    public void init(ServletConfig servletConfig) throws ServletException {
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#write(java.util.List)
+     */
+    @Override
+    public void write(List<ViolationReport> violationReportList) {
+        
+        if (log.isDebugEnabled()) {
+            
+            for (ViolationReport violationReport: violationReportList) {
+                
+                log.debug(violationReport);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#destroy()
+     */
+    @Override
+    public void destroy() {
+    }
+    
+}
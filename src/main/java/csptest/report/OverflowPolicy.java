@@ -0,0 +1,42 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.util.Locale;
+
+/**
+ * What {@link ViolationReportQueue} does with a report that arrives while the queue is full.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public enum OverflowPolicy {
+    
+    /** Reject the arriving report. */
+    DROP_NEWEST,
+    
+    /** Evict the oldest queued report to make room for the arriving one. */
+    DROP_OLDEST,
+    
+    /** Keep one in every overflowSampleRate arriving reports by evicting the oldest, reject the rest. */
+    SAMPLE;
+    
+    /**
+     * Lenient parse of an init-param value, e.g. drop-oldest.
+     */
+    public static OverflowPolicy parse(String value) {
+        return valueOf(value.trim().toUpperCase(Locale.ENGLISH).replace('-', '_'));
+    }
+    
+}
@@ -0,0 +1,182 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client token bucket limiter for the violation report endpoint.
+ * 
+ * Buckets live in a fixed number of lock-striped, access-ordered LinkedHashMaps, so memory is bounded
+ * by the number of tracked clients: the least recently seen client of a full stripe is evicted, and
+ * clients idle for longer than the idle timeout are evicted as the stripe is used.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ReportRateLimiter {
+    
+    private static final int STRIPES = 16;
+    
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    
+    private final double tokensPerNano;
+    
+    private final double burst;
+    
+    private final long idleTimeoutNanos;
+    
+    private final AtomicLong rejectedCount = new AtomicLong();
+    
+    private static final class Bucket {
+        
+        private double tokens;
+        
+        private long lastRefill;
+        
+        private Bucket(double tokens, long lastRefill) {
+            this.tokens = tokens;
+            this.lastRefill = lastRefill;
+        }
+    }
+    
+    private static final class Stripe extends LinkedHashMap<String, Bucket> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int maxClients;
+        
+        private Stripe(int maxClients) {
+            super(16, 0.75f, true);
+            this.maxClients = maxClients;
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > maxClients;
+        }
+    }
+    
+    /**
+     * @param reportsPerSecond sustained reports per second allowed per client
+     * @param burst reports a client may send at once after being idle
+     * @param maxClients the number of clients tracked at most
+     * @param idleTimeoutSeconds seconds after which an idle client is forgotten
+     */
+    public ReportRateLimiter(double reportsPerSecond, int burst, int maxClients, int idleTimeoutSeconds) {
+        
+        this.tokensPerNano = reportsPerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.idleTimeoutNanos = Math.max(1, idleTimeoutSeconds) * 1000000000L;
+        
+        int maxClientsPerStripe = Math.max(1, (maxClients + STRIPES - 1) / STRIPES);
+        
+        for (int i = 0; i < STRIPES; i++) {
+            
+            stripes[i] = new Stripe(maxClientsPerStripe);
+        }
+    }
+    
+    /**
+     * Takes a token from the client's bucket.
+     * 
+     * @return false when the client is over its rate
+     */
+    public boolean tryAcquire(String client) {
+        
+        String key = (client!=null) ? client : "";
+        
+        int hash = key.hashCode();
+        
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        
+        long now = System.nanoTime();
+        
+        synchronized (stripe) {
+            
+            evictIdle(stripe, now);
+            
+            Bucket bucket = stripe.get(key);
+            
+            if (bucket==null) {
+                
+                bucket = new Bucket(burst, now);
+                stripe.put(key, bucket);
+                
+            } else {
+                
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.lastRefill) * tokensPerNano);
+                bucket.lastRefill = now;
+            }
+            
+            if (bucket.tokens >= 1) {
+                
+                bucket.tokens -= 1;
+                
+                return true;
+            }
+        }
+        
+        rejectedCount.incrementAndGet();
+        
+        return false;
+    }
+    
+    /**
+     * Access order puts the least recently seen clients first, so only the idle head of the stripe is visited.
+     */
+    private void evictIdle(Stripe stripe, long now) {
+        
+        Iterator<Bucket> iterator = stripe.values().iterator();
+        
+        while (iterator.hasNext()) {
+            
+            if (now - iterator.next().lastRefill < idleTimeoutNanos) {
+                
+                break;
+            }
+            
+            iterator.remove();
+        }
+    }
+    
+    /**
+     * @return the number of clients currently tracked
+     */
+    public int getSize() {
+        
+        int size = 0;
+        
+        for (Stripe stripe: stripes) {
+            
+            synchronized (stripe) {
+                
+                size += stripe.size();
+            }
+        }
+        
+        return size;
+    }
+    
+    /**
+     * @return the number of reports rejected
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+    
+}
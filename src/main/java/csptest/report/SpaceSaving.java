@@ -0,0 +1,369 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Space-Saving summary of the most frequent values, e.g. blocked uris, in a fixed number of counters.
+ * 
+ * A value that is not monitored takes over the counter with the smallest count, inheriting that count as
+ * its error, so every count is an upper bound at most {@link #getMinimumCount()} above the true count and
+ * any value occurring more than total / capacity times is guaranteed to be monitored. The counters are kept
+ * in an indexed min-heap, so an update costs O(log capacity).
+ * 
+ * Summaries merge by adding the counts of the union of their values, a value missing from one side being
+ * charged that side's minimum count as error, then keeping the largest counts.
+ * 
+ * Not thread safe.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class SpaceSaving {
+    
+    private static final Comparator<Counter> BY_COUNT = new Comparator<Counter>() {
+        
+        @Override
+        public int compare(Counter a, Counter b) {
+            
+            int compare = Long.compare(b.count, a.count);
+            
+            return (compare!=0) ? compare : a.value.compareTo(b.value);
+        }
+    };
+    
+    /**
+     * Longer values are truncated so that they always fit the modified UTF-8 serialisation.
+     */
+    public static final int MAX_VALUE_LENGTH = 8192;
+    
+    private final int capacity;
+    
+    private final HashMap<String, Counter> counters;
+    
+    private final Counter[] heap;
+    
+    private int size;
+    
+    private long total;
+    
+    /**
+     * A monitored value and its count, an upper bound on the true count.
+     */
+    public static final class Counter {
+        
+        private final String value;
+        
+        private long count;
+        
+        private long error;
+        
+        private int index;
+        
+        private Counter(String value, long count, long error) {
+            this.value = value;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * @return the value
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return the count, at most error above the true count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the largest possible overestimate of the count
+         */
+        public long getError() {
+            return error;
+        }
+        
+        @Override
+        public String toString() {
+            return value + "=" + count + " (error " + error + ")";
+        }
+    }
+    
+    public SpaceSaving(int capacity) {
+        
+        if (capacity < 1) {
+            
+            throw new IllegalArgumentException("Capacity must be positive - " + capacity);
+        }
+        
+        this.capacity = capacity;
+        this.counters = new HashMap<String, Counter>(capacity * 2);
+        this.heap = new Counter[capacity];
+    }
+    
+    public void add(String value, long count) {
+        
+        if ((value==null)||(count <= 0)) {
+            
+            return;
+        }
+        
+        total += count;
+        
+        if (value.length() > MAX_VALUE_LENGTH) {
+            
+            value = value.substring(0, MAX_VALUE_LENGTH);
+        }
+        
+        Counter counter = counters.get(value);
+        
+        if (counter!=null) {
+            
+            counter.count += count;
+            siftDown(counter.index);
+            
+        } else if (size < capacity) {
+            
+            counter = new Counter(value, count, 0);
+            counters.put(value, counter);
+            
+            counter.index = size;
+            heap[size++] = counter;
+            siftUp(counter.index);
+            
+        } else {
+            
+            Counter minimum = heap[0];
+            
+            counters.remove(minimum.value);
+            
+            counter = new Counter(value, minimum.count + count, minimum.count);
+            counters.put(value, counter);
+            
+            counter.index = 0;
+            heap[0] = counter;
+            siftDown(0);
+        }
+    }
+    
+    /**
+     * Folds another summary into this one, keeping this summary's capacity.
+     */
+    public void merge(SpaceSaving other) {
+        
+        long minimum = getMinimumCount();
+        
+        long otherMinimum = other.getMinimumCount();
+        
+        HashMap<String, Counter> merged = new HashMap<String, Counter>((size + other.size) * 2);
+        
+        for (int i = 0; i < size; i++) {
+            
+            Counter counter = heap[i];
+            
+            Counter otherCounter = other.counters.get(counter.value);
+            
+            if (otherCounter!=null) {
+                
+                merged.put(counter.value, new Counter(counter.value, counter.count + otherCounter.count, counter.error + otherCounter.error));
+                
+            } else {
+                
+                merged.put(counter.value, new Counter(counter.value, counter.count + otherMinimum, counter.error + otherMinimum));
+            }
+        }
+        
+        for (int i = 0; i < other.size; i++) {
+            
+            Counter otherCounter = other.heap[i];
+            
+            if (!merged.containsKey(otherCounter.value)) {
+                
+                merged.put(otherCounter.value, new Counter(otherCounter.value, otherCounter.count + minimum, otherCounter.error + minimum));
+            }
+        }
+        
+        List<Counter> sorted = new ArrayList<Counter>(merged.values());
+        
+        Collections.sort(sorted, BY_COUNT);
+        
+        counters.clear();
+        Arrays.fill(heap, null);
+        size = 0;
+        
+        for (int i = 0; (i < sorted.size())&&(i < capacity); i++) {
+            
+            Counter counter = sorted.get(i);
+            
+            counters.put(counter.value, counter);
+            
+            counter.index = size;
+            heap[size++] = counter;
+            siftUp(counter.index);
+        }
+        
+        total += other.total;
+    }
+    
+    /**
+     * @return the monitored values, most frequent first
+     */
+    public List<Counter> getTop(int limit) {
+        
+        List<Counter> sorted = new ArrayList<Counter>(size);
+        
+        for (int i = 0; i < size; i++) {
+            
+            sorted.add(heap[i]);
+        }
+        
+        Collections.sort(sorted, BY_COUNT);
+        
+        return (sorted.size() > limit) ? sorted.subList(0, limit) : sorted;
+    }
+    
+    /**
+     * @return the smallest monitored count once all counters are in use, the bound on any overestimate, otherwise 0
+     */
+    public long getMinimumCount() {
+        return (size==capacity) ? heap[0].count : 0;
+    }
+    
+    /**
+     * @return the sum of all counts added
+     */
+    public long getTotal() {
+        return total;
+    }
+    
+    /**
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    public void writeTo(DataOutput out) throws IOException {
+        
+        out.writeInt(capacity);
+        out.writeLong(total);
+        out.writeInt(size);
+        
+        for (int i = 0; i < size; i++) {
+            
+            out.writeUTF(heap[i].value);
+            out.writeLong(heap[i].count);
+            out.writeLong(heap[i].error);
+        }
+    }
+    
+    public static SpaceSaving readFrom(DataInput in) throws IOException {
+        
+        int capacity = in.readInt();
+        
+        long total = in.readLong();
+        
+        int size = in.readInt();
+        
+        if ((capacity < 1)||(size < 0)||(size > capacity)) {
+            
+            throw new IOException("Invalid Space-Saving summary - capacity " + capacity + ", size " + size);
+        }
+        
+        SpaceSaving spaceSaving = new SpaceSaving(capacity);
+        
+        for (int i = 0; i < size; i++) {
+            
+            Counter counter = new Counter(in.readUTF(), in.readLong(), in.readLong());
+            
+            spaceSaving.counters.put(counter.value, counter);
+            
+            counter.index = spaceSaving.size;
+            spaceSaving.heap[spaceSaving.size++] = counter;
+            spaceSaving.siftUp(counter.index);
+        }
+        
+        spaceSaving.total = total;
+        
+        return spaceSaving;
+    }
+    
+    private void siftUp(int index) {
+        
+        Counter counter = heap[index];
+        
+        while (index > 0) {
+            
+            int parent = (index - 1) >>> 1;
+            
+            if (heap[parent].count <= counter.count) {
+                
+                break;
+            }
+            
+            heap[index] = heap[parent];
+            heap[index].index = index;
+            index = parent;
+        }
+        
+        heap[index] = counter;
+        counter.index = index;
+    }
+    
+    private void siftDown(int index) {
+        
+        Counter counter = heap[index];
+        
+        for (;;) {
+            
+            int child = (index << 1) + 1;
+            
+            if (child >= size) {
+                
+                break;
+            }
+            
+            if ((child + 1 < size)&&(heap[child + 1].count < heap[child].count)) {
+                
+                child++;
+            }
+            
+            if (heap[child].count >= counter.count) {
+                
+                break;
+            }
+            
+            heap[index] = heap[child];
+            heap[index].index = index;
+            index = child;
+        }
+        
+        heap[index] = counter;
+        counter.index = index;
+    }
+    
+}
@@ -0,0 +1,298 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link ViolationReportSink} that counts reports per (violated directive, blocked uri, document uri) tuple
+ * instead of logging each of them, and flushes one rollup line per tuple every rollup interval.
+ * 
+ * Each tuple keeps a striped LongAdder count, first and last seen times and the first report of the
+ * current window as a sample. Tuples idle for a whole window are evicted. The table is bounded by
+ * maxAggregatedViolations; reports for new tuples beyond that are only counted as overflow.
+ * 
+ * Every window is also counted into {@link ViolationRollupBuckets}, published as a servlet context attribute
+ * under its class name for {@link ContentSecurityPolicyViolationQuery}.
+ * 
+ * Init-params: rollupInterval (seconds, default 60), maxAggregatedViolations (default 10000), rollupMinuteBuckets
+ * (default 120) and rollupHourBuckets (default 168).
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ViolationAggregator implements ViolationReportSink {
+    
+    private static final Log log = LogFactory.getLog(ViolationAggregator.class);
+    
+    private static final String ROLLUP_INTERVAL = "rollupInterval";
+    
+    private static final String MAX_AGGREGATED_VIOLATIONS = "maxAggregatedViolations";
+    
+    private static final String ROLLUP_MINUTE_BUCKETS = "rollupMinuteBuckets";
+    
+    private static final String ROLLUP_HOUR_BUCKETS = "rollupHourBuckets";
+    
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+    
+    private final ConcurrentHashMap<ViolationKey, Aggregate> aggregates = new ConcurrentHashMap<ViolationKey, Aggregate>();
+    
+    private final AtomicLong overflowCount = new AtomicLong();
+    
+    private ScheduledExecutorService rollupExecutor;
+    
+    private int maxAggregatedViolations;
+    
+    private ViolationRollupBuckets rollupBuckets;
+    
+    private volatile long windowStart = System.currentTimeMillis();
+    
+    private static final class Aggregate {
+        
+        private final LongAdder count = new LongAdder();
+        
+        private final long firstSeen;
+        
+        private volatile long lastSeen;
+        
+        private final AtomicReference<ViolationReport> sampleReport = new AtomicReference<ViolationReport>();
+        
+        private Aggregate(long firstSeen) {
+            this.firstSeen = firstSeen;
+        }
+        
+        private void add(ViolationReport violationReport) {
+            
+            count.increment();
+            
+            if (violationReport.getReceivedTime() > lastSeen) {
+                
+                lastSeen = violationReport.getReceivedTime();
+            }
+            
+            if (sampleReport.get()==null) {
+                
+                sampleReport.compareAndSet(null, violationReport);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#init(javax.servlet.ServletConfig)
+     */
+    @Override
+    public void init(ServletConfig servletConfig) throws ServletException {
+        
+        maxAggregatedViolations = Math.max(1, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, MAX_AGGREGATED_VIOLATIONS, 10000));
+        
+        int rollupInterval = Math.max(1, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, ROLLUP_INTERVAL, 60));
+        
+        rollupBuckets = new ViolationRollupBuckets(ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, ROLLUP_MINUTE_BUCKETS, 120), 
+                ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, ROLLUP_HOUR_BUCKETS, 168), 
+                maxAggregatedViolations);
+        
+        if (servletConfig!=null) {
+            
+            servletConfig.getServletContext().setAttribute(ViolationRollupBuckets.class.getName(), rollupBuckets);
+        }
+        
+        rollupExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                
+                Thread thread = new Thread(runnable, "csp-report-rollup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        rollupExecutor.scheduleAtFixedRate(new Runnable() {
+            
+            @Override
+            public void run() {
+                
+                try {
+                    
+                    flush();
+                    
+                } catch (RuntimeException e) {
+                    
+                    log.warn("Violation rollup failed", e);
+                }
+            }
+            
+        }, rollupInterval, rollupInterval, TimeUnit.SECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#write(java.util.List)
+     */
+    @Override
+    public void write(List<ViolationReport> violationReportList) {
+        
+        for (ViolationReport violationReport: violationReportList) {
+            
+            add(violationReport);
+        }
+    }
+    
+    public void add(ViolationReport violationReport) {
+        
+        ViolationKey violationKey = ViolationKey.of(violationReport);
+        
+        Aggregate aggregate = aggregates.get(violationKey);
+        
+        if (aggregate==null) {
+            
+            if (aggregates.size() >= maxAggregatedViolations) {
+                
+                overflowCount.incrementAndGet();
+                return;
+            }
+            
+            Aggregate created = new Aggregate(violationReport.getReceivedTime());
+            
+            aggregate = aggregates.putIfAbsent(violationKey, created);
+            
+            if (aggregate==null) {
+                
+                aggregate = created;
+            }
+        }
+        
+        aggregate.add(violationReport);
+    }
+    
+    /**
+     * Closes the current window and publishes a rollup for every tuple reported in it.
+     */
+    public void flush() {
+        
+        long windowEnd = System.currentTimeMillis();
+        
+        long windowStart = this.windowStart;
+        
+        this.windowStart = windowEnd;
+        
+        List<ViolationRollup> violationRollupList = new ArrayList<ViolationRollup>();
+        
+        for (Map.Entry<ViolationKey, Aggregate> entry: aggregates.entrySet()) {
+            
+            Aggregate aggregate = entry.getValue();
+            
+            long count = aggregate.count.sumThenReset();
+            
+            if (count==0) {
+                
+                // idle for a whole window, a report racing with the removal may go uncounted
+                aggregates.remove(entry.getKey(), aggregate);
+                continue;
+            }
+            
+            ViolationKey violationKey = entry.getKey();
+            
+            violationRollupList.add(new ViolationRollup(violationKey.getViolatedDirective(), violationKey.getBlockedUri(), violationKey.getDocumentUri(), 
+                    count, aggregate.firstSeen, aggregate.lastSeen, windowStart, windowEnd, aggregate.sampleReport.getAndSet(null)));
+        }
+        
+        if (rollupBuckets!=null) {
+            
+            rollupBuckets.add(violationRollupList, windowEnd);
+        }
+        
+        publish(violationRollupList, overflowCount.getAndSet(0));
+    }
+    
+    /**
+     * Logs the rollups of a window.
+     * 
+     * @param overflow the number of reports not aggregated because the table was full
+     */
+    protected void publish(List<ViolationRollup> violationRollupList, long overflow) {
+        
+        if (log.isInfoEnabled()) {
+            
+            for (ViolationRollup violationRollup: violationRollupList) {
+                
+                log.info(violationRollup);
+            }
+            
+            if (overflow > 0) {
+                
+                log.info("count=" + overflow + " not aggregated, more than " + maxAggregatedViolations + " distinct violations");
+            }
+        }
+    }
+    
+    /**
+     * @return the minute and hour history of the flushed windows
+     */
+    public ViolationRollupBuckets getRollupBuckets() {
+        return rollupBuckets;
+    }
+    
+    /**
+     * @return the number of tuples currently aggregated
+     */
+    public int getSize() {
+        return aggregates.size();
+    }
+
+    /**
+     * Lets a rollup in progress finish, for at most {@link #STOP_TIMEOUT_MILLIS}, before flushing the last window,
+     * so the final flush never runs concurrently with a scheduled one.
+     * 
+     * @see csptest.report.ViolationReportSink#destroy()
+     */
+    @Override
+    public void destroy() {
+        
+        if (rollupExecutor!=null) {
+            
+            rollupExecutor.shutdown();
+            
+            try {
+                
+                if (!rollupExecutor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    
+                    log.warn("Rollup still running after " + STOP_TIMEOUT_MILLIS + "ms, flushing anyway");
+                }
+                
+            } catch (InterruptedException e) {
+                
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        flush();
+    }
+    
+}
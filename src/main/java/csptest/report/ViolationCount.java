@@ -0,0 +1,52 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+/**
+ * A count of violations for one value, e.g. a blocked uri or a document uri, as answered by {@link ViolationRollupBuckets}.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ViolationCount {
+    
+    private final String value;
+    
+    private final long count;
+    
+    public ViolationCount(String value, long count) {
+        this.value = value;
+        this.count = count;
+    }
+
+    /**
+     * @return the value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+    
+    @Override
+    public String toString() {
+        return value + "=" + count;
+    }
+    
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+/**
+ * Aggregation key of a violation: the (violated directive, blocked uri, document uri) tuple.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+final class ViolationKey {
+    
+    private final String violatedDirective;
+    
+    private final String blockedUri;
+    
+    private final String documentUri;
+    
+    private final int hash;
+    
+    ViolationKey(String violatedDirective, String blockedUri, String documentUri) {
+        
+        this.violatedDirective = violatedDirective;
+        this.blockedUri = blockedUri;
+        this.documentUri = documentUri;
+        
+        int hash = (violatedDirective!=null) ? violatedDirective.hashCode() : 0;
+        hash = 31 * hash + ((blockedUri!=null) ? blockedUri.hashCode() : 0);
+        hash = 31 * hash + ((documentUri!=null) ? documentUri.hashCode() : 0);
+        
+        this.hash = hash;
+    }
+    
+    static ViolationKey of(ViolationReport violationReport) {
+        return new ViolationKey(violationReport.getViolatedDirective(), violationReport.getBlockedUri(), violationReport.getDocumentUri());
+    }
+
+    /**
+     * @return the violatedDirective
+     */
+    String getViolatedDirective() {
+        return violatedDirective;
+    }
+
+    /**
+     * @return the blockedUri
+     */
+    String getBlockedUri() {
+        return blockedUri;
+    }
+
+    /**
+     * @return the documentUri
+     */
+    String getDocumentUri() {
+        return documentUri;
+    }
+    
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        
+        if (this==obj) {
+            
+            return true;
+        }
+        
+        if (!(obj instanceof ViolationKey)) {
+            
+            return false;
+        }
+        
+        ViolationKey other = (ViolationKey)obj;
+        
+        return (hash==other.hash)&&(equals(violatedDirective, other.violatedDirective))&&(equals(blockedUri, other.blockedUri))&&(equals(documentUri, other.documentUri));
+    }
+    
+    private static boolean equals(String a, String b) {
+        return (a==null) ? (b==null) : a.equals(b);
+    }
+    
+}
@@ -0,0 +1,338 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deny list of blocked-uri and source-file values that are noise rather than policy problems, such as
+ * browser extensions, about:blank and ad injectors, applied by {@link ViolationReportParser} on the raw
+ * bytes of a value before the report is decoded, queued, aggregated or stored.
+ * 
+ * A rule starting with "*." is a host rule and matches the host of a url and all its subdomains, e.g.
+ * *.example.com. Any other rule is a case insensitive prefix of the value, e.g. chrome-extension or
+ * about:blank. Prefix rules are compiled into one byte trie and host rules into a second trie walked from
+ * the end of the host, so matching a value costs a single pass over it whatever the number of rules.
+ * 
+ * Reports dropped are counted per rule.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class ViolationNoiseFilter {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private static final String HOST_RULE = "*.";
+    
+    private final String[] rules;
+    
+    private final LongAdder[] droppedCounts;
+    
+    private final Node prefixRoot = new Node();
+    
+    private final Node hostRoot = new Node();
+    
+    private static final class Node {
+        
+        private byte[] keys = new byte[0];
+        
+        private Node[] children = new Node[0];
+        
+        private int rule = -1;
+        
+        private Node child(byte b) {
+            
+            for (int i = 0; i < keys.length; i++) {
+                
+                if (keys[i]==b) {
+                    
+                    return children[i];
+                }
+            }
+            
+            return null;
+        }
+        
+        private Node addChild(byte b) {
+            
+            Node child = child(b);
+            
+            if (child==null) {
+                
+                child = new Node();
+                
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = b;
+                
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+            
+            return child;
+        }
+    }
+    
+    private ViolationNoiseFilter(List<String> ruleList) {
+        
+        this.rules = ruleList.toArray(new String[ruleList.size()]);
+        
+        this.droppedCounts = new LongAdder[rules.length];
+        
+        for (int i = 0; i < rules.length; i++) {
+            
+            droppedCounts[i] = new LongAdder();
+            
+            if (rules[i].startsWith(HOST_RULE)) {
+                
+                byte[] host = toLowerCase(rules[i].substring(HOST_RULE.length()).getBytes(UTF_8));
+                
+                Node node = hostRoot;
+                
+                for (int j = host.length - 1; j >= 0; j--) {
+                    
+                    node = node.addChild(host[j]);
+                }
+                
+                if (node.rule < 0) {
+                    
+                    node.rule = i;
+                }
+                
+            } else {
+                
+                byte[] prefix = toLowerCase(rules[i].getBytes(UTF_8));
+                
+                Node node = prefixRoot;
+                
+                for (int j = 0; j < prefix.length; j++) {
+                    
+                    node = node.addChild(prefix[j]);
+                }
+                
+                if (node.rule < 0) {
+                    
+                    node.rule = i;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Compiles a comma or whitespace separated list of rules, or returns null when there are none.
+     */
+    public static ViolationNoiseFilter compile(String ruleList) {
+        
+        if ((ruleList==null)||(ruleList.trim().equals(""))) {
+            
+            return null;
+        }
+        
+        List<String> rules = new ArrayList<String>();
+        
+        for (String rule: ruleList.split("[,\\s]+")) {
+            
+            if ((!rule.equals(""))&&(!rule.equals(HOST_RULE))&&(!rules.contains(rule))) {
+                
+                rules.add(rule);
+            }
+        }
+        
+        return (rules.isEmpty()) ? null : new ViolationNoiseFilter(rules);
+    }
+    
+    /**
+     * Matches the UTF-8 bytes of a value.
+     * 
+     * @return the index of the first matching rule, or -1
+     */
+    public int match(byte[] buffer, int offset, int length) {
+        
+        int end = offset + length;
+        
+        Node node = prefixRoot;
+        
+        for (int i = offset; (i < end)&&(node.rule < 0); i++) {
+            
+            node = node.child(toLowerCase(buffer[i]));
+            
+            if (node==null) {
+                
+                break;
+            }
+        }
+        
+        if ((node!=null)&&(node.rule >= 0)) {
+            
+            return node.rule;
+        }
+        
+        return (hostRoot.keys.length > 0) ? matchHost(buffer, offset, end) : -1;
+    }
+    
+    /**
+     * Matches a decoded value, for values the parser had to unescape.
+     * 
+     * @return the index of the first matching rule, or -1
+     */
+    public int match(String value) {
+        
+        if (value==null) {
+            
+            return -1;
+        }
+        
+        byte[] bytes = value.getBytes(UTF_8);
+        
+        return match(bytes, 0, bytes.length);
+    }
+    
+    /**
+     * Walks the host of scheme://[userinfo@]host[:port]/... backwards through the host trie, accepting a
+     * rule only on a label boundary.
+     */
+    private int matchHost(byte[] buffer, int offset, int end) {
+        
+        int hostStart = -1;
+        
+        for (int i = offset; i + 2 < end; i++) {
+            
+            byte b = buffer[i];
+            
+            if (b==':') {
+                
+                if ((buffer[i + 1]=='/')&&(buffer[i + 2]=='/')) {
+                    
+                    hostStart = i + 3;
+                }
+                break;
+            }
+            
+            if ((b=='/')||(b=='?')||(b=='#')) {
+                
+                break;
+            }
+        }
+        
+        if (hostStart < 0) {
+            
+            return -1;
+        }
+        
+        int hostEnd = hostStart;
+        
+        while ((hostEnd < end)&&(buffer[hostEnd]!='/')&&(buffer[hostEnd]!='?')&&(buffer[hostEnd]!='#')) {
+            
+            if (buffer[hostEnd]=='@') {
+                
+                hostStart = hostEnd + 1;
+            }
+            
+            hostEnd++;
+        }
+        
+        for (int i = hostStart; i < hostEnd; i++) {
+            
+            if (buffer[i]==':') {
+                
+                hostEnd = i;
+                break;
+            }
+        }
+        
+        if ((hostEnd > hostStart)&&(buffer[hostEnd - 1]=='.')) {
+            
+            // fully qualified form, example.com.
+            hostEnd--;
+        }
+        
+        Node node = hostRoot;
+        
+        for (int i = hostEnd - 1; i >= hostStart; i--) {
+            
+            node = node.child(toLowerCase(buffer[i]));
+            
+            if (node==null) {
+                
+                return -1;
+            }
+            
+            if ((node.rule >= 0)&&((i==hostStart)||(buffer[i - 1]=='.'))) {
+                
+                return node.rule;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Counts a report dropped by a rule.
+     */
+    public void drop(int rule) {
+        
+        droppedCounts[rule].increment();
+    }
+    
+    /**
+     * @return the number of reports dropped per rule, in rule order
+     */
+    public Map<String, Long> getDroppedCounts() {
+        
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        
+        for (int i = 0; i < rules.length; i++) {
+            
+            counts.put(rules[i], droppedCounts[i].sum());
+        }
+        
+        return counts;
+    }
+    
+    /**
+     * @return the number of reports dropped by all rules
+     */
+    public long getDroppedCount() {
+        
+        long count = 0;
+        
+        for (LongAdder droppedCount: droppedCounts) {
+            
+            count += droppedCount.sum();
+        }
+        
+        return count;
+    }
+    
+    private static byte toLowerCase(byte b) {
+        return ((b >= 'A')&&(b <= 'Z')) ? (byte)(b + ('a' - 'A')) : b;
+    }
+    
+    private static byte[] toLowerCase(byte[] bytes) {
+        
+        for (int i = 0; i < bytes.length; i++) {
+            
+            bytes[i] = toLowerCase(bytes[i]);
+        }
+        
+        return bytes;
+    }
+    
+}
@@ -0,0 +1,249 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Binary format of the segments written by {@link ViolationReportStore}.
+ * 
+ * A segment starts with an 8 byte header (magic CSPV, format version) followed by records:
+ * 
+ *     int    payload length (0 marks the end of the segment)
+ *     int    CRC32 of the payload
+ *     byte   record version
+ *     long   received time
+ *     int    line number
+ *     4 x    unsigned short byte length (0xFFFF for null) + UTF-8 bytes:
+ *            document uri, violated directive, blocked uri, source file
+ * 
+ * All values are big endian. A record whose checksum does not match, e.g. torn by a crash, ends the segment.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class ViolationRecordCodec {
+    
+    public static final int SEGMENT_MAGIC = 0x43535056;
+    
+    public static final int SEGMENT_VERSION = 1;
+    
+    public static final int SEGMENT_HEADER_SIZE = 8;
+    
+    public static final int RECORD_HEADER_SIZE = 8;
+    
+    private static final byte RECORD_VERSION = 1;
+    
+    private static final int NULL_FIELD = 0xFFFF;
+    
+    private static final int MAX_FIELD_LENGTH = 0xFFFE;
+    
+    private static final int FIXED_PAYLOAD_SIZE = 1 + 8 + 4 + 4 * 2;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private ViolationRecordCodec() {
+    }
+    
+    public static void writeSegmentHeader(ByteBuffer out) {
+        
+        out.putInt(SEGMENT_MAGIC);
+        out.putInt(SEGMENT_VERSION);
+    }
+    
+    /**
+     * @return true when the buffer starts with a segment header of a supported version
+     */
+    public static boolean readSegmentHeader(ByteBuffer in) {
+        
+        if (in.remaining() < SEGMENT_HEADER_SIZE) {
+            
+            return false;
+        }
+        
+        return (in.getInt()==SEGMENT_MAGIC)&&(in.getInt()==SEGMENT_VERSION);
+    }
+    
+    /**
+     * Writes the record at the buffer's position, or writes nothing when it does not fit.
+     * 
+     * @return false when the remaining space is too small
+     */
+    public static boolean encode(ViolationReport violationReport, ByteBuffer out, CRC32 crc) {
+        
+        byte[] documentUri = bytes(violationReport.getDocumentUri());
+        
+        byte[] violatedDirective = bytes(violationReport.getViolatedDirective());
+        
+        byte[] blockedUri = bytes(violationReport.getBlockedUri());
+        
+        byte[] sourceFile = bytes(violationReport.getSourceFile());
+        
+        int payloadLength = FIXED_PAYLOAD_SIZE + length(documentUri) + length(violatedDirective) + length(blockedUri) + length(sourceFile);
+        
+        // room is also kept for the 0 length end marker
+        if (out.remaining() < RECORD_HEADER_SIZE + payloadLength + 4) {
+            
+            return false;
+        }
+        
+        int start = out.position();
+        
+        out.putInt(payloadLength);
+        out.putInt(0);
+        
+        int payloadStart = out.position();
+        
+        out.put(RECORD_VERSION);
+        out.putLong(violationReport.getReceivedTime());
+        out.putInt(violationReport.getLineNumber());
+        putField(out, documentUri);
+        putField(out, violatedDirective);
+        putField(out, blockedUri);
+        putField(out, sourceFile);
+        
+        ByteBuffer payload = out.duplicate();
+        payload.position(payloadStart);
+        payload.limit(payloadStart + payloadLength);
+        
+        crc.reset();
+        crc.update(payload);
+        
+        out.putInt(start + 4, (int)crc.getValue());
+        
+        return true;
+    }
+    
+    /**
+     * Reads the record at the buffer's position.
+     * 
+     * @return the report, or null at the end of the segment or at a damaged record
+     */
+    public static ViolationReport decode(ByteBuffer in, CRC32 crc) {
+        
+        if (in.remaining() < RECORD_HEADER_SIZE) {
+            
+            return null;
+        }
+        
+        int start = in.position();
+        
+        int payloadLength = in.getInt();
+        
+        int checksum = in.getInt();
+        
+        if ((payloadLength < FIXED_PAYLOAD_SIZE)||(payloadLength > in.remaining())) {
+            
+            in.position(start);
+            return null;
+        }
+        
+        int payloadStart = in.position();
+        
+        ByteBuffer payload = in.duplicate();
+        payload.limit(payloadStart + payloadLength);
+        
+        crc.reset();
+        crc.update(payload);
+        
+        if (((int)crc.getValue()!=checksum)||(in.get()!=RECORD_VERSION)) {
+            
+            in.position(start);
+            return null;
+        }
+        
+        long receivedTime = in.getLong();
+        
+        int lineNumber = in.getInt();
+        
+        String documentUri = getField(in);
+        
+        String violatedDirective = getField(in);
+        
+        String blockedUri = getField(in);
+        
+        String sourceFile = getField(in);
+        
+        in.position(payloadStart + payloadLength);
+        
+        return new ViolationReport(documentUri, violatedDirective, blockedUri, sourceFile, lineNumber, receivedTime);
+    }
+    
+    private static byte[] bytes(String value) {
+        
+        if (value==null) {
+            
+            return null;
+        }
+        
+        byte[] bytes = value.getBytes(UTF_8);
+        
+        if (bytes.length > MAX_FIELD_LENGTH) {
+            
+            // overlong uris are truncated, possibly inside a multi-byte character
+            byte[] truncated = new byte[MAX_FIELD_LENGTH];
+            System.arraycopy(bytes, 0, truncated, 0, MAX_FIELD_LENGTH);
+            return truncated;
+        }
+        
+        return bytes;
+    }
+    
+    private static int length(byte[] field) {
+        return (field!=null) ? field.length : 0;
+    }
+    
+    private static void putField(ByteBuffer out, byte[] field) {
+        
+        if (field==null) {
+            
+            out.putShort((short)NULL_FIELD);
+            
+        } else {
+            
+            out.putShort((short)field.length);
+            out.put(field);
+        }
+    }
+    
+    private static String getField(ByteBuffer in) {
+        
+        int length = in.getShort() & 0xFFFF;
+        
+        if (length==NULL_FIELD) {
+            
+            return null;
+        }
+        
+        String value;
+        
+        if (in.hasArray()) {
+            
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+            
+        } else {
+            
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            value = new String(bytes, UTF_8);
+        }
+        
+        in.position(in.position() + length);
+        
+        return value;
+    }
+    
+}
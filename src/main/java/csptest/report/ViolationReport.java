@@ -0,0 +1,123 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+/**
+ * Compact record of a single violation report, holding only the fields extracted by {@link ViolationReportParser}.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ViolationReport {
+    
+    private final String documentUri;
+    
+    private final String violatedDirective;
+    
+    private final String blockedUri;
+    
+    private final String sourceFile;
+    
+    private final int lineNumber;
+    
+    private final long receivedTime;
+    
+    private final String clientAddress;
+    
+    public ViolationReport(String documentUri, String violatedDirective, String blockedUri, String sourceFile, int lineNumber, long receivedTime) {
+        this(documentUri, violatedDirective, blockedUri, sourceFile, lineNumber, receivedTime, null);
+    }
+    
+    public ViolationReport(String documentUri, String violatedDirective, String blockedUri, String sourceFile, int lineNumber, long receivedTime, String clientAddress) {
+        this.documentUri = documentUri;
+        this.violatedDirective = violatedDirective;
+        this.blockedUri = blockedUri;
+        this.sourceFile = sourceFile;
+        this.lineNumber = lineNumber;
+        this.receivedTime = receivedTime;
+        this.clientAddress = clientAddress;
+    }
+
+    /**
+     * @return the documentUri
+     */
+    public String getDocumentUri() {
+        return documentUri;
+    }
+
+    /**
+     * @return the violatedDirective
+     */
+    public String getViolatedDirective() {
+        return violatedDirective;
+    }
+
+    /**
+     * @return the blockedUri
+     */
+    public String getBlockedUri() {
+        return blockedUri;
+    }
+
+    /**
+     * @return the sourceFile
+     */
+    public String getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * @return the lineNumber, or 0 when the report has none
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return the time the report was received, in milliseconds since the epoch
+     */
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+
+    /**
+     * @return the address of the client that sent the report, or null; only kept in memory, never stored or logged
+     */
+    public String getClientAddress() {
+        return clientAddress;
+    }
+    
+    @Override
+    public String toString() {
+        
+        StringBuilder str = new StringBuilder(128);
+        
+        str.append("violated-directive=").append(violatedDirective);
+        str.append(" blocked-uri=").append(blockedUri);
+        str.append(" document-uri=").append(documentUri);
+        
+        if (sourceFile!=null) {
+            
+            str.append(" source-file=").append(sourceFile);
+            
+            if (lineNumber > 0) {
+                
+                str.append(':').append(lineNumber);
+            }
+        }
+        
+        return str.toString();
+    }
+    
+}
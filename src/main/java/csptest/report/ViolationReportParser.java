@@ -0,0 +1,752 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Streaming parser for violation report bodies.
+ * 
+ * Walks the UTF-8 bytes of the body once without building a document tree: keys are compared as raw
+ * bytes, values of fields that are not needed are skipped, and only document-uri, violated-directive,
+ * blocked-uri, source-file and line-number are decoded into a {@link ViolationReport}.
+ * 
+ * Both the legacy application/csp-report body and the Reporting API application/reports+json batch,
+ * an array of {"type": "csp-violation", "body": {...}} entries, are supported.
+ * 
+ * With a {@link ViolationNoiseFilter}, blocked-uri and source-file are matched on their raw bytes as soon as
+ * they are reached; a legacy report that matches is abandoned right there and a batch entry that matches
+ * has its remaining fields skipped without being decoded.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class ViolationReportParser {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    
+    private static final int MAX_DEPTH = 32;
+    
+    private static final byte[][] CSP_REPORT = new byte[][] {ascii("csp-report")};
+    
+    private static final byte[][] CSP_REPORT_FIELDS = new byte[][] {ascii("document-uri"), ascii("violated-directive"), ascii("blocked-uri"), ascii("source-file"), ascii("line-number")};
+    
+    private static final byte[][] REPORTS_FIELDS = new byte[][] {ascii("documentURL"), ascii("effectiveDirective"), ascii("blockedURL"), ascii("sourceFile"), ascii("lineNumber")};
+    
+    private static final byte[][] REPORT_ENTRY_FIELDS = new byte[][] {ascii("type"), ascii("body")};
+    
+    private static final String CSP_VIOLATION = "csp-violation";
+    
+    private static final int TYPE = 0;
+    
+    private static final int BODY = 1;
+    
+    private static final int DOCUMENT_URI = 0;
+    
+    private static final int VIOLATED_DIRECTIVE = 1;
+    
+    private static final int BLOCKED_URI = 2;
+    
+    private static final int SOURCE_FILE = 3;
+    
+    private static final int LINE_NUMBER = 4;
+    
+    /**
+     * Returned by {@link #parseCspReport(byte[], int, int, long, String, ViolationNoiseFilter)} for a report dropped by the noise filter.
+     */
+    public static final ViolationReport DROPPED = new ViolationReport(null, null, null, null, 0, 0);
+    
+    private final byte[] buffer;
+    
+    private final int end;
+    
+    private int position;
+    
+    private final String clientAddress;
+    
+    private final ViolationNoiseFilter noiseFilter;
+    
+    private int droppedRule = -1;
+    
+    private ViolationReportParser(byte[] buffer, int offset, int length, String clientAddress, ViolationNoiseFilter noiseFilter) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.end = offset + length;
+        this.clientAddress = clientAddress;
+        this.noiseFilter = noiseFilter;
+    }
+    
+    /**
+     * Parses a legacy application/csp-report body, {"csp-report": {...}}.
+     * 
+     * @return the report, or null when the body is malformed or has no csp-report object
+     */
+    public static ViolationReport parseCspReport(byte[] buffer, int offset, int length, long receivedTime) {
+        return parseCspReport(buffer, offset, length, receivedTime, null, null);
+    }
+    
+    /**
+     * Parses a legacy application/csp-report body sent by clientAddress, dropping it when it matches the noise filter.
+     * 
+     * @return the report, {@link #DROPPED}, or null when the body is malformed or has no csp-report object
+     */
+    public static ViolationReport parseCspReport(byte[] buffer, int offset, int length, long receivedTime, String clientAddress, ViolationNoiseFilter noiseFilter) {
+        
+        ViolationReportParser parser = new ViolationReportParser(buffer, offset, length, clientAddress, noiseFilter);
+        
+        try {
+            
+            ViolationReport violationReport = parser.readCspReport(receivedTime);
+            
+            if (parser.droppedRule >= 0) {
+                
+                noiseFilter.drop(parser.droppedRule);
+                
+                return DROPPED;
+            }
+            
+            return violationReport;
+            
+        } catch (IllegalArgumentException e) {
+            
+            return null;
+        }
+    }
+    
+    /**
+     * Parses an application/reports+json batch, adding the csp-violation entries to violationReportList.
+     * Nothing is added when the batch is malformed.
+     * 
+     * @return the number of reports added, or -1 when the batch is malformed
+     */
+    public static int parseReports(byte[] buffer, int offset, int length, long receivedTime, List<ViolationReport> violationReportList) {
+        return parseReports(buffer, offset, length, receivedTime, null, violationReportList, null);
+    }
+    
+    /**
+     * Parses an application/reports+json batch sent by clientAddress, leaving out the entries that match the noise filter.
+     * 
+     * @return the number of reports added, or -1 when the batch is malformed
+     */
+    public static int parseReports(byte[] buffer, int offset, int length, long receivedTime, String clientAddress, List<ViolationReport> violationReportList, ViolationNoiseFilter noiseFilter) {
+        
+        ViolationReportParser parser = new ViolationReportParser(buffer, offset, length, clientAddress, noiseFilter);
+        
+        int size = violationReportList.size();
+        
+        try {
+            
+            return parser.readReports(receivedTime, violationReportList);
+            
+        } catch (IllegalArgumentException e) {
+            
+            while (violationReportList.size() > size) {
+                
+                violationReportList.remove(violationReportList.size() - 1);
+            }
+            
+            return -1;
+        }
+    }
+    
+    private int readReports(long receivedTime, List<ViolationReport> violationReportList) {
+        
+        int count = 0;
+        
+        expect('[');
+        
+        if (!consume(']')) {
+            
+            do {
+                
+                if (peek()=='{') {
+                    
+                    ViolationReport violationReport = readReportEntry(receivedTime);
+                    
+                    if (violationReport!=null) {
+                        
+                        violationReportList.add(violationReport);
+                        count++;
+                    }
+                    
+                } else {
+                    
+                    skipValue(1);
+                }
+                
+            } while (consume(','));
+            
+            expect(']');
+        }
+        
+        return count;
+    }
+    
+    /**
+     * @return the report of a csp-violation entry, or null for any other entry type
+     */
+    private ViolationReport readReportEntry(long receivedTime) {
+        
+        ViolationReport violationReport = null;
+        
+        boolean cspViolation = true;
+        
+        droppedRule = -1;
+        
+        expect('{');
+        
+        if (!consume('}')) {
+            
+            do {
+                
+                int field = readKeyIndex(REPORT_ENTRY_FIELDS);
+                
+                if (field==TYPE) {
+                    
+                    cspViolation = CSP_VIOLATION.equals(readStringValue());
+                    
+                } else if ((field==BODY)&&(peek()=='{')) {
+                    
+                    violationReport = readReportObject(REPORTS_FIELDS, receivedTime, false);
+                    
+                } else {
+                    
+                    skipValue(2);
+                }
+                
+            } while (consume(','));
+            
+            expect('}');
+        }
+        
+        if ((cspViolation)&&(droppedRule >= 0)) {
+            
+            // the type may follow the body, so a drop only counts once the entry is known to be a csp-violation
+            noiseFilter.drop(droppedRule);
+            
+            return null;
+        }
+        
+        return (cspViolation) ? violationReport : null;
+    }
+    
+    private ViolationReport readCspReport(long receivedTime) {
+        
+        ViolationReport violationReport = null;
+        
+        expect('{');
+        
+        if (!consume('}')) {
+            
+            do {
+                
+                boolean cspReport = (readKeyIndex(CSP_REPORT)==0);
+                
+                if ((cspReport)&&(peek()=='{')) {
+                    
+                    violationReport = readReportObject(CSP_REPORT_FIELDS, receivedTime, true);
+                    
+                    if (droppedRule >= 0) {
+                        
+                        return null;
+                    }
+                    
+                } else {
+                    
+                    skipValue(1);
+                }
+                
+            } while (consume(','));
+            
+            expect('}');
+        }
+        
+        return violationReport;
+    }
+    
+    /**
+     * Reads an object whose field names, in order, are those of document-uri, violated-directive,
+     * blocked-uri, source-file and line-number. Any other field is skipped.
+     * 
+     * @param abandonOnDrop true to return as soon as the noise filter matches, otherwise the remaining fields are skipped
+     * @return the report, or null when the noise filter matched
+     */
+    private ViolationReport readReportObject(byte[][] fieldNames, long receivedTime, boolean abandonOnDrop) {
+        
+        String[] values = new String[LINE_NUMBER];
+        
+        int lineNumber = 0;
+        
+        expect('{');
+        
+        if (!consume('}')) {
+            
+            do {
+                
+                int field = readKeyIndex(fieldNames);
+                
+                if (droppedRule >= 0) {
+                    
+                    skipValue(2);
+                    
+                } else if (field==LINE_NUMBER) {
+                    
+                    lineNumber = readIntValue();
+                    
+                } else if ((noiseFilter!=null)&&((field==BLOCKED_URI)||(field==SOURCE_FILE))) {
+                    
+                    values[field] = readFilteredStringValue();
+                    
+                    if ((droppedRule >= 0)&&(abandonOnDrop)) {
+                        
+                        return null;
+                    }
+                    
+                } else if (field >= 0) {
+                    
+                    values[field] = readStringValue();
+                    
+                } else {
+                    
+                    skipValue(2);
+                }
+                
+            } while (consume(','));
+            
+            expect('}');
+        }
+        
+        if (droppedRule >= 0) {
+            
+            return null;
+        }
+        
+        return new ViolationReport(values[DOCUMENT_URI], values[VIOLATED_DIRECTIVE], values[BLOCKED_URI], values[SOURCE_FILE], lineNumber, receivedTime, clientAddress);
+    }
+    
+    /**
+     * Reads a key and the following ':'.
+     * 
+     * @return the index of the matching name, or -1
+     */
+    private int readKeyIndex(byte[][] names) {
+        
+        expect('"');
+        
+        int start = position;
+        
+        boolean escaped = skipStringContent();
+        
+        int length = position - 1 - start;
+        
+        expect(':');
+        
+        if (!escaped) {
+            
+            for (int i = 0; i < names.length; i++) {
+                
+                if (regionMatches(start, length, names[i])) {
+                    
+                    return i;
+                }
+            }
+        }
+        
+        return -1;
+    }
+    
+    private String readStringValue() {
+        
+        int c = peek();
+        
+        if (c=='"') {
+            
+            position++;
+            
+            return readStringContent();
+        }
+        
+        skipValue(2);
+        
+        return null;
+    }
+    
+    /**
+     * Reads a string value, matching it against the noise filter on its raw bytes before it is decoded.
+     * 
+     * @return the value, or null when it is not a string or matched a rule
+     */
+    private String readFilteredStringValue() {
+        
+        if (peek()!='"') {
+            
+            return readStringValue();
+        }
+        
+        int start = ++position;
+        
+        if (!skipStringContent()) {
+            
+            int rule = noiseFilter.match(buffer, start, position - 1 - start);
+            
+            if (rule >= 0) {
+                
+                droppedRule = rule;
+                
+                return null;
+            }
+            
+            position = start;
+            
+            return readStringContent();
+        }
+        
+        position = start;
+        
+        String value = readStringContent();
+        
+        droppedRule = noiseFilter.match(value);
+        
+        return (droppedRule >= 0) ? null : value;
+    }
+    
+    private int readIntValue() {
+        
+        int c = peek();
+        
+        if (c=='"') {
+            
+            position++;
+            
+            return parseInt(readStringContent());
+        }
+        
+        if ((c=='-')||((c >= '0')&&(c <= '9'))) {
+            
+            int start = position;
+            
+            skipValue(2);
+            
+            return parseInt(new String(buffer, start, position - start, ISO_8859_1));
+        }
+        
+        skipValue(2);
+        
+        return 0;
+    }
+    
+    private static int parseInt(String value) {
+        
+        if (value!=null) {
+            
+            try {
+                
+                return (int)Math.max(0, Math.min(Integer.MAX_VALUE, (long)Double.parseDouble(value.trim())));
+                
+            } catch (NumberFormatException e) {
+                
+                return 0;
+            }
+        }
+        
+        return 0;
+    }
+    
+    private void skipValue(int depth) {
+        
+        if (depth > MAX_DEPTH) {
+            
+            throw new IllegalArgumentException("Nesting too deep");
+        }
+        
+        int c = peek();
+        
+        if (c=='{') {
+            
+            position++;
+            
+            if (!consume('}')) {
+                
+                do {
+                    
+                    expect('"');
+                    skipStringContent();
+                    expect(':');
+                    skipValue(depth + 1);
+                    
+                } while (consume(','));
+                
+                expect('}');
+            }
+            
+        } else if (c=='[') {
+            
+            position++;
+            
+            if (!consume(']')) {
+                
+                do {
+                    
+                    skipValue(depth + 1);
+                    
+                } while (consume(','));
+                
+                expect(']');
+            }
+            
+        } else if (c=='"') {
+            
+            position++;
+            
+            skipStringContent();
+            
+        } else {
+            
+            // number, true, false or null
+            int start = position;
+            
+            while ((position < end)&&(!isDelimiter(buffer[position]))) {
+                
+                position++;
+            }
+            
+            if (position==start) {
+                
+                throw new IllegalArgumentException("Value expected at " + position);
+            }
+        }
+    }
+    
+    /**
+     * Skips to just after the closing quote.
+     * 
+     * @return true when the string contains escapes
+     */
+    private boolean skipStringContent() {
+        
+        boolean escaped = false;
+        
+        while (position < end) {
+            
+            byte b = buffer[position++];
+            
+            if (b=='"') {
+                
+                return escaped;
+            }
+            
+            if (b=='\\') {
+                
+                escaped = true;
+                position++;
+            }
+        }
+        
+        throw new IllegalArgumentException("Unterminated string");
+    }
+    
+    private String readStringContent() {
+        
+        int start = position;
+        
+        boolean ascii = true;
+        
+        while (position < end) {
+            
+            byte b = buffer[position];
+            
+            if (b=='"') {
+                
+                position++;
+                
+                return new String(buffer, start, position - 1 - start, (ascii) ? ISO_8859_1 : UTF_8);
+            }
+            
+            if (b=='\\') {
+                
+                return readEscapedStringContent(start);
+            }
+            
+            if (b < 0) {
+                
+                ascii = false;
+            }
+            
+            position++;
+        }
+        
+        throw new IllegalArgumentException("Unterminated string");
+    }
+    
+    private String readEscapedStringContent(int start) {
+        
+        StringBuilder str = new StringBuilder(position - start + 16);
+        
+        int runStart = start;
+        
+        while (position < end) {
+            
+            byte b = buffer[position];
+            
+            if ((b=='"')||(b=='\\')) {
+                
+                if (position > runStart) {
+                    
+                    str.append(new String(buffer, runStart, position - runStart, UTF_8));
+                }
+                
+                position++;
+                
+                if (b=='"') {
+                    
+                    return str.toString();
+                }
+                
+                str.append(readEscape());
+                
+                runStart = position;
+                
+            } else {
+                
+                position++;
+            }
+        }
+        
+        throw new IllegalArgumentException("Unterminated string");
+    }
+    
+    private char readEscape() {
+        
+        if (position >= end) {
+            
+            throw new IllegalArgumentException("Unterminated escape");
+        }
+        
+        byte b = buffer[position++];
+        
+        switch (b) {
+        
+        case 'b':
+            return '\b';
+            
+        case 'f':
+            return '\f';
+            
+        case 'n':
+            return '\n';
+            
+        case 'r':
+            return '\r';
+            
+        case 't':
+            return '\t';
+            
+        case 'u':
+            
+            if (position + 4 > end) {
+                
+                throw new IllegalArgumentException("Unterminated escape");
+            }
+            
+            int c = 0;
+            
+            for (int i = 0; i < 4; i++) {
+                
+                int digit = Character.digit(buffer[position++], 16);
+                
+                if (digit < 0) {
+                    
+                    throw new IllegalArgumentException("Invalid escape");
+                }
+                
+                c = (c << 4) | digit;
+            }
+            
+            return (char)c;
+            
+        default:
+            return (char)b;
+        }
+    }
+    
+    private boolean regionMatches(int start, int length, byte[] name) {
+        
+        if (length!=name.length) {
+            
+            return false;
+        }
+        
+        for (int i = 0; i < length; i++) {
+            
+            if (buffer[start + i]!=name[i]) {
+                
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private int peek() {
+        
+        skipWhitespace();
+        
+        if (position >= end) {
+            
+            throw new IllegalArgumentException("Unexpected end of report");
+        }
+        
+        return buffer[position];
+    }
+    
+    private boolean consume(char c) {
+        
+        if (peek()==c) {
+            
+            position++;
+            
+            return true;
+        }
+        
+        return false;
+    }
+    
+    private void expect(char c) {
+        
+        if (!consume(c)) {
+            
+            throw new IllegalArgumentException("'" + c + "' expected at " + position);
+        }
+    }
+    
+    private void skipWhitespace() {
+        
+        while ((position < end)&&((buffer[position]==' ')||(buffer[position]=='\t')||(buffer[position]=='\n')||(buffer[position]=='\r'))) {
+            
+            position++;
+        }
+    }
+    
+    private static boolean isDelimiter(byte b) {
+        return (b==',')||(b=='}')||(b==']')||(b==' ')||(b=='\t')||(b=='\n')||(b=='\r');
+    }
+    
+    private static byte[] ascii(String value) {
+        return value.getBytes(ISO_8859_1);
+    }
+    
+}
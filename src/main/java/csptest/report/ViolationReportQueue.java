@@ -0,0 +1,236 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bounded queue between the request threads that receive violation reports and a single consumer thread
+ * that drains them, in batches, to a {@link ViolationReportSink}.
+ * 
+ * Request threads never block: when the queue is full the {@link OverflowPolicy} decides which report is
+ * lost. Depth and the offered, dropped and delivered counts are exposed for monitoring.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ViolationReportQueue {
+    
+    private static final Log log = LogFactory.getLog(ViolationReportQueue.class);
+    
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+    
+    private final ArrayBlockingQueue<ViolationReport> queue;
+    
+    private final ViolationReportSink sink;
+    
+    private final int batchSize;
+    
+    private final OverflowPolicy overflowPolicy;
+    
+    private final int overflowSampleRate;
+    
+    private final AtomicLong offeredCount = new AtomicLong();
+    
+    private final AtomicLong droppedCount = new AtomicLong();
+    
+    private final AtomicLong overflowCount = new AtomicLong();
+    
+    private final AtomicLong deliveredCount = new AtomicLong();
+    
+    private volatile boolean running;
+    
+    private Thread consumer;
+    
+    public ViolationReportQueue(ViolationReportSink sink, int capacity, int batchSize, OverflowPolicy overflowPolicy, int overflowSampleRate) {
+        
+        this.queue = new ArrayBlockingQueue<ViolationReport>(Math.max(1, capacity));
+        this.sink = sink;
+        this.batchSize = Math.max(1, batchSize);
+        this.overflowPolicy = overflowPolicy;
+        this.overflowSampleRate = Math.max(1, overflowSampleRate);
+    }
+    
+    public void start() {
+        
+        running = true;
+        
+        consumer = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                drain();
+            }
+            
+        }, "csp-report-drain");
+        
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+    
+    /**
+     * Stops the consumer thread; reports still queued are delivered before it exits.
+     */
+    public void stop() {
+        
+        running = false;
+        
+        if (consumer!=null) {
+            
+            consumer.interrupt();
+            
+            try {
+                
+                consumer.join(STOP_TIMEOUT_MILLIS);
+                
+            } catch (InterruptedException e) {
+                
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Queues the report without blocking.
+     * 
+     * @return false when the report was dropped
+     */
+    public boolean offer(ViolationReport violationReport) {
+        
+        offeredCount.incrementAndGet();
+        
+        if (queue.offer(violationReport)) {
+            
+            return true;
+        }
+        
+        long overflow = overflowCount.getAndIncrement();
+        
+        if ((overflowPolicy==OverflowPolicy.DROP_OLDEST)||((overflowPolicy==OverflowPolicy.SAMPLE)&&(overflow % overflowSampleRate==0))) {
+            
+            if (queue.poll()!=null) {
+                
+                droppedCount.incrementAndGet();
+            }
+            
+            if (queue.offer(violationReport)) {
+                
+                return true;
+            }
+        }
+        
+        droppedCount.incrementAndGet();
+        
+        return false;
+    }
+    
+    private void drain() {
+        
+        List<ViolationReport> batch = new ArrayList<ViolationReport>(batchSize);
+        
+        while (running) {
+            
+            try {
+                
+                ViolationReport violationReport = queue.poll(1, TimeUnit.SECONDS);
+                
+                if (violationReport!=null) {
+                    
+                    batch.add(violationReport);
+                    
+                    queue.drainTo(batch, batchSize - 1);
+                    
+                    deliver(batch);
+                }
+                
+            } catch (InterruptedException e) {
+                
+                // stop() was called, fall through to the final drain
+            }
+        }
+        
+        while (queue.drainTo(batch, batchSize) > 0) {
+            
+            deliver(batch);
+        }
+    }
+    
+    private void deliver(List<ViolationReport> batch) {
+        
+        try {
+            
+            sink.write(batch);
+            
+            deliveredCount.addAndGet(batch.size());
+            
+        } catch (RuntimeException e) {
+            
+            log.warn("Violation report sink failed, " + batch.size() + " reports lost", e);
+            
+        } finally {
+            
+            batch.clear();
+        }
+    }
+    
+    /**
+     * @return the number of reports currently queued
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+    
+    /**
+     * @return the capacity of the queue
+     */
+    public int getCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+    
+    /**
+     * @return the overflowPolicy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    /**
+     * @return the number of reports offered to the queue
+     */
+    public long getOfferedCount() {
+        return offeredCount.get();
+    }
+    
+    /**
+     * @return the number of reports lost to overflow, whether rejected or evicted
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+    
+    /**
+     * @return the number of reports handed to the sink
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+    
+}
@@ -0,0 +1,533 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+/**
+ * Command line tool that re-aggregates the segments written by {@link ViolationReportStore} into the same
+ * per (violated directive, blocked uri, document uri) rollups as {@link ViolationAggregator}, e.g. to try a
+ * new noise rule against weeks of stored reports.
+ * 
+ * Segments are memory mapped read only and decoded sequentially; a fork-join pool splits the segment list
+ * and aggregates every segment on its own core, merging the partial tables pairwise on the way back.
+ * 
+ * Usage: ViolationReportReplay [-from millis] [-to millis] [-interval seconds] [-noise rules] [-threads n] directory|segment...
+ * 
+ * With an interval of 0, the default, all reports go into a single window.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class ViolationReportReplay {
+    
+    private static final Comparator<ViolationRollup> BY_WINDOW_AND_COUNT = new Comparator<ViolationRollup>() {
+        
+        @Override
+        public int compare(ViolationRollup a, ViolationRollup b) {
+            
+            int compare = Long.compare(a.getWindowStart(), b.getWindowStart());
+            
+            if (compare==0) {
+                
+                compare = Long.compare(b.getCount(), a.getCount());
+            }
+            
+            if (compare==0) {
+                
+                compare = String.valueOf(a.getViolatedDirective()).compareTo(String.valueOf(b.getViolatedDirective()));
+            }
+            
+            if (compare==0) {
+                
+                compare = String.valueOf(a.getBlockedUri()).compareTo(String.valueOf(b.getBlockedUri()));
+            }
+            
+            return (compare!=0) ? compare : String.valueOf(a.getDocumentUri()).compareTo(String.valueOf(b.getDocumentUri()));
+        }
+    };
+    
+    private final long from;
+    
+    private final long to;
+    
+    private final long interval;
+    
+    private final ViolationNoiseFilter noiseFilter;
+    
+    private static final class Aggregate {
+        
+        private long count;
+        
+        private long firstSeen = Long.MAX_VALUE;
+        
+        private long lastSeen = Long.MIN_VALUE;
+        
+        private ViolationReport sampleReport;
+        
+        private void add(ViolationReport violationReport) {
+            
+            count++;
+            
+            if (violationReport.getReceivedTime() < firstSeen) {
+                
+                firstSeen = violationReport.getReceivedTime();
+                sampleReport = violationReport;
+            }
+            
+            if (violationReport.getReceivedTime() > lastSeen) {
+                
+                lastSeen = violationReport.getReceivedTime();
+            }
+        }
+        
+        private void merge(Aggregate other) {
+            
+            count += other.count;
+            
+            if (other.firstSeen < firstSeen) {
+                
+                firstSeen = other.firstSeen;
+                sampleReport = other.sampleReport;
+            }
+            
+            if (other.lastSeen > lastSeen) {
+                
+                lastSeen = other.lastSeen;
+            }
+        }
+    }
+    
+    /**
+     * Partial result of a range of segments.
+     */
+    private static final class Replay {
+        
+        private final HashMap<Long, HashMap<ViolationKey, Aggregate>> windows = new HashMap<Long, HashMap<ViolationKey, Aggregate>>();
+        
+        private long recordCount;
+        
+        private long filteredCount;
+        
+        private long damagedSegmentCount;
+        
+        private Replay merge(Replay other) {
+            
+            for (Map.Entry<Long, HashMap<ViolationKey, Aggregate>> window: other.windows.entrySet()) {
+                
+                HashMap<ViolationKey, Aggregate> aggregates = windows.get(window.getKey());
+                
+                if (aggregates==null) {
+                    
+                    windows.put(window.getKey(), window.getValue());
+                    continue;
+                }
+                
+                for (Map.Entry<ViolationKey, Aggregate> entry: window.getValue().entrySet()) {
+                    
+                    Aggregate aggregate = aggregates.get(entry.getKey());
+                    
+                    if (aggregate==null) {
+                        
+                        aggregates.put(entry.getKey(), entry.getValue());
+                        
+                    } else {
+                        
+                        aggregate.merge(entry.getValue());
+                    }
+                }
+            }
+            
+            recordCount += other.recordCount;
+            filteredCount += other.filteredCount;
+            damagedSegmentCount += other.damagedSegmentCount;
+            
+            return this;
+        }
+    }
+    
+    private final class ReplayTask extends RecursiveTask<Replay> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final File[] segments;
+        
+        private final int start;
+        
+        private final int end;
+        
+        private ReplayTask(File[] segments, int start, int end) {
+            this.segments = segments;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected Replay compute() {
+            
+            if (end - start <= 1) {
+                
+                Replay replay = new Replay();
+                
+                if (end > start) {
+                    
+                    replaySegment(segments[start], replay);
+                }
+                
+                return replay;
+            }
+            
+            int middle = (start + end) >>> 1;
+            
+            ReplayTask left = new ReplayTask(segments, start, middle);
+            
+            left.fork();
+            
+            Replay right = new ReplayTask(segments, middle, end).compute();
+            
+            return left.join().merge(right);
+        }
+    }
+    
+    /**
+     * @param from the first received time replayed, in milliseconds since the epoch
+     * @param to the received time replay stops at, exclusive
+     * @param interval the rollup window in milliseconds, or 0 for a single window
+     * @param noiseFilter the noise rules to apply, or null
+     */
+    public ViolationReportReplay(long from, long to, long interval, ViolationNoiseFilter noiseFilter) {
+        this.from = from;
+        this.to = to;
+        this.interval = Math.max(0, interval);
+        this.noiseFilter = noiseFilter;
+    }
+    
+    /**
+     * Replays the segments on the given number of threads.
+     * 
+     * @return the rollups ordered by window, then by descending count
+     */
+    public List<ViolationRollup> replay(List<File> segmentList, int threads, Map<String, Long> statistics) {
+        
+        File[] segments = segmentList.toArray(new File[segmentList.size()]);
+        
+        ForkJoinPool forkJoinPool = new ForkJoinPool(Math.max(1, threads));
+        
+        Replay replay;
+        
+        try {
+            
+            replay = forkJoinPool.invoke(new ReplayTask(segments, 0, segments.length));
+            
+        } finally {
+            
+            forkJoinPool.shutdown();
+        }
+        
+        List<ViolationRollup> violationRollupList = new ArrayList<ViolationRollup>();
+        
+        for (Map.Entry<Long, HashMap<ViolationKey, Aggregate>> window: replay.windows.entrySet()) {
+            
+            long windowStart = window.getKey();
+            
+            long windowEnd = windowStart + interval;
+            
+            if (interval==0) {
+                
+                windowStart = Long.MAX_VALUE;
+                windowEnd = Long.MIN_VALUE;
+                
+                for (Aggregate aggregate: window.getValue().values()) {
+                    
+                    windowStart = Math.min(windowStart, aggregate.firstSeen);
+                    windowEnd = Math.max(windowEnd, aggregate.lastSeen + 1);
+                }
+            }
+            
+            for (Map.Entry<ViolationKey, Aggregate> entry: window.getValue().entrySet()) {
+                
+                ViolationKey violationKey = entry.getKey();
+                
+                Aggregate aggregate = entry.getValue();
+                
+                violationRollupList.add(new ViolationRollup(violationKey.getViolatedDirective(), violationKey.getBlockedUri(), violationKey.getDocumentUri(), 
+                        aggregate.count, aggregate.firstSeen, aggregate.lastSeen, windowStart, windowEnd, aggregate.sampleReport));
+            }
+        }
+        
+        Collections.sort(violationRollupList, BY_WINDOW_AND_COUNT);
+        
+        if (statistics!=null) {
+            
+            statistics.put("segments", (long)segments.length);
+            statistics.put("records", replay.recordCount);
+            statistics.put("filtered", replay.filteredCount);
+            statistics.put("damaged-segments", replay.damagedSegmentCount);
+        }
+        
+        return violationRollupList;
+    }
+    
+    private void replaySegment(File segment, Replay replay) {
+        
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            
+            if (!ViolationRecordCodec.readSegmentHeader(in)) {
+                
+                replay.damagedSegmentCount++;
+                return;
+            }
+            
+            CRC32 crc = new CRC32();
+            
+            HashMap<ViolationKey, Aggregate> aggregates = null;
+            
+            long window = Long.MIN_VALUE;
+            
+            ViolationReport violationReport;
+            
+            while ((violationReport = ViolationRecordCodec.decode(in, crc))!=null) {
+                
+                long receivedTime = violationReport.getReceivedTime();
+                
+                if ((receivedTime < from)||(receivedTime >= to)) {
+                    
+                    continue;
+                }
+                
+                replay.recordCount++;
+                
+                if ((noiseFilter!=null)&&(isNoise(violationReport))) {
+                    
+                    replay.filteredCount++;
+                    continue;
+                }
+                
+                long windowStart = (interval > 0) ? receivedTime - Math.floorMod(receivedTime, interval) : 0;
+                
+                // records are in arrival order, so the window rarely changes within a segment
+                if ((aggregates==null)||(windowStart!=window)) {
+                    
+                    window = windowStart;
+                    
+                    aggregates = replay.windows.get(window);
+                    
+                    if (aggregates==null) {
+                        
+                        aggregates = new HashMap<ViolationKey, Aggregate>();
+                        replay.windows.put(window, aggregates);
+                    }
+                }
+                
+                ViolationKey violationKey = ViolationKey.of(violationReport);
+                
+                Aggregate aggregate = aggregates.get(violationKey);
+                
+                if (aggregate==null) {
+                    
+                    aggregate = new Aggregate();
+                    aggregates.put(violationKey, aggregate);
+                }
+                
+                aggregate.add(violationReport);
+            }
+            
+            if ((in.remaining() < 4)||(in.getInt(in.position())!=0)) {
+                
+                // stopped at a damaged record rather than at the end marker
+                replay.damagedSegmentCount++;
+            }
+            
+        } catch (IOException e) {
+            
+            System.err.println("Unable to read " + segment + " - " + e.getMessage());
+            
+            replay.damagedSegmentCount++;
+        }
+    }
+    
+    private boolean isNoise(ViolationReport violationReport) {
+        
+        int rule = noiseFilter.match(violationReport.getBlockedUri());
+        
+        if (rule < 0) {
+            
+            rule = noiseFilter.match(violationReport.getSourceFile());
+        }
+        
+        if (rule >= 0) {
+            
+            noiseFilter.drop(rule);
+            
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @return the segment files, directories expanded to the segments they hold, in name (creation time) order
+     */
+    private static List<File> getSegments(List<String> paths) {
+        
+        List<File> segments = new ArrayList<File>();
+        
+        for (String path: paths) {
+            
+            File file = new File(path);
+            
+            if (file.isDirectory()) {
+                
+                File[] files = file.listFiles(new FileFilter() {
+                    
+                    @Override
+                    public boolean accept(File file) {
+                        return (file.isFile())&&(file.getName().endsWith(ViolationReportStore.SEGMENT_SUFFIX));
+                    }
+                });
+                
+                if (files!=null) {
+                    
+                    Arrays.sort(files);
+                    
+                    segments.addAll(Arrays.asList(files));
+                }
+                
+            } else {
+                
+                segments.add(file);
+            }
+        }
+        
+        return segments;
+    }
+    
+    private static void usage() {
+        
+        System.err.println("Usage: ViolationReportReplay [-from millis] [-to millis] [-interval seconds] [-noise rules] [-threads n] directory|segment...");
+        
+        System.exit(2);
+    }
+    
+    public static void main(String[] argc) {
+        
+        long from = Long.MIN_VALUE;
+        
+        long to = Long.MAX_VALUE;
+        
+        long interval = 0;
+        
+        String noise = null;
+        
+        int threads = Runtime.getRuntime().availableProcessors();
+        
+        List<String> paths = new ArrayList<String>();
+        
+        try {
+            
+            for (int i = 0; i < argc.length; i++) {
+                
+                if ((argc[i].equals("-from"))&&(i + 1 < argc.length)) {
+                    
+                    from = Long.parseLong(argc[++i]);
+                    
+                } else if ((argc[i].equals("-to"))&&(i + 1 < argc.length)) {
+                    
+                    to = Long.parseLong(argc[++i]);
+                    
+                } else if ((argc[i].equals("-interval"))&&(i + 1 < argc.length)) {
+                    
+                    interval = Long.parseLong(argc[++i]) * 1000L;
+                    
+                } else if ((argc[i].equals("-noise"))&&(i + 1 < argc.length)) {
+                    
+                    noise = argc[++i];
+                    
+                } else if ((argc[i].equals("-threads"))&&(i + 1 < argc.length)) {
+                    
+                    threads = Integer.parseInt(argc[++i]);
+                    
+                } else if (argc[i].startsWith("-")) {
+                    
+                    usage();
+                    
+                } else {
+                    
+                    paths.add(argc[i]);
+                }
+            }
+            
+        } catch (NumberFormatException e) {
+            
+            usage();
+        }
+        
+        if (paths.isEmpty()) {
+            
+            usage();
+        }
+        
+        ViolationNoiseFilter noiseFilter = ViolationNoiseFilter.compile(noise);
+        
+        ViolationReportReplay violationReportReplay = new ViolationReportReplay(from, to, interval, noiseFilter);
+        
+        Map<String, Long> statistics = new HashMap<String, Long>();
+        
+        long start = System.nanoTime();
+        
+        List<ViolationRollup> violationRollupList = violationReportReplay.replay(getSegments(paths), threads, statistics);
+        
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+        
+        long window = Long.MIN_VALUE;
+        
+        for (ViolationRollup violationRollup: violationRollupList) {
+            
+            if (violationRollup.getWindowStart()!=window) {
+                
+                window = violationRollup.getWindowStart();
+                
+                System.out.println("window-start=" + violationRollup.getWindowStart() + " window-end=" + violationRollup.getWindowEnd());
+            }
+            
+            System.out.println(violationRollup);
+        }
+        
+        System.err.println("segments=" + statistics.get("segments") + " records=" + statistics.get("records") + " filtered=" + statistics.get("filtered") 
+                + " damaged-segments=" + statistics.get("damaged-segments") + " elapsed=" + elapsed + "ms");
+        
+        if (noiseFilter!=null) {
+            
+            System.err.println("filtered-by-rule=" + noiseFilter.getDroppedCounts());
+        }
+    }
+    
+}
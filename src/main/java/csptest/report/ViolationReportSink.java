@@ -0,0 +1,42 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.util.List;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Destination of the violation reports drained by {@link ViolationReportQueue}.
+ * 
+ * Implementations need a public no-argument constructor; they are selected with the violationReportSink
+ * init-param of {@link ContentSecurityPolicyViolationReporter}. write is only ever called from the
+ * queue's consumer thread.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public interface ViolationReportSink {
+    
+    void init(ServletConfig servletConfig) throws ServletException;
+    
+    /**
+     * @param violationReportList a batch of reports, in arrival order; the list is reused after the call returns
+     */
+    void write(List<ViolationReport> violationReportList);
+    
+    void destroy();
+    
+}
@@ -0,0 +1,464 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link ViolationReportSink} that appends reports to memory-mapped, append-only segment files in the
+ * binary format of {@link ViolationRecordCodec}.
+ * 
+ * Each batch from the queue is appended sequentially to the mapped segment; the mapping is forced to disk
+ * at most once per force interval (group commit), and by a background thread when no batch arrives.
+ * A segment is rolled when it is full or older than the segment age, and segments older than the
+ * retention period, or beyond the maximum segment count, are deleted as segments roll.
+ * 
+ * When a segment cannot be opened, e.g. the disk is full or the directory was removed, opening is retried on
+ * every batch and maintenance tick, and every batch dropped meanwhile is logged.
+ * 
+ * Init-params: reportStoreDirectory (defaults to csp-reports in the container's temporary directory),
+ * reportStoreSegmentSize (bytes, default 64 MB), reportStoreSegmentAge (seconds, default 3600),
+ * reportStoreForceInterval (milliseconds, default 1000), reportStoreRetention (hours, default 168)
+ * and reportStoreMaxSegments (0 for no limit).
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ViolationReportStore implements ViolationReportSink {
+    
+    private static final Log log = LogFactory.getLog(ViolationReportStore.class);
+    
+    public static final String SEGMENT_SUFFIX = ".seg";
+    
+    private static final String REPORT_STORE_DIRECTORY = "reportStoreDirectory";
+    
+    private static final String REPORT_STORE_SEGMENT_SIZE = "reportStoreSegmentSize";
+    
+    private static final String REPORT_STORE_SEGMENT_AGE = "reportStoreSegmentAge";
+    
+    private static final String REPORT_STORE_FORCE_INTERVAL = "reportStoreForceInterval";
+    
+    private static final String REPORT_STORE_RETENTION = "reportStoreRetention";
+    
+    private static final String REPORT_STORE_MAX_SEGMENTS = "reportStoreMaxSegments";
+    
+    private static final String TEMP_DIR = "javax.servlet.context.tempdir";
+    
+    private static final FileFilter SEGMENT_FILTER = new FileFilter() {
+        
+        @Override
+        public boolean accept(File file) {
+            return file.isFile()&&(file.getName().endsWith(SEGMENT_SUFFIX));
+        }
+    };
+    
+    private final CRC32 crc = new CRC32();
+    
+    private File directory;
+    
+    private int segmentSize;
+    
+    private long segmentAgeMillis;
+    
+    private long forceIntervalMillis;
+    
+    private long retentionMillis;
+    
+    private int maxSegments;
+    
+    private ScheduledExecutorService forceExecutor;
+    
+    private File segmentFile;
+    
+    private FileChannel segmentChannel;
+    
+    private MappedByteBuffer segment;
+    
+    private long segmentCreated;
+    
+    private long lastForce;
+    
+    private boolean dirty;
+    
+    private long writtenCount;
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#init(javax.servlet.ServletConfig)
+     */
+    @Override
+    public void init(ServletConfig servletConfig) throws ServletException {
+        
+        String directoryName = (servletConfig!=null) ? servletConfig.getInitParameter(REPORT_STORE_DIRECTORY) : null;
+        
+        if ((directoryName!=null)&&(!directoryName.trim().equals(""))) {
+            
+            directory = new File(directoryName.trim());
+            
+        } else {
+            
+            Object tempDir = (servletConfig!=null) ? servletConfig.getServletContext().getAttribute(TEMP_DIR) : null;
+            
+            directory = new File((tempDir instanceof File) ? (File)tempDir : new File(System.getProperty("java.io.tmpdir")), "csp-reports");
+        }
+        
+        if ((!directory.isDirectory())&&(!directory.mkdirs())) {
+            
+            throw new ServletException("Unable to create report store directory - " + directory.getAbsolutePath());
+        }
+        
+        segmentSize = Math.max(ViolationRecordCodec.SEGMENT_HEADER_SIZE + 1024, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, REPORT_STORE_SEGMENT_SIZE, 64 * 1024 * 1024));
+        
+        segmentAgeMillis = Math.max(1, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, REPORT_STORE_SEGMENT_AGE, 3600)) * 1000L;
+        
+        forceIntervalMillis = Math.max(0, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, REPORT_STORE_FORCE_INTERVAL, 1000));
+        
+        retentionMillis = Math.max(1, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, REPORT_STORE_RETENTION, 168)) * 3600000L;
+        
+        maxSegments = Math.max(0, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, REPORT_STORE_MAX_SEGMENTS, 0));
+        
+        try {
+            
+            openSegment(System.currentTimeMillis());
+            
+        } catch (IOException e) {
+            
+            throw new ServletException("Unable to open report store segment in " + directory.getAbsolutePath(), e);
+        }
+        
+        forceExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                
+                Thread thread = new Thread(runnable, "csp-report-store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        forceExecutor.scheduleWithFixedDelay(new Runnable() {
+            
+            @Override
+            public void run() {
+                
+                try {
+                    
+                    maintain();
+                    
+                } catch (RuntimeException e) {
+                    
+                    log.warn("Report store maintenance failed", e);
+                }
+            }
+            
+        }, Math.max(100, forceIntervalMillis), Math.max(100, forceIntervalMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#write(java.util.List)
+     */
+    @Override
+    public synchronized void write(List<ViolationReport> violationReportList) {
+        
+        if (segment==null) {
+            
+            try {
+                
+                openSegment(System.currentTimeMillis());
+                
+                log.info("Report store segment reopened - " + segmentFile);
+                
+            } catch (IOException e) {
+                
+                log.error(violationReportList.size() + " violation reports dropped, unable to open a report store segment in " + directory.getAbsolutePath() + " - " + e.getMessage());
+                return;
+            }
+        }
+        
+        int handled = 0;
+        
+        try {
+            
+            for (ViolationReport violationReport: violationReportList) {
+                
+                if (!ViolationRecordCodec.encode(violationReport, segment, crc)) {
+                    
+                    rollSegment(System.currentTimeMillis());
+                    
+                    if (!ViolationRecordCodec.encode(violationReport, segment, crc)) {
+                        
+                        log.warn("Violation report larger than a report store segment, dropped");
+                        handled++;
+                        continue;
+                    }
+                }
+                
+                dirty = true;
+                
+                writtenCount++;
+                
+                handled++;
+            }
+            
+            long now = System.currentTimeMillis();
+            
+            if (now - segmentCreated >= segmentAgeMillis) {
+                
+                rollSegment(now);
+                
+            } else if (now - lastForce >= forceIntervalMillis) {
+                
+                force(now);
+            }
+            
+        } catch (IOException e) {
+            
+            log.error("Report store write failed, " + (violationReportList.size() - handled) + " violation reports dropped - " + segmentFile, e);
+        }
+    }
+    
+    /**
+     * Forces writes left behind by an idle period and rolls aged segments.
+     */
+    private synchronized void maintain() {
+        
+        long now = System.currentTimeMillis();
+        
+        if (segment==null) {
+            
+            try {
+                
+                openSegment(now);
+                
+                log.info("Report store segment reopened - " + segmentFile);
+                
+            } catch (IOException e) {
+                
+                log.debug("Unable to open a report store segment in " + directory.getAbsolutePath() + " - " + e.getMessage());
+            }
+            
+            return;
+        }
+        
+        try {
+            
+            if ((dirty)&&(now - segmentCreated >= segmentAgeMillis)) {
+                
+                rollSegment(now);
+                
+            } else if ((dirty)&&(now - lastForce >= forceIntervalMillis)) {
+                
+                force(now);
+            }
+            
+        } catch (IOException e) {
+            
+            log.error("Report store maintenance failed - " + segmentFile, e);
+        }
+    }
+    
+    private void force(long now) {
+        
+        if (dirty) {
+            
+            segment.force();
+            
+            dirty = false;
+        }
+        
+        lastForce = now;
+    }
+    
+    private void openSegment(long now) throws IOException {
+        
+        File file = new File(directory, String.format("%019d", now) + SEGMENT_SUFFIX);
+        
+        for (long suffix = now + 1; file.exists(); suffix++) {
+            
+            file = new File(directory, String.format("%019d", suffix) + SEGMENT_SUFFIX);
+        }
+        
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        
+        try {
+            
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            
+            ViolationRecordCodec.writeSegmentHeader(buffer);
+            
+            segmentChannel = channel;
+            
+            segment = buffer;
+            
+        } catch (IOException|RuntimeException e) {
+            
+            // leaves no half created segment behind for the next attempt
+            try {
+                
+                channel.close();
+                
+            } catch (IOException closeException) {
+                
+                e.addSuppressed(closeException);
+            }
+            
+            if (!file.delete()) {
+                
+                log.debug("Unable to delete unopened report store segment - " + file);
+            }
+            
+            throw e;
+        }
+        
+        segmentFile = file;
+        
+        segmentCreated = now;
+        
+        lastForce = now;
+        
+        dirty = true;
+    }
+    
+    private void closeSegment(long now) throws IOException {
+        
+        force(now);
+        
+        int length = segment.position();
+        
+        segment = null;
+        
+        try {
+            
+            // keeps the 0 length end marker, the rest of the pre-sized file is released
+            segmentChannel.truncate(length + 4);
+            
+        } catch (IOException e) {
+            
+            log.debug("Report store segment left at full size - " + segmentFile);
+        }
+        
+        try {
+            
+            segmentChannel.close();
+            
+        } finally {
+            
+            segmentChannel = null;
+        }
+    }
+    
+    private void rollSegment(long now) throws IOException {
+        
+        closeSegment(now);
+        
+        openSegment(now);
+        
+        applyRetention(now);
+    }
+    
+    private void applyRetention(long now) {
+        
+        File[] segmentFiles = directory.listFiles(SEGMENT_FILTER);
+        
+        if (segmentFiles==null) {
+            
+            return;
+        }
+        
+        // names are zero padded creation times, so name order is age order
+        Arrays.sort(segmentFiles);
+        
+        int remaining = segmentFiles.length;
+        
+        for (File file: segmentFiles) {
+            
+            if (file.equals(segmentFile)) {
+                
+                continue;
+            }
+            
+            if ((now - file.lastModified() > retentionMillis)||((maxSegments > 0)&&(remaining > maxSegments))) {
+                
+                if (file.delete()) {
+                    
+                    remaining--;
+                    
+                } else {
+                    
+                    log.warn("Unable to delete expired report store segment - " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return the directory segments are written to
+     */
+    public File getDirectory() {
+        return directory;
+    }
+    
+    /**
+     * @return the number of reports written since start
+     */
+    public synchronized long getWrittenCount() {
+        return writtenCount;
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#destroy()
+     */
+    @Override
+    public void destroy() {
+        
+        if (forceExecutor!=null) {
+            
+            forceExecutor.shutdownNow();
+        }
+        
+        synchronized (this) {
+            
+            if (segment!=null) {
+                
+                try {
+                    
+                    closeSegment(System.currentTimeMillis());
+                    
+                } catch (IOException e) {
+                    
+                    log.error("Unable to close report store segment - " + segmentFile, e);
+                }
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+/**
+ * Count of one (violated directive, blocked uri, document uri) tuple over a rollup window, as flushed by {@link ViolationAggregator}.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ViolationRollup {
+    
+    private final String violatedDirective;
+    
+    private final String blockedUri;
+    
+    private final String documentUri;
+    
+    private final long count;
+    
+    private final long firstSeen;
+    
+    private final long lastSeen;
+    
+    private final long windowStart;
+    
+    private final long windowEnd;
+    
+    private final ViolationReport sampleReport;
+    
+    public ViolationRollup(String violatedDirective, String blockedUri, String documentUri, long count, long firstSeen, long lastSeen, long windowStart, long windowEnd, ViolationReport sampleReport) {
+        this.violatedDirective = violatedDirective;
+        this.blockedUri = blockedUri;
+        this.documentUri = documentUri;
+        this.count = count;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.sampleReport = sampleReport;
+    }
+
+    /**
+     * @return the violatedDirective
+     */
+    public String getViolatedDirective() {
+        return violatedDirective;
+    }
+
+    /**
+     * @return the blockedUri
+     */
+    public String getBlockedUri() {
+        return blockedUri;
+    }
+
+    /**
+     * @return the documentUri
+     */
+    public String getDocumentUri() {
+        return documentUri;
+    }
+
+    /**
+     * @return the number of reports received in the window
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the time the tuple was first reported, in milliseconds since the epoch, possibly before the window
+     */
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    /**
+     * @return the time the tuple was last reported, in milliseconds since the epoch
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return the windowStart
+     */
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    /**
+     * @return the windowEnd
+     */
+    public long getWindowEnd() {
+        return windowEnd;
+    }
+
+    /**
+     * @return the first report of the tuple received in the window
+     */
+    public ViolationReport getSampleReport() {
+        return sampleReport;
+    }
+    
+    @Override
+    public String toString() {
+        
+        StringBuilder str = new StringBuilder(160);
+        
+        str.append("count=").append(count);
+        str.append(" violated-directive=").append(violatedDirective);
+        str.append(" blocked-uri=").append(blockedUri);
+        str.append(" document-uri=").append(documentUri);
+        str.append(" first-seen=").append(firstSeen);
+        str.append(" last-seen=").append(lastSeen);
+        
+        if (sampleReport!=null) {
+            
+            str.append(" sample=[").append(sampleReport).append(']');
+        }
+        
+        return str.toString();
+    }
+    
+}
@@ -0,0 +1,391 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * In-memory, time bucketed history of the rollups flushed by {@link ViolationAggregator}, so violations can be
+ * queried without scanning raw reports.
+ * 
+ * Rollups are counted into one minute buckets, attributed to the minute holding the middle of their window.
+ * Minute buckets older than the minute retention are down-sampled into one hour buckets, which are kept for
+ * the hour retention. Each bucket holds at most maxTuples distinct tuples, counts of further tuples only go
+ * into the bucket total. Queries therefore have minute resolution for recent windows and hour resolution
+ * for older ones.
+ * 
+ * All methods are synchronized; rollups arrive once per rollup interval and query results are expected to be
+ * cached by the caller against {@link #getVersion()}.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ViolationRollupBuckets {
+    
+    public static final long MINUTE = 60L * 1000L;
+    
+    public static final long HOUR = 60L * MINUTE;
+    
+    private static final Comparator<ViolationCount> BY_COUNT = new Comparator<ViolationCount>() {
+        
+        @Override
+        public int compare(ViolationCount a, ViolationCount b) {
+            
+            int compare = Long.compare(a.getCount(), b.getCount());
+            
+            // ties in value order so equal counts always rank the same way
+            return (compare!=0) ? compare : b.getValue().compareTo(a.getValue());
+        }
+    };
+    
+    private final ArrayDeque<Bucket> minuteBuckets = new ArrayDeque<Bucket>();
+    
+    private final ArrayDeque<Bucket> hourBuckets = new ArrayDeque<Bucket>();
+    
+    private final int minuteRetention;
+    
+    private final int hourRetention;
+    
+    private final int maxTuples;
+    
+    private long version;
+    
+    private static final class Bucket {
+        
+        private final long start;
+        
+        private final HashMap<ViolationKey, long[]> counts = new HashMap<ViolationKey, long[]>();
+        
+        private long total;
+        
+        private Bucket(long start) {
+            this.start = start;
+        }
+        
+        private void add(ViolationKey violationKey, long count, int maxTuples) {
+            
+            total += count;
+            
+            long[] tupleCount = counts.get(violationKey);
+            
+            if (tupleCount==null) {
+                
+                if (counts.size() >= maxTuples) {
+                    
+                    return;
+                }
+                
+                tupleCount = new long[1];
+                counts.put(violationKey, tupleCount);
+            }
+            
+            tupleCount[0] += count;
+        }
+    }
+    
+    /**
+     * @param minuteRetention the number of one minute buckets kept before down-sampling
+     * @param hourRetention the number of one hour buckets kept
+     * @param maxTuples the number of distinct tuples kept per bucket
+     */
+    public ViolationRollupBuckets(int minuteRetention, int hourRetention, int maxTuples) {
+        this.minuteRetention = Math.max(1, minuteRetention);
+        this.hourRetention = Math.max(1, hourRetention);
+        this.maxTuples = Math.max(1, maxTuples);
+    }
+    
+    /**
+     * Counts the rollups of a window into their buckets and down-samples buckets that have aged out.
+     */
+    public synchronized void add(List<ViolationRollup> violationRollupList, long now) {
+        
+        for (ViolationRollup violationRollup: violationRollupList) {
+            
+            long time = violationRollup.getWindowStart() + (violationRollup.getWindowEnd() - violationRollup.getWindowStart()) / 2;
+            
+            getBucket(time).add(new ViolationKey(violationRollup.getViolatedDirective(), violationRollup.getBlockedUri(), violationRollup.getDocumentUri()), 
+                    violationRollup.getCount(), maxTuples);
+        }
+        
+        expire(now);
+        
+        version++;
+    }
+    
+    private Bucket getBucket(long time) {
+        
+        long minute = time - (time % MINUTE);
+        
+        if ((minuteBuckets.isEmpty())||(minute >= minuteBuckets.getFirst().start)) {
+            
+            // rollups arrive in time order, so the bucket is nearly always the newest one
+            Iterator<Bucket> iterator = minuteBuckets.descendingIterator();
+            
+            while (iterator.hasNext()) {
+                
+                Bucket bucket = iterator.next();
+                
+                if (bucket.start==minute) {
+                    
+                    return bucket;
+                }
+                
+                if (bucket.start < minute) {
+                    
+                    break;
+                }
+            }
+            
+            Bucket bucket = new Bucket(minute);
+            
+            if ((minuteBuckets.isEmpty())||(minute > minuteBuckets.getLast().start)) {
+                
+                minuteBuckets.addLast(bucket);
+                
+            } else {
+                
+                insert(minuteBuckets, bucket);
+            }
+            
+            return bucket;
+        }
+        
+        return getHourBucket(time);
+    }
+    
+    private Bucket getHourBucket(long time) {
+        
+        long hour = time - (time % HOUR);
+        
+        Iterator<Bucket> iterator = hourBuckets.descendingIterator();
+        
+        while (iterator.hasNext()) {
+            
+            Bucket bucket = iterator.next();
+            
+            if (bucket.start==hour) {
+                
+                return bucket;
+            }
+            
+            if (bucket.start < hour) {
+                
+                break;
+            }
+        }
+        
+        Bucket bucket = new Bucket(hour);
+        
+        if ((hourBuckets.isEmpty())||(hour > hourBuckets.getLast().start)) {
+            
+            hourBuckets.addLast(bucket);
+            
+        } else {
+            
+            insert(hourBuckets, bucket);
+        }
+        
+        return bucket;
+    }
+    
+    private static void insert(ArrayDeque<Bucket> buckets, Bucket bucket) {
+        
+        List<Bucket> sorted = new ArrayList<Bucket>(buckets);
+        
+        int i = 0;
+        
+        while ((i < sorted.size())&&(sorted.get(i).start < bucket.start)) {
+            
+            i++;
+        }
+        
+        sorted.add(i, bucket);
+        
+        buckets.clear();
+        buckets.addAll(sorted);
+    }
+    
+    private void expire(long now) {
+        
+        long minuteHorizon = now - now % MINUTE - (minuteRetention - 1) * MINUTE;
+        
+        while ((!minuteBuckets.isEmpty())&&(minuteBuckets.getFirst().start < minuteHorizon)) {
+            
+            Bucket minuteBucket = minuteBuckets.removeFirst();
+            
+            Bucket hourBucket = getHourBucket(minuteBucket.start);
+            
+            long untracked = minuteBucket.total;
+            
+            for (Map.Entry<ViolationKey, long[]> entry: minuteBucket.counts.entrySet()) {
+                
+                hourBucket.add(entry.getKey(), entry.getValue()[0], maxTuples);
+                
+                untracked -= entry.getValue()[0];
+            }
+            
+            hourBucket.total += untracked;
+        }
+        
+        long hourHorizon = now - now % HOUR - (hourRetention - 1) * HOUR;
+        
+        while ((!hourBuckets.isEmpty())&&(hourBuckets.getFirst().start < hourHorizon)) {
+            
+            hourBuckets.removeFirst();
+        }
+    }
+    
+    /**
+     * @return a counter that changes whenever rollups are added, for caching query results
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+    
+    /**
+     * @return the most reported blocked uris of a directive, or of all directives when directive is null, over [from, to)
+     */
+    public synchronized List<ViolationCount> getTopBlockedUris(String violatedDirective, long from, long to, int limit) {
+        
+        HashMap<String, long[]> counts = new HashMap<String, long[]>();
+        
+        for (Bucket bucket: getBuckets(from, to)) {
+            
+            for (Map.Entry<ViolationKey, long[]> entry: bucket.counts.entrySet()) {
+                
+                ViolationKey violationKey = entry.getKey();
+                
+                if ((violatedDirective==null)||(violatedDirective.equals(violationKey.getViolatedDirective()))) {
+                    
+                    count(counts, violationKey.getBlockedUri(), entry.getValue()[0]);
+                }
+            }
+        }
+        
+        return top(counts, limit);
+    }
+    
+    /**
+     * @return the documents with the most violations over [from, to)
+     */
+    public synchronized List<ViolationCount> getTopDocumentUris(long from, long to, int limit) {
+        
+        HashMap<String, long[]> counts = new HashMap<String, long[]>();
+        
+        for (Bucket bucket: getBuckets(from, to)) {
+            
+            for (Map.Entry<ViolationKey, long[]> entry: bucket.counts.entrySet()) {
+                
+                count(counts, entry.getKey().getDocumentUri(), entry.getValue()[0]);
+            }
+        }
+        
+        return top(counts, limit);
+    }
+    
+    /**
+     * @return the number of violations per step over [from, to), each bucket counted in the step holding its start
+     */
+    public synchronized long[] getRate(long from, long to, long step) {
+        
+        step = Math.max(MINUTE, step);
+        
+        long[] rate = new long[(int)Math.max(0, (to - from + step - 1) / step)];
+        
+        for (Bucket bucket: getBuckets(from, to)) {
+            
+            rate[(int)((bucket.start - from) / step)] += bucket.total;
+        }
+        
+        return rate;
+    }
+    
+    private List<Bucket> getBuckets(long from, long to) {
+        
+        List<Bucket> buckets = new ArrayList<Bucket>();
+        
+        for (Bucket bucket: hourBuckets) {
+            
+            if ((bucket.start >= from)&&(bucket.start < to)) {
+                
+                buckets.add(bucket);
+            }
+        }
+        
+        for (Bucket bucket: minuteBuckets) {
+            
+            if ((bucket.start >= from)&&(bucket.start < to)) {
+                
+                buckets.add(bucket);
+            }
+        }
+        
+        return buckets;
+    }
+    
+    private static void count(HashMap<String, long[]> counts, String value, long count) {
+        
+        String key = (value!=null) ? value : "";
+        
+        long[] valueCount = counts.get(key);
+        
+        if (valueCount==null) {
+            
+            valueCount = new long[1];
+            counts.put(key, valueCount);
+        }
+        
+        valueCount[0] += count;
+    }
+    
+    /**
+     * Keeps the largest counts in a bounded min-heap instead of sorting every value.
+     */
+    private static List<ViolationCount> top(HashMap<String, long[]> counts, int limit) {
+        
+        limit = Math.max(1, limit);
+        
+        PriorityQueue<ViolationCount> heap = new PriorityQueue<ViolationCount>(limit + 1, BY_COUNT);
+        
+        for (Map.Entry<String, long[]> entry: counts.entrySet()) {
+            
+            long count = entry.getValue()[0];
+            
+            if ((heap.size() < limit)||(count >= heap.peek().getCount())) {
+                
+                heap.add(new ViolationCount(entry.getKey(), count));
+                
+                if (heap.size() > limit) {
+                    
+                    heap.poll();
+                }
+            }
+        }
+        
+        List<ViolationCount> top = new ArrayList<ViolationCount>(heap);
+        
+        Collections.sort(top, Collections.reverseOrder(BY_COUNT));
+        
+        return top;
+    }
+    
+}
@@ -0,0 +1,617 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link ViolationReportSink} keeping compact, mergeable sketches per violated directive: a {@link HyperLogLog}
+ * of distinct document uris, a {@link HyperLogLog} of distinct clients and a {@link SpaceSaving} summary of
+ * the most reported blocked uris, along with the report count.
+ * 
+ * Violated directives are normalised to a known CSP directive name, anything else is counted under "other",
+ * so clients cannot make up directive names.
+ * 
+ * Memory is bounded whatever the traffic: at most {@link #MAX_DIRECTIVES} directives are tracked, further
+ * ones are counted under "other". The sketch covers the node's lifetime and is written to the sketch file
+ * every sketch interval, so files from all nodes can be combined with {@link ViolationSketchMerge} without
+ * shipping raw reports. A sketch file left by an earlier run with the same precision and heavy hitters is
+ * merged in at init, so a restart carries the node's history on.
+ * 
+ * File format, big endian: int magic CSPK, int version, long since, long until, int directive count, then per
+ * directive: modified UTF-8 directive, long report count, documents and clients ({@link HyperLogLog#writeTo(DataOutput)})
+ * and blocked uris ({@link SpaceSaving#writeTo(DataOutput)}).
+ * 
+ * Init-params: sketchFile (defaults to csp-sketch-&lt;host name&gt;.sketch in the container's temporary directory),
+ * sketchInterval (seconds, default 300), sketchPrecision (default 12) and sketchHeavyHitters (default 100).
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public class ViolationSketch implements ViolationReportSink {
+    
+    private static final Log log = LogFactory.getLog(ViolationSketch.class);
+    
+    public static final String SKETCH_SUFFIX = ".sketch";
+    
+    public static final int MAX_DIRECTIVES = 64;
+    
+    public static final String OTHER_DIRECTIVE = "other";
+    
+    /**
+     * Longest directive name accepted, well above the longest known one.
+     */
+    public static final int MAX_DIRECTIVE_LENGTH = 64;
+    
+    private static final Set<String> KNOWN_DIRECTIVES = new HashSet<String>(Arrays.asList(
+            "default-src", "child-src", "connect-src", "fenced-frame-src", "font-src", "frame-src", "img-src", "manifest-src", 
+            "media-src", "object-src", "prefetch-src", "script-src", "script-src-elem", "script-src-attr", "style-src", 
+            "style-src-elem", "style-src-attr", "worker-src", "base-uri", "sandbox", "form-action", "frame-ancestors", 
+            "navigate-to", "report-uri", "report-to", "require-trusted-types-for", "trusted-types", "upgrade-insecure-requests", 
+            "block-all-mixed-content", "plugin-types", "require-sri-for", "webrtc"));
+    
+    private static final int SKETCH_MAGIC = 0x4353504B;
+    
+    private static final int SKETCH_VERSION = 1;
+    
+    private static final String SKETCH_FILE = "sketchFile";
+    
+    private static final String SKETCH_INTERVAL = "sketchInterval";
+    
+    private static final String SKETCH_PRECISION = "sketchPrecision";
+    
+    private static final String SKETCH_HEAVY_HITTERS = "sketchHeavyHitters";
+    
+    private static final String TEMP_DIR = "javax.servlet.context.tempdir";
+    
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+    
+    private final TreeMap<String, DirectiveSketch> directiveSketches = new TreeMap<String, DirectiveSketch>();
+    
+    private int precision;
+    
+    private int heavyHitters;
+    
+    private long since;
+    
+    private long until;
+    
+    private File sketchFile;
+    
+    private ScheduledExecutorService sketchExecutor;
+    
+    private static final class DirectiveSketch {
+        
+        private long reportCount;
+        
+        private final HyperLogLog documentUris;
+        
+        private final HyperLogLog clients;
+        
+        private final SpaceSaving blockedUris;
+        
+        private DirectiveSketch(HyperLogLog documentUris, HyperLogLog clients, SpaceSaving blockedUris) {
+            this.documentUris = documentUris;
+            this.clients = clients;
+            this.blockedUris = blockedUris;
+        }
+        
+        private void merge(DirectiveSketch other) {
+            
+            reportCount += other.reportCount;
+            documentUris.merge(other.documentUris);
+            clients.merge(other.clients);
+            blockedUris.merge(other.blockedUris);
+        }
+    }
+    
+    public ViolationSketch() {
+        this(12, 100);
+    }
+    
+    /**
+     * @param precision the {@link HyperLogLog} precision
+     * @param heavyHitters the number of blocked uris monitored per directive
+     */
+    public ViolationSketch(int precision, int heavyHitters) {
+        this.precision = precision;
+        this.heavyHitters = heavyHitters;
+        this.since = System.currentTimeMillis();
+        this.until = since;
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#init(javax.servlet.ServletConfig)
+     */
+    @Override
+    public void init(ServletConfig servletConfig) throws ServletException {
+        
+        precision = Math.max(HyperLogLog.MIN_PRECISION, Math.min(HyperLogLog.MAX_PRECISION, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, SKETCH_PRECISION, 12)));
+        
+        heavyHitters = Math.max(1, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, SKETCH_HEAVY_HITTERS, 100));
+        
+        String fileName = (servletConfig!=null) ? servletConfig.getInitParameter(SKETCH_FILE) : null;
+        
+        if ((fileName!=null)&&(!fileName.trim().equals(""))) {
+            
+            sketchFile = new File(fileName.trim());
+            
+        } else {
+            
+            Object tempDir = (servletConfig!=null) ? servletConfig.getServletContext().getAttribute(TEMP_DIR) : null;
+            
+            sketchFile = new File((tempDir instanceof File) ? (File)tempDir : new File(System.getProperty("java.io.tmpdir")), "csp-sketch-" + getHostName() + SKETCH_SUFFIX);
+        }
+        
+        load();
+        
+        if (servletConfig!=null) {
+            
+            servletConfig.getServletContext().setAttribute(ViolationSketch.class.getName(), this);
+        }
+        
+        int sketchInterval = Math.max(1, ContentSecurityPolicyViolationReporter.getIntInitParameter(servletConfig, SKETCH_INTERVAL, 300));
+        
+        sketchExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                
+                Thread thread = new Thread(runnable, "csp-report-sketch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        sketchExecutor.scheduleWithFixedDelay(new Runnable() {
+            
+            @Override
+            public void run() {
+                
+                save();
+            }
+            
+        }, sketchInterval, sketchInterval, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Merges in the sketch file of an earlier run, unless it was written with another precision or heavy hitters.
+     */
+    private void load() {
+        
+        if (!sketchFile.isFile()) {
+            
+            return;
+        }
+        
+        try {
+            
+            ViolationSketch previousSketch = read(sketchFile);
+            
+            if (previousSketch.isCompatible(precision, heavyHitters)) {
+                
+                merge(previousSketch);
+                
+                log.info("Loaded violation sketch - " + sketchFile);
+                
+            } else {
+                
+                log.warn("Violation sketch written with another sketchPrecision or sketchHeavyHitters will be replaced - " + sketchFile);
+            }
+            
+        } catch (IOException|RuntimeException e) {
+            
+            log.warn("Unreadable violation sketch will be replaced - " + sketchFile, e);
+        }
+    }
+    
+    private synchronized boolean isCompatible(int precision, int heavyHitters) {
+        
+        for (DirectiveSketch directiveSketch: directiveSketches.values()) {
+            
+            if ((directiveSketch.documentUris.getPrecision()!=precision)||(directiveSketch.clients.getPrecision()!=precision)
+                    ||(directiveSketch.blockedUris.getCapacity()!=heavyHitters)) {
+                
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static String getHostName() {
+        
+        try {
+            
+            return InetAddress.getLocalHost().getHostName().replaceAll("[^A-Za-z0-9.-]", "_");
+            
+        } catch (UnknownHostException e) {
+            
+            return "localhost";
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see csptest.report.ViolationReportSink#write(java.util.List)
+     */
+    @Override
+    public synchronized void write(List<ViolationReport> violationReportList) {
+        
+        for (ViolationReport violationReport: violationReportList) {
+            
+            DirectiveSketch directiveSketch = getDirectiveSketch(violationReport.getViolatedDirective());
+            
+            directiveSketch.reportCount++;
+            directiveSketch.documentUris.add(violationReport.getDocumentUri());
+            directiveSketch.clients.add(violationReport.getClientAddress());
+            directiveSketch.blockedUris.add((violationReport.getBlockedUri()!=null) ? violationReport.getBlockedUri() : "", 1);
+            
+            if (violationReport.getReceivedTime() > until) {
+                
+                until = violationReport.getReceivedTime();
+            }
+        }
+    }
+    
+    /**
+     * @return the known directive name the violated directive starts with, e.g. script-src for "script-src 'self'", or {@link #OTHER_DIRECTIVE}
+     */
+    public static String normalizeDirective(String directive) {
+        
+        if (directive==null) {
+            
+            return OTHER_DIRECTIVE;
+        }
+        
+        int start = 0;
+        
+        while ((start < directive.length())&&(Character.isWhitespace(directive.charAt(start)))) {
+            
+            start++;
+        }
+        
+        int end = start;
+        
+        while ((end < directive.length())&&(!Character.isWhitespace(directive.charAt(end)))) {
+            
+            end++;
+        }
+        
+        if ((end==start)||(end - start > MAX_DIRECTIVE_LENGTH)) {
+            
+            return OTHER_DIRECTIVE;
+        }
+        
+        String name = directive.substring(start, end).toLowerCase(Locale.ENGLISH);
+        
+        return (KNOWN_DIRECTIVES.contains(name)) ? name : OTHER_DIRECTIVE;
+    }
+    
+    private DirectiveSketch getDirectiveSketch(String directive) {
+        
+        String key = normalizeDirective(directive);
+        
+        DirectiveSketch directiveSketch = directiveSketches.get(key);
+        
+        if (directiveSketch==null) {
+            
+            if (directiveSketches.size() >= MAX_DIRECTIVES - 1) {
+                
+                // directives come from the reports, so the table must not grow with whatever clients send
+                key = OTHER_DIRECTIVE;
+                
+                directiveSketch = directiveSketches.get(key);
+            }
+            
+            if (directiveSketch==null) {
+                
+                directiveSketch = new DirectiveSketch(new HyperLogLog(precision), new HyperLogLog(precision), new SpaceSaving(heavyHitters));
+                
+                directiveSketches.put(key, directiveSketch);
+            }
+        }
+        
+        return directiveSketch;
+    }
+    
+    /**
+     * Folds the sketch of another node into this one. Sketches must have the same precision.
+     */
+    public synchronized void merge(ViolationSketch other) {
+        
+        synchronized (other) {
+            
+            for (Map.Entry<String, DirectiveSketch> entry: other.directiveSketches.entrySet()) {
+                
+                String key = normalizeDirective(entry.getKey());
+                
+                if ((!directiveSketches.containsKey(key))&&(directiveSketches.size() >= MAX_DIRECTIVES - 1)) {
+                    
+                    key = OTHER_DIRECTIVE;
+                }
+                
+                DirectiveSketch directiveSketch = directiveSketches.get(key);
+                
+                if (directiveSketch==null) {
+                    
+                    directiveSketch = new DirectiveSketch(new HyperLogLog(entry.getValue().documentUris.getPrecision()), 
+                            new HyperLogLog(entry.getValue().clients.getPrecision()), new SpaceSaving(entry.getValue().blockedUris.getCapacity()));
+                    
+                    directiveSketches.put(key, directiveSketch);
+                }
+                
+                directiveSketch.merge(entry.getValue());
+            }
+            
+            since = Math.min(since, other.since);
+            until = Math.max(until, other.until);
+        }
+    }
+    
+    /**
+     * @return the directives seen, in name order
+     */
+    public synchronized List<String> getDirectives() {
+        return new ArrayList<String>(directiveSketches.keySet());
+    }
+    
+    public synchronized long getReportCount(String directive) {
+        
+        DirectiveSketch directiveSketch = directiveSketches.get(directive);
+        
+        return (directiveSketch!=null) ? directiveSketch.reportCount : 0;
+    }
+    
+    /**
+     * @return the estimated number of distinct document uris reporting the directive
+     */
+    public synchronized long getDistinctDocumentUris(String directive) {
+        
+        DirectiveSketch directiveSketch = directiveSketches.get(directive);
+        
+        return (directiveSketch!=null) ? directiveSketch.documentUris.estimate() : 0;
+    }
+    
+    /**
+     * @return the estimated number of distinct clients reporting the directive
+     */
+    public synchronized long getDistinctClients(String directive) {
+        
+        DirectiveSketch directiveSketch = directiveSketches.get(directive);
+        
+        return (directiveSketch!=null) ? directiveSketch.clients.estimate() : 0;
+    }
+    
+    /**
+     * @return the most reported blocked uris of the directive, most frequent first
+     */
+    public synchronized List<SpaceSaving.Counter> getTopBlockedUris(String directive, int limit) {
+        
+        DirectiveSketch directiveSketch = directiveSketches.get(directive);
+        
+        return (directiveSketch!=null) ? directiveSketch.blockedUris.getTop(limit) : Collections.<SpaceSaving.Counter>emptyList();
+    }
+    
+    /**
+     * @return the time of the first report covered, in milliseconds since the epoch
+     */
+    public synchronized long getSince() {
+        return since;
+    }
+    
+    /**
+     * @return the time of the last report covered, in milliseconds since the epoch
+     */
+    public synchronized long getUntil() {
+        return until;
+    }
+    
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        
+        out.writeInt(SKETCH_MAGIC);
+        out.writeInt(SKETCH_VERSION);
+        out.writeLong(since);
+        out.writeLong(until);
+        out.writeInt(directiveSketches.size());
+        
+        for (Map.Entry<String, DirectiveSketch> entry: directiveSketches.entrySet()) {
+            
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().reportCount);
+            entry.getValue().documentUris.writeTo(out);
+            entry.getValue().clients.writeTo(out);
+            entry.getValue().blockedUris.writeTo(out);
+        }
+    }
+    
+    public static ViolationSketch readFrom(DataInput in) throws IOException {
+        
+        if (in.readInt()!=SKETCH_MAGIC) {
+            
+            throw new IOException("Not a violation sketch");
+        }
+        
+        int version = in.readInt();
+        
+        if (version!=SKETCH_VERSION) {
+            
+            throw new IOException("Unsupported violation sketch version - " + version);
+        }
+        
+        ViolationSketch violationSketch = new ViolationSketch();
+        
+        violationSketch.since = in.readLong();
+        violationSketch.until = in.readLong();
+        
+        int directiveCount = in.readInt();
+        
+        if ((directiveCount < 0)||(directiveCount > MAX_DIRECTIVES)) {
+            
+            throw new IOException("Invalid directive count - " + directiveCount);
+        }
+        
+        for (int i = 0; i < directiveCount; i++) {
+            
+            // sketches written before directives were normalised may carry arbitrary names
+            String directive = normalizeDirective(in.readUTF());
+            
+            long reportCount = in.readLong();
+            
+            DirectiveSketch directiveSketch = new DirectiveSketch(HyperLogLog.readFrom(in), HyperLogLog.readFrom(in), SpaceSaving.readFrom(in));
+            
+            directiveSketch.reportCount = reportCount;
+            
+            DirectiveSketch existingDirectiveSketch = violationSketch.directiveSketches.get(directive);
+            
+            if (existingDirectiveSketch!=null) {
+                
+                existingDirectiveSketch.merge(directiveSketch);
+                
+            } else {
+                
+                violationSketch.directiveSketches.put(directive, directiveSketch);
+            }
+        }
+        
+        return violationSketch;
+    }
+    
+    public static ViolationSketch read(File file) throws IOException {
+        
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            
+            return readFrom(new DataInputStream(new BufferedInputStream(in)));
+        }
+    }
+    
+    /**
+     * Writes the sketch to a new, uniquely named temporary file renamed over the target, so readers never see a
+     * partial sketch and concurrent writes never share a temporary file.
+     */
+    public void write(File file) throws IOException {
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        
+        // serialised under the lock into memory, the disk write happens outside it
+        writeTo(new DataOutputStream(bytes));
+        
+        File directory = file.getAbsoluteFile().getParentFile();
+        
+        if ((directory!=null)&&(!directory.isDirectory())&&(!directory.mkdirs())) {
+            
+            throw new IOException("Unable to create directory - " + directory);
+        }
+        
+        Path temporaryFile = Files.createTempFile((directory!=null) ? directory.toPath() : Paths.get("."), file.getName(), ".tmp");
+        
+        try {
+            
+            try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+                
+                bytes.writeTo(out);
+            }
+            
+            Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+        } finally {
+            
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+    
+    private void save() {
+        
+        try {
+            
+            write(sketchFile);
+            
+        } catch (IOException|RuntimeException e) {
+            
+            log.warn("Unable to write violation sketch - " + sketchFile, e);
+        }
+    }
+    
+    /**
+     * @return the file the sketch is saved to
+     */
+    public File getSketchFile() {
+        return sketchFile;
+    }
+
+    /**
+     * Lets a save in progress finish, for at most {@link #STOP_TIMEOUT_MILLIS}, before the final save.
+     * 
+     * @see csptest.report.ViolationReportSink#destroy()
+     */
+    @Override
+    public void destroy() {
+        
+        if (sketchExecutor!=null) {
+            
+            sketchExecutor.shutdown();
+            
+            try {
+                
+                if (!sketchExecutor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    
+                    log.warn("Violation sketch save still running after " + STOP_TIMEOUT_MILLIS + "ms, saving anyway");
+                }
+                
+            } catch (InterruptedException e) {
+                
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        if (sketchFile!=null) {
+            
+            save();
+        }
+    }
+    
+}
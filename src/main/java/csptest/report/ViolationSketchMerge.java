@@ -0,0 +1,188 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.report;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line tool that combines the {@link ViolationSketch} files of all nodes into fleet wide answers,
+ * e.g. how many distinct pages hit a directive, and optionally writes the merged sketch for further merging.
+ * Directive names are normalised as the sketches are read, see {@link ViolationSketch#normalizeDirective(String)},
+ * so sketches from older nodes cannot carry arbitrary names into the merge.
+ * 
+ * Usage: ViolationSketchMerge [-o merged.sketch] [-top n] directory|sketch...
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class ViolationSketchMerge {
+    
+    private ViolationSketchMerge() {
+    }
+    
+    /**
+     * @return the sketch files, directories expanded to the sketches they hold
+     */
+    private static List<File> getSketchFiles(List<String> paths) {
+        
+        List<File> sketchFiles = new ArrayList<File>();
+        
+        for (String path: paths) {
+            
+            File file = new File(path);
+            
+            if (file.isDirectory()) {
+                
+                File[] files = file.listFiles(new FileFilter() {
+                    
+                    @Override
+                    public boolean accept(File file) {
+                        return (file.isFile())&&(file.getName().endsWith(ViolationSketch.SKETCH_SUFFIX));
+                    }
+                });
+                
+                if (files!=null) {
+                    
+                    Arrays.sort(files);
+                    
+                    sketchFiles.addAll(Arrays.asList(files));
+                }
+                
+            } else {
+                
+                sketchFiles.add(file);
+            }
+        }
+        
+        return sketchFiles;
+    }
+    
+    /**
+     * Merges the sketch files in order.
+     * 
+     * @return the merged sketch, or null when there are no files
+     */
+    public static ViolationSketch merge(List<File> sketchFiles) throws IOException {
+        
+        ViolationSketch merged = null;
+        
+        for (File sketchFile: sketchFiles) {
+            
+            ViolationSketch violationSketch = ViolationSketch.read(sketchFile);
+            
+            if (merged==null) {
+                
+                merged = violationSketch;
+                
+            } else {
+                
+                try {
+                    
+                    merged.merge(violationSketch);
+                    
+                } catch (IllegalArgumentException e) {
+                    
+                    throw new IOException("Unable to merge " + sketchFile + " - " + e.getMessage(), e);
+                }
+            }
+        }
+        
+        return merged;
+    }
+    
+    private static void usage() {
+        
+        System.err.println("Usage: ViolationSketchMerge [-o merged.sketch] [-top n] directory|sketch...");
+        
+        System.exit(2);
+    }
+    
+    public static void main(String[] argc) {
+        
+        String output = null;
+        
+        int top = 10;
+        
+        List<String> paths = new ArrayList<String>();
+        
+        try {
+            
+            for (int i = 0; i < argc.length; i++) {
+                
+                if ((argc[i].equals("-o"))&&(i + 1 < argc.length)) {
+                    
+                    output = argc[++i];
+                    
+                } else if ((argc[i].equals("-top"))&&(i + 1 < argc.length)) {
+                    
+                    top = Integer.parseInt(argc[++i]);
+                    
+                } else if (argc[i].startsWith("-")) {
+                    
+                    usage();
+                    
+                } else {
+                    
+                    paths.add(argc[i]);
+                }
+            }
+            
+        } catch (NumberFormatException e) {
+            
+            usage();
+        }
+        
+        List<File> sketchFiles = getSketchFiles(paths);
+        
+        if (sketchFiles.isEmpty()) {
+            
+            usage();
+        }
+        
+        try {
+            
+            ViolationSketch merged = merge(sketchFiles);
+            
+            System.out.println("sketches=" + sketchFiles.size() + " since=" + merged.getSince() + " until=" + merged.getUntil());
+            
+            for (String directive: merged.getDirectives()) {
+                
+                System.out.println("violated-directive=" + directive + " reports=" + merged.getReportCount(directive) 
+                        + " distinct-document-uris=" + merged.getDistinctDocumentUris(directive) + " distinct-clients=" + merged.getDistinctClients(directive));
+                
+                for (SpaceSaving.Counter counter: merged.getTopBlockedUris(directive, top)) {
+                    
+                    System.out.println("    count=" + counter.getCount() + " error=" + counter.getError() + " blocked-uri=" + counter.getValue());
+                }
+            }
+            
+            if (output!=null) {
+                
+                merged.write(new File(output));
+            }
+            
+        } catch (IOException e) {
+            
+            System.err.println(e.getMessage());
+            
+            System.exit(1);
+        }
+    }
+    
+}
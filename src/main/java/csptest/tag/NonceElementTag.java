@@ -0,0 +1,121 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.tag;
+
+import java.io.IOException;
+
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.tagext.DynamicAttributes;
+import javax.servlet.jsp.tagext.JspFragment;
+import javax.servlet.jsp.tagext.SimpleTagSupport;
+
+/**
+ * Base for the per-element nonce tags: writes the start tag with the nonce and any other attributes given
+ * on the tag, invokes the body straight into the page writer, then writes the end tag. Unlike
+ * {@link NonceTag} the body is never buffered.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public abstract class NonceElementTag extends SimpleTagSupport implements DynamicAttributes {
+    
+    private static final String NONCE = "nonce";
+    
+    private final StringBuilder attributes = new StringBuilder();
+    
+    /**
+     * @return the name of the element written by the tag, e.g. script
+     */
+    protected abstract String getElementName();
+    
+    @Override
+    public void setDynamicAttribute(String uri, String localName, Object value) throws JspException {
+        
+        // the nonce attribute is owned by the tag
+        if ((localName==null)||(localName.trim().equals(""))||(NONCE.equalsIgnoreCase(localName))) {
+            
+            return;
+        }
+        
+        attributes.append(' ');
+        attributes.append(localName);
+        
+        if (value!=null) {
+            
+            attributes.append("=\"");
+            appendEscaped(attributes, value.toString());
+            attributes.append('"');
+        }
+    }
+    
+    @Override
+    public void doTag() throws JspException, IOException {
+        
+        JspWriter out = getJspContext().getOut();
+        
+        String nonce = NonceFunctions.getNonce(getJspContext());
+        
+        out.write('<');
+        out.write(getElementName());
+        
+        if (nonce!=null) {
+            
+            out.write(" nonce=\"");
+            out.write(nonce);
+            out.write('"');
+        }
+        
+        out.write(attributes.toString());
+        out.write('>');
+        
+        JspFragment jspBody = getJspBody();
+        
+        if (jspBody!=null) {
+            
+            jspBody.invoke(null);
+        }
+        
+        out.write("</");
+        out.write(getElementName());
+        out.write('>');
+    }
+    
+    private static void appendEscaped(StringBuilder str, String value) {
+        
+        for (int i = 0; i < value.length(); i++) {
+            
+            char c = value.charAt(i);
+            
+            switch (c) {
+            
+            case '&':
+                str.append("&amp;");
+                break;
+                
+            case '"':
+                str.append("&quot;");
+                break;
+                
+            case '<':
+                str.append("&lt;");
+                break;
+                
+            default:
+                str.append(c);
+            }
+        }
+    }
+    
+}
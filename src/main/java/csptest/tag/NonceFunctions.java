@@ -0,0 +1,82 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package csptest.tag;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.PageContext;
+
+import csptest.filter.NonceContext;
+
+/**
+ * EL functions declared in csp.tld, e.g. &lt;script nonce="${csp:nonce(pageContext)}"&gt;, and the nonce
+ * lookup shared with {@link NonceElementTag}.
+ * 
+ * @author thealmostrealmccoy
+ *
+ */
+public final class NonceFunctions {
+    
+    private static final String NONCE = "nonce";
+    
+    private NonceFunctions() {
+    }
+    
+    /**
+     * @return the nonce of the current request, or an empty string when nonces are not in use
+     */
+    public static String nonce(PageContext pageContext) {
+        
+        String nonce = getNonce(pageContext);
+        
+        return (nonce!=null) ? nonce : "";
+    }
+    
+    /**
+     * The filter publishes the nonce for the current thread; the request and session attributes cover
+     * pages rendered outside the filter's thread, e.g. after an async dispatch.
+     * 
+     * @return the raw nonce of the current request, or null when nonces are not in use
+     */
+    static String getNonce(JspContext jspContext) {
+        
+        String nonce = NonceContext.getNonce();
+        
+        if (nonce!=null) {
+            
+            return nonce;
+        }
+        
+        if ((jspContext instanceof PageContext)&&(((PageContext)jspContext).getRequest() instanceof HttpServletRequest)) {
+            
+            HttpServletRequest httpRequest = (HttpServletRequest)((PageContext)jspContext).getRequest();
+            
+            nonce = (String)httpRequest.getAttribute(NONCE);
+            
+            if (nonce==null) {
+                
+                HttpSession session = httpRequest.getSession(false);
+                
+                if (session!=null) {
+                    
+                    nonce = (String)session.getAttribute(NONCE);
+                }
+            }
+        }
+        
+        return nonce;
+    }
+    
+}
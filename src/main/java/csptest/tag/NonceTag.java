@@ -14,19 +14,27 @@
 package csptest.tag;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.JspWriter;
 import javax.servlet.jsp.tagext.BodyContent;
 import javax.servlet.jsp.tagext.BodyTagSupport;
 
+import csptest.filter.NonceInjectionScanner;
+
 /**
+ * Adds the inline nonce to the script, style and link start tags of its body.
+ * 
+ * The body is scanned once, in chunks, and written straight to the enclosing writer; only the start tag
+ * being examined is held back. Quoted '&gt;' inside attribute values is honoured and tags that already
+ * carry a nonce attribute are left untouched.
+ * 
  * @author thealmostrealmccoy
  *
  */
@@ -34,151 +42,119 @@ public class NonceTag extends BodyTagSupport {
     
     private static final String INLINE_NONCE = "inlineNonce";
     
-    private static final String[] PATTERN_LIST = new String[] {"<script.*?>", "<style.*?>", "<link.*?>"};
+    private static final int CHUNK_SIZE = 4096;
     
     public int doAfterBody() throws JspException {
         
         HttpServletRequest httpRequest = (HttpServletRequest)pageContext.getRequest();
         
-        if ((httpRequest!=null)&&(httpRequest.getSession().getAttribute(INLINE_NONCE)!=null)) {
-
-            String nonce = (String)httpRequest.getSession().getAttribute(INLINE_NONCE);
-            
-            BodyContent bodyContent  = getBodyContent();
-            
-            String bodyContentAsString = bodyContent.getString();
-            
-            String updatedString = applyNonceToScript(nonce, bodyContentAsString);
+        String nonce = getInlineNonce(httpRequest);
+        
+        BodyContent bodyContent  = getBodyContent();
+        
+        if (bodyContent!=null) {
             
             JspWriter out = bodyContent.getEnclosingWriter();
             
             try {
                 
-                out.print(updatedString);
+                if ((nonce!=null)&&(!nonce.trim().equals(""))) {
+                    
+                    applyNonceToScript(nonce, bodyContent.getReader(), out);
+                    
+                } else {
+                    
+                    bodyContent.writeOut(out);
+                }
                 
             } catch (IOException e) {
 
                 //log here
             }
-            
         }
         
         return (SKIP_BODY);
     }
     
-    private String applyNonceToScript(String nonce, String bodyContent) {
+    /**
+     * The filter keeps the inline nonce in a request attribute when running sessionless, otherwise in the session.
+     */
+    private String getInlineNonce(HttpServletRequest httpRequest) {
         
-        if ((nonce!=null)&&(!nonce.trim().equals(""))&&(bodyContent!=null)&&(!bodyContent.trim().equals(""))) {
+        if (httpRequest==null) {
             
-            Map<String, String> replacementStringMap = buildreplacementStringList(nonce, bodyContent);
+            return null;
+        }
+        
+        String nonce = (String)httpRequest.getAttribute(INLINE_NONCE);
+        
+        if (nonce==null) {
             
-            if ((replacementStringMap!=null)&&(!replacementStringMap.isEmpty())) {
-                
-                StringBuilder originalContent = new StringBuilder(bodyContent.trim());
-                
-                replaceMatches(replacementStringMap, originalContent);
+            HttpSession session = httpRequest.getSession(false);
+            
+            if (session!=null) {
                 
-                if ((originalContent!=null)&&(originalContent.length()>0)) {
-                    
-                    return originalContent.toString();
-                }
+                nonce = (String)session.getAttribute(INLINE_NONCE);
             }
         }
         
-        return null;
+        return nonce;
     }
     
-    private Map<String, String> buildreplacementStringList(String nonce, String bodyContent) {
+    /**
+     * Streams the body from in to out in a single pass, adding the nonce to every script, style and link start tag.
+     */
+    void applyNonceToScript(String nonce, Reader in, final Writer out) throws IOException {
         
-        if ((nonce!=null)&&(!nonce.trim().equals(""))&&(bodyContent!=null)&&(!bodyContent.trim().equals(""))) {
+        if (in==null) {
             
-            Map<String, String> replacementStringMap = null;
+            return;
+        }
+        
+        NonceInjectionScanner scanner = new NonceInjectionScanner(nonce) {
             
-            for (String patternString: PATTERN_LIST) {
-                
-                Pattern pattern = Pattern.compile(patternString, Pattern.DOTALL);
-                
-                Matcher matcher = pattern.matcher(bodyContent);
-                
-                while (matcher.find()) {
-
-                    String group = matcher.group();
-                    
-                    if (group != null) {
-                        
-                        int closingTagIndex = group.indexOf(">");
-                        
-                        if (closingTagIndex>=0) {
-                            
-                            String groupPrefix = group.substring(0, closingTagIndex);
-                            
-                            if (groupPrefix!=null) {
-                                
-                                StringBuilder replacementStringBuilder = new StringBuilder();
-                                replacementStringBuilder.append(groupPrefix.trim());
-                                replacementStringBuilder.append(" ");
-                                replacementStringBuilder.append(nonce);
-                                replacementStringBuilder.append(">");
-                                
-                                if (replacementStringMap==null) {
-                                    replacementStringMap = new HashMap<String, String>();
-                                }
-                                
-                                replacementStringMap.put(group, replacementStringBuilder.toString());
-                            }
-                            
-                        }
-                        
-                    }
-                    
-                }
-                
+            @Override
+            protected void write(char[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
             }
+        };
+        
+        char[] buffer = new char[CHUNK_SIZE];
+        
+        int read = in.read(buffer, 0, buffer.length);
+        
+        while (read != -1) {
             
-            return replacementStringMap;
+            scanner.scan(buffer, 0, read);
             
+            read = in.read(buffer, 0, buffer.length);
         }
         
-        return null;
+        scanner.finish();
     }
     
-    private void replaceMatches(Map<String, String> replacementStringMap, StringBuilder originalContent) {
+    /**
+     * String form of {@link #applyNonceToScript(String, Reader, Writer)}, or null when there is nothing to do.
+     */
+    String applyNonceToScript(String nonce, String bodyContent) {
         
-        if ((originalContent!=null)&&(originalContent.length()>0)&&(replacementStringMap!=null)&&(!replacementStringMap.isEmpty())) {
+        if ((nonce!=null)&&(!nonce.trim().equals(""))&&(bodyContent!=null)&&(!bodyContent.trim().equals(""))) {
             
-            Set<String> originalStrings = replacementStringMap.keySet();
+            StringWriter out = new StringWriter(bodyContent.length() + 256);
             
-            if ((originalStrings!=null)&&(!originalStrings.isEmpty())) {
+            try {
                 
-                for (String originalString: originalStrings) {
-                    
-                    String replacementString = replacementStringMap.get(originalString);
-                    
-                    if ((originalString!=null)&&(replacementString!=null)) {
-                        
-                        stringReplace(originalContent, originalString, replacementString);
-                    }
-                }
+                applyNonceToScript(nonce, new StringReader(bodyContent), out);
+                
+            } catch (IOException e) {
+                
+                return null;
             }
             
+            return out.toString();
         }
         
-    }
-    
-    private void stringReplace(StringBuilder originalContent, String originalString, String replacementString) {
-        
-        int found = originalContent.indexOf(originalString);
-        
-        final int str1Length = originalString.length();
-        
-        final int str2Length = replacementString.length();
-        
-        while (found >= 0) {
-            
-            originalContent.replace(found, found + str1Length, replacementString);
-            
-            found = originalContent.indexOf(originalString, found + str2Length);
-        }
+        return null;
     }
     
 /* TEST CODE */
@@ -213,7 +189,14 @@ public class NonceTag extends BodyTagSupport {
 
         @Override
         public java.io.Reader getReader() {
-            // TODO Auto-generated method stub
+            
+            String content = getString();
+            
+            if (content!=null) {
+                
+                return new java.io.StringReader(content);
+            }
+            
             return null;
         }
 